@@ -0,0 +1,182 @@
+import java.util.Arrays;
+
+/**
+ * A Red-Black tree that stores its nodes in parallel primitive arrays instead of Node objects.
+ * A node is identified by an integer handle, its index in the arrays. NIL marks a missing node.
+ * The insertion, deletion and rotation logic is in HandleRBTree, shared with OffHeapRBTree.
+ */
+public class ArrayRBTree extends HandleRBTree {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    int[] key;      // Value stored in each node
+    int[] left;     // Left subtree of each node
+    int[] right;    // Right subtree of each node
+    int[] parent;   // Parent of each node
+    int[] size;     // Number of keys in the subtree of each node
+    int[] copies;   // Copies of the key of each node, null unless the tree was created with Duplicates.COUNTED
+    long[] red;     // Packed colour bits, a set bit means the node is red
+
+
+    /**
+     * Constructs an empty tree with no values.
+     */
+    public ArrayRBTree() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs an empty tree with room for a number of nodes before the arrays need to grow.
+     * @param capacity The initial number of nodes.
+     */
+    public ArrayRBTree(int capacity) {
+        this(capacity, Comparison.COUNTING);
+    }
+
+    /**
+     * Constructs an empty tree with room for a number of nodes before the arrays need to grow.
+     * @param capacity The initial number of nodes.
+     * @param comparison COUNTING to count every comparison in metrics(), RAW for the fastest comparisons.
+     */
+    public ArrayRBTree(int capacity, Comparison comparison) {
+        this(capacity, comparison, Duplicates.NODES);
+    }
+
+    /**
+     * Constructs an empty tree with room for a number of nodes before the arrays need to grow.
+     * @param capacity The initial number of nodes.
+     * @param comparison COUNTING to count every comparison in metrics(), RAW for the fastest comparisons.
+     * @param duplicates NODES to store every copy of a key in its own node, COUNTED for a multiset.
+     */
+    public ArrayRBTree(int capacity, Comparison comparison, Duplicates duplicates) {
+        super(comparison, duplicates);
+        capacity = Math.max(capacity, 1);
+
+        this.key = new int[capacity];
+        this.left = new int[capacity];
+        this.right = new int[capacity];
+        this.parent = new int[capacity];
+        this.size = new int[capacity];
+        this.copies = (duplicates == Duplicates.COUNTED) ? new int[capacity] : null;
+        this.red = new long[(capacity + 63) >>> 6];
+    }
+
+
+    //Node storage
+
+    @Override
+    int capacity() {
+        return key.length;
+    }
+
+    /**
+     * Doubles the capacity of the node arrays.
+     */
+    @Override
+    void grow() {
+        int capacity = key.length * 2;
+
+        key = Arrays.copyOf(key, capacity);
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        parent = Arrays.copyOf(parent, capacity);
+        size = Arrays.copyOf(size, capacity);
+        if (copies != null) {
+            copies = Arrays.copyOf(copies, capacity);
+        }
+        red = Arrays.copyOf(red, (capacity + 63) >>> 6);
+    }
+
+    @Override
+    void initNode(int x, int n) {
+        key[x] = n;
+        left[x] = NIL;
+        right[x] = NIL;
+        parent[x] = NIL;
+        size[x] = 1;
+        if (copies != null) {
+            copies[x] = 1;
+        }
+        red[x >>> 6] |= (1L << x);
+    }
+
+    @Override
+    int keyOf(int x) {
+        return key[x];
+    }
+
+    @Override
+    int left(int x) {
+        return left[x];
+    }
+
+    @Override
+    int right(int x) {
+        return right[x];
+    }
+
+    @Override
+    int parent(int x) {
+        return parent[x];
+    }
+
+    @Override
+    boolean isRed(int x) {
+        return (red[x >>> 6] & (1L << x)) != 0;
+    }
+
+    @Override
+    int sizeOf(int x) {
+        return size[x];
+    }
+
+    @Override
+    int copiesOf(int x) {
+        return (copies == null) ? 1 : copies[x];
+    }
+
+    @Override
+    void setLeft(int x, int y) {
+        left[x] = y;
+    }
+
+    @Override
+    void setRight(int x, int y) {
+        right[x] = y;
+    }
+
+    @Override
+    void setParent(int x, int p) {
+        parent[x] = p;
+    }
+
+    @Override
+    void flipColour(int x) {
+        red[x >>> 6] ^= (1L << x);
+    }
+
+    @Override
+    void setSize(int x, int s) {
+        size[x] = s;
+    }
+
+    @Override
+    void setCopies(int x, int c) {
+        copies[x] = c;
+    }
+
+
+    /**
+     * The memory used by the node arrays, divided by the number of keys stored.
+     * Compare with RBTree.bytesPerKey() for the object layout.
+     * @return The number of bytes used per key, including unused capacity.
+     */
+    public double bytesPerKey() {
+        long bytes = 4L * (key.length + left.length + right.length + parent.length + size.length) + 8L * red.length;
+        if (copies != null) {
+            bytes += 4L * copies.length;
+        }
+        return (count == 0) ? bytes : (double) bytes / count;
+    }
+
+}
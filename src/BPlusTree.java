@@ -0,0 +1,478 @@
+import java.util.function.IntConsumer;
+
+/**
+ * A B+ tree of int keys, kept in memory.
+ *
+ * Each node holds up to order keys in a sorted int array, so a search reads a few wide nodes instead of
+ * one node per key, and binary searches within a node touch neighbouring cache lines. Every key is in a
+ * leaf, and the leaves are linked in ascending order for range scans. Inner nodes only hold separators:
+ * every key below child i is smaller than separator i, and every key below child i + 1 is not.
+ *
+ * Every node but the root holds at least order / 2 keys. A full node is split in two on insert, and a
+ * node that drops below half full borrows a key from a sibling or is merged with it on delete.
+ * Keys form a set, so inserting a key that is present does nothing.
+ */
+public class BPlusTree implements SortedIntSet {
+
+    static final int DEFAULT_ORDER = 64;    // Keys per node, 256 bytes of keys
+
+    final TreeMetrics metrics = new TreeMetrics();  // Counters for the work done by this tree
+    final Comparison comparison;                    // How keys are compared
+
+    private final int order;        // The most keys a node can hold
+    private final int minKeys;      // The fewest keys a node other than the root can hold
+
+    private Node root;              // The root, a leaf while the tree is small
+    private int size;               // The number of keys
+
+    private int splitKey;           // The separator passed up by the last split
+    private boolean changed;        // Whether the last insert or delete changed the tree
+
+
+    /*
+     * A node. Leaves have no children and are linked to the next leaf.
+     */
+    static final class Node {
+
+        final int[] keys;           // Sorted keys, or separators in an inner node. One spare slot before a split
+        final Node[] children;      // The count + 1 children of an inner node, null in a leaf
+        int count;                  // The number of keys in use
+        Node next;                  // The next leaf in order
+
+
+        Node(int order, boolean leaf) {
+            this.keys = new int[order + 1];
+            this.children = leaf ? null : new Node[order + 2];
+        }
+
+        boolean isLeaf() {
+            return children == null;
+        }
+    }
+
+
+    /**
+     * Constructs an empty tree with nodes of DEFAULT_ORDER keys.
+     */
+    public BPlusTree() {
+        this(DEFAULT_ORDER, Comparison.COUNTING);
+    }
+
+    /**
+     * Constructs an empty tree.
+     * @param order The most keys in a node, at least 3.
+     * @param comparison COUNTING to count every comparison in metrics(), RAW for the fastest comparisons.
+     */
+    public BPlusTree(int order, Comparison comparison) {
+        if (order < 3) {
+            throw new IllegalArgumentException("Order must be at least 3: " + order);
+        }
+
+        this.order = order;
+        this.minKeys = order / 2;
+        this.comparison = comparison;
+        this.root = node(true);
+    }
+
+
+    //Searching
+
+    /**
+     * Search the tree for a given key value.
+     * @param n The key value to search for.
+     * @return True if the value is in the tree.
+     */
+    public boolean contains(int n) {
+
+        Node x = root;
+
+        while (!x.isLeaf()) {
+            x = x.children[countBelow(x, n, true)];
+        }
+
+        int i = countBelow(x, n, false);
+        return i < x.count && compare('=', x.keys[i], n);
+    }
+
+    /**
+     * Count the keys of a node that are smaller than n, or not larger than n if inclusive is set.
+     * In an inner node, countBelow(x, n, true) is the child that holds n.
+     */
+    private int countBelow(Node x, int n, boolean inclusive) {
+
+        int lo = 0;
+        int hi = x.count;
+
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if (inclusive ? !compare('>', x.keys[mid], n) : compare('<', x.keys[mid], n)) {
+                lo = mid + 1;
+            }
+            else {
+                hi = mid;
+            }
+        }
+
+        return lo;
+    }
+
+
+    //Insertion
+
+    /**
+     * Insert a new key value into the tree.
+     * @param n The value to be inserted.
+     */
+    public void insert(int n) {
+
+        changed = false;
+        Node right = insert(root, n);
+
+        if (right != null) {
+            // The root was split, grow the tree by one level
+            Node newRoot = node(false);
+            newRoot.keys[0] = splitKey;
+            newRoot.children[0] = root;
+            newRoot.children[1] = right;
+            newRoot.count = 1;
+            root = newRoot;
+        }
+
+        if (changed) {
+            size++;
+        }
+    }
+
+    /**
+     * Insert n below x.
+     * @return The new right half if x was split, with its separator in splitKey, otherwise null.
+     */
+    private Node insert(Node x, int n) {
+
+        if (x.isLeaf()) {
+            int i = countBelow(x, n, false);
+
+            if (i < x.count && compare('=', x.keys[i], n)) {
+                // n is already in the tree
+                return null;
+            }
+
+            insertAt(x, i, n, null);
+            changed = true;
+        }
+        else {
+            int i = countBelow(x, n, true);
+            Node right = insert(x.children[i], n);
+
+            if (right == null) {
+                return null;
+            }
+
+            // The child was split, add the new half after it
+            insertAt(x, i, splitKey, right);
+        }
+
+        return (x.count > order) ? split(x) : null;
+    }
+
+    /**
+     * Put a key at position i of a node, and in an inner node the child after it.
+     * Uses the spare slot, so a node may briefly hold order + 1 keys.
+     */
+    private static void insertAt(Node x, int i, int key, Node child) {
+        System.arraycopy(x.keys, i, x.keys, i + 1, x.count - i);
+        x.keys[i] = key;
+
+        if (child != null) {
+            System.arraycopy(x.children, i + 1, x.children, i + 2, x.count - i);
+            x.children[i + 1] = child;
+        }
+
+        x.count++;
+    }
+
+    /**
+     * Split an overfull node in two, keeping the left half in x.
+     * @return The right half, with its separator in splitKey.
+     */
+    private Node split(Node x) {
+
+        Node right = node(x.isLeaf());
+        int half = x.count / 2;
+
+        if (x.isLeaf()) {
+            // The right leaf starts with the separator, which stays a key
+            right.count = x.count - half;
+            System.arraycopy(x.keys, half, right.keys, 0, right.count);
+
+            right.next = x.next;
+            x.next = right;
+            splitKey = right.keys[0];
+        }
+        else {
+            // The middle separator moves up, and each half keeps the children around its separators
+            right.count = x.count - half - 1;
+            System.arraycopy(x.keys, half + 1, right.keys, 0, right.count);
+            System.arraycopy(x.children, half + 1, right.children, 0, right.count + 1);
+
+            splitKey = x.keys[half];
+            clearChildren(x, half + 1, x.count + 1);
+        }
+
+        x.count = half;
+        return right;
+    }
+
+
+    //Deletion
+
+    /**
+     * Delete a key from the tree.
+     * @param n The key value to be deleted.
+     */
+    public void delete(int n) {
+
+        changed = false;
+        delete(root, n);
+
+        if (!root.isLeaf() && root.count == 0) {
+            // The root has a single child left, shrink the tree by one level
+            Node child = root.children[0];
+            root.children[0] = null;
+            root = child;
+        }
+
+        if (changed) {
+            size--;
+        }
+    }
+
+    /**
+     * Remove n from below x, then repair the child it was removed from if that child is too small.
+     */
+    private void delete(Node x, int n) {
+
+        if (x.isLeaf()) {
+            int i = countBelow(x, n, false);
+
+            if (i < x.count && compare('=', x.keys[i], n)) {
+                System.arraycopy(x.keys, i + 1, x.keys, i, x.count - i - 1);
+                x.count--;
+                changed = true;
+            }
+            return;
+        }
+
+        int i = countBelow(x, n, true);
+        delete(x.children[i], n);
+
+        if (changed && x.children[i].count < minKeys) {
+            refill(x, i);
+        }
+    }
+
+    /**
+     * Bring child i of x back to at least minKeys keys, from a sibling that can spare one or by merging.
+     */
+    private void refill(Node x, int i) {
+
+        Node child = x.children[i];
+        Node left = (i > 0) ? x.children[i - 1] : null;
+        Node right = (i < x.count) ? x.children[i + 1] : null;
+
+        if (left != null && left.count > minKeys) {
+            // Take the last key of the left sibling
+            if (child.isLeaf()) {
+                insertAt(child, 0, left.keys[left.count - 1], null);
+                x.keys[i - 1] = child.keys[0];
+            }
+            else {
+                System.arraycopy(child.keys, 0, child.keys, 1, child.count);
+                System.arraycopy(child.children, 0, child.children, 1, child.count + 1);
+                child.keys[0] = x.keys[i - 1];
+                child.children[0] = left.children[left.count];
+                child.count++;
+
+                x.keys[i - 1] = left.keys[left.count - 1];
+                left.children[left.count] = null;
+            }
+            left.count--;
+        }
+        else if (right != null && right.count > minKeys) {
+            // Take the first key of the right sibling
+            if (child.isLeaf()) {
+                child.keys[child.count++] = right.keys[0];
+                System.arraycopy(right.keys, 1, right.keys, 0, right.count - 1);
+                x.keys[i] = right.keys[0];
+            }
+            else {
+                child.keys[child.count] = x.keys[i];
+                child.children[child.count + 1] = right.children[0];
+                child.count++;
+
+                x.keys[i] = right.keys[0];
+                System.arraycopy(right.keys, 1, right.keys, 0, right.count - 1);
+                System.arraycopy(right.children, 1, right.children, 0, right.count);
+                right.children[right.count] = null;
+            }
+            right.count--;
+        }
+        else if (left != null) {
+            merge(x, i - 1);
+        }
+        else {
+            merge(x, i);
+        }
+    }
+
+    /**
+     * Merge child i + 1 of x into child i, removing separator i from x.
+     */
+    private void merge(Node x, int i) {
+
+        Node left = x.children[i];
+        Node right = x.children[i + 1];
+
+        if (left.isLeaf()) {
+            System.arraycopy(right.keys, 0, left.keys, left.count, right.count);
+            left.count += right.count;
+            left.next = right.next;
+        }
+        else {
+            // The separator comes down between the two halves
+            left.keys[left.count] = x.keys[i];
+            System.arraycopy(right.keys, 0, left.keys, left.count + 1, right.count);
+            System.arraycopy(right.children, 0, left.children, left.count + 1, right.count + 1);
+            left.count += right.count + 1;
+        }
+
+        System.arraycopy(x.keys, i + 1, x.keys, i, x.count - i - 1);
+        System.arraycopy(x.children, i + 2, x.children, i + 1, x.count - i - 1);
+        x.children[x.count] = null;
+        x.count--;
+    }
+
+
+    //Node helpers
+
+    /**
+     * Create a node, counting the allocation.
+     */
+    private Node node(boolean leaf) {
+        metrics.allocation();
+        return new Node(order, leaf);
+    }
+
+    /**
+     * Drop the references to children from..to - 1, so that moved nodes are not kept alive.
+     */
+    private static void clearChildren(Node x, int from, int to) {
+        for (int i = from; i < to; i++) {
+            x.children[i] = null;
+        }
+    }
+
+
+    //Reading
+
+    /**
+     * Pass every key k with lo <= k <= hi to an action, in ascending order.
+     * Descends once to the first key, then follows the links between leaves.
+     * @param lo The least value in the range.
+     * @param hi The largest value in the range.
+     * @param action Called with each key in the range.
+     */
+    public void forEachInRange(int lo, int hi, IntConsumer action) {
+
+        Node x = root;
+
+        while (!x.isLeaf()) {
+            x = x.children[countBelow(x, lo, true)];
+        }
+
+        for (int i = countBelow(x, lo, false); x != null; x = x.next, i = 0) {
+            for (; i < x.count; i++) {
+                if (compare('>', x.keys[i], hi)) {
+                    return;
+                }
+                action.accept(x.keys[i]);
+            }
+        }
+    }
+
+    /**
+     * Get the number of keys in the tree.
+     * @return The number of keys.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the height of the tree. Every leaf is at the same depth.
+     * @return The number of inner levels above the leaves, or -1 when the tree is empty.
+     */
+    public int height() {
+        if (size == 0) {
+            return -1;
+        }
+
+        int height = 0;
+        for (Node x = root; !x.isLeaf(); x = x.children[0]) {
+            height++;
+        }
+        return height;
+    }
+
+    /**
+     * Counts the number of nodes in the tree by visiting every node.
+     * @return The number of nodes in the tree.
+     */
+    public int countNodes() {
+        return countNodes(root);
+    }
+
+    private static int countNodes(Node x) {
+        int count = 1;
+
+        if (!x.isLeaf()) {
+            for (int i = 0; i <= x.count; i++) {
+                count += countNodes(x.children[i]);
+            }
+        }
+
+        return count;
+    }
+
+
+    /**
+     * Used instead of <, >, and == operators, counting the number of times it was called
+     * unless the tree was created with Comparison.RAW.
+     * @return boolean value
+     */
+    private boolean compare(char op, int n1, int n2) {
+        int c = comparison.compare(n1, n2, metrics);
+
+        switch (op) {
+            case '<':
+                return c < 0;
+
+            case '>':
+                return c > 0;
+
+            default:
+                return c == 0;
+        }
+    }
+
+
+    /**
+     * Get the comparison and allocation counters of this tree. A B+ tree does no rotations.
+     * @return The metrics of the tree.
+     */
+    public TreeMetrics metrics() {
+        return metrics;
+    }
+
+}
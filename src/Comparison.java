@@ -0,0 +1,86 @@
+import java.util.Comparator;
+
+/**
+ * How a tree compares its keys.
+ *
+ * COUNTING adds one to the tree's comparison counter every time, which is what Main and the benchmarks
+ * report. RAW only compares. A tree holds its strategy in a final field and calls it from a single helper,
+ * so with RAW the JIT inlines every comparison down to one compare instruction and its branches, without
+ * the counter update: a volatile read and a LongAdder increment per comparison.
+ * There is a method for each kind of key: int, long, and keys of any type ordered by a Comparator.
+ */
+public enum Comparison {
+
+    /**
+     * Counts every comparison in the tree's TreeMetrics.
+     */
+    COUNTING {
+        @Override
+        int compare(int n1, int n2, TreeMetrics metrics) {
+            metrics.comparison();
+            return Integer.compare(n1, n2);
+        }
+
+        @Override
+        int compare(long n1, long n2, TreeMetrics metrics) {
+            metrics.comparison();
+            return Long.compare(n1, n2);
+        }
+
+        @Override
+        <K> int compare(K k1, K k2, Comparator<? super K> comparator, TreeMetrics metrics) {
+            metrics.comparison();
+            return comparator.compare(k1, k2);
+        }
+    },
+
+    /**
+     * Compares without counting. The comparison count of the tree stays at 0.
+     */
+    RAW {
+        @Override
+        int compare(int n1, int n2, TreeMetrics metrics) {
+            return Integer.compare(n1, n2);
+        }
+
+        @Override
+        int compare(long n1, long n2, TreeMetrics metrics) {
+            return Long.compare(n1, n2);
+        }
+
+        @Override
+        <K> int compare(K k1, K k2, Comparator<? super K> comparator, TreeMetrics metrics) {
+            return comparator.compare(k1, k2);
+        }
+    };
+
+
+    /**
+     * Compare two keys.
+     * @param n1 The first key.
+     * @param n2 The second key.
+     * @param metrics The counters of the tree doing the comparison.
+     * @return A negative number, zero or a positive number as n1 is less than, equal to or greater than n2.
+     */
+    abstract int compare(int n1, int n2, TreeMetrics metrics);
+
+    /**
+     * Compare two long keys.
+     * @param n1 The first key.
+     * @param n2 The second key.
+     * @param metrics The counters of the tree doing the comparison.
+     * @return A negative number, zero or a positive number as n1 is less than, equal to or greater than n2.
+     */
+    abstract int compare(long n1, long n2, TreeMetrics metrics);
+
+    /**
+     * Compare two keys in the order of a comparator.
+     * @param k1 The first key.
+     * @param k2 The second key.
+     * @param comparator The order of the keys.
+     * @param metrics The counters of the tree doing the comparison.
+     * @return A negative number, zero or a positive number as k1 is less than, equal to or greater than k2.
+     */
+    abstract <K> int compare(K k1, K k2, Comparator<? super K> comparator, TreeMetrics metrics);
+
+}
@@ -0,0 +1,923 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An AVL tree that can be updated by many threads at once, following Bronson, Casper, Chafi and Olukotun,
+ * "A Practical Concurrent Binary Search Tree" (PPoPP 2010).
+ *
+ * Every node has its own lock and a version number. A thread changing the shape of the tree locks only
+ * the nodes it rotates or unlinks, and marks a node that is about to move down as "shrinking" before
+ * the rotation and gives it a new version afterwards. Searches never lock: they walk hand-over-hand,
+ * reading a child and then checking that the parent's version has not changed, and retry from the
+ * parent if it has.
+ *
+ * Deleting a key whose node has two children only marks the node as absent; such routing nodes are
+ * removed later, once they have at most one child. Rebalancing is relaxed in the same way: heights are
+ * fixed and rotations applied bottom-up after the update, one locked node at a time, using the same
+ * LL/LR/RR/RL cases as AVLTree.balance(). The tree is a set, inserting a key that is present does nothing.
+ */
+public class ConcurrentAVLTree {
+
+    // Version bits
+    private static final long SHRINKING = 1L;       // The node is being rotated down
+    private static final long UNLINKED = 2L;        // The node has been removed from the tree
+
+    // Results of nodeCondition() that are not a new height
+    private static final int UNLINK_REQUIRED = -2;
+    private static final int REBALANCE_REQUIRED = -3;
+    private static final int NOTHING_REQUIRED = -4;
+
+    // Result of an attempt that saw a concurrent change and must be repeated
+    private static final int RETRY = -1;
+
+    // Number of busy-wait loops before a waiting thread starts yielding
+    private static final int SPIN_COUNT = 100;
+
+
+    /*
+     * A node in the tree. Fields are volatile because searches read them without locking.
+     */
+    static final class Node {
+
+        final int key;              // Value stored
+
+        volatile int height;        // Height of the subtree, -1 for a missing node as in AVLTree
+        volatile long version;      // Changes whenever the node is rotated down or unlinked
+        volatile boolean present;   // False for routing nodes whose key has been deleted
+
+        volatile Node parent;       // The parent node
+        volatile Node left;         // Left subtree
+        volatile Node right;        // Right subtree
+
+
+        Node(int key, int height, boolean present, Node parent) {
+            this.key = key;
+            this.height = height;
+            this.present = present;
+            this.parent = parent;
+        }
+
+        Node child(boolean goLeft) {
+            return goLeft ? left : right;
+        }
+
+        void setChild(boolean goLeft, Node child) {
+            if (goLeft) {
+                left = child;
+            }
+            else {
+                right = child;
+            }
+        }
+
+        /**
+         * Wait, without locking, until the node is no longer being rotated.
+         */
+        void waitUntilNotChanging() {
+            long v = version;
+
+            if ((v & SHRINKING) != 0) {
+                for (int i = 0; version == v; i++) {
+                    if (i < SPIN_COUNT) {
+                        Thread.onSpinWait();
+                    }
+                    else {
+                        Thread.yield();
+                    }
+                }
+            }
+        }
+    }
+
+
+    // Holds the root as its right child, so the root can be rotated like any other node
+    private final Node rootHolder = new Node(0, -1, false, null);
+
+    private final LongAdder size = new LongAdder();
+    private final TreeMetrics metrics = new TreeMetrics();
+
+
+
+    private static boolean isShrinkingOrUnlinked(long version) {
+        return (version & (SHRINKING | UNLINKED)) != 0;
+    }
+
+    private static boolean isUnlinked(long version) {
+        return (version & UNLINKED) != 0;
+    }
+
+    private static long beginChange(long version) {
+        return version | SHRINKING;
+    }
+
+    private static long endChange(long version) {
+        // Clears both flag bits and moves on to the next version
+        return (version | SHRINKING | UNLINKED) + 1;
+    }
+
+    private static int height(Node x) {
+        return (x == null) ? -1 : x.height;
+    }
+
+
+
+    /**
+     * Search the tree for a given key value. Never takes a lock.
+     * @param n The key value to search for.
+     * @return True if the value is in the tree.
+     */
+    public boolean search(int n) {
+
+        while (true) {
+            Node root = rootHolder.right;
+
+            if (root == null) {
+                return false;
+            }
+
+            if (n == root.key) {
+                return root.present;
+            }
+
+            long version = root.version;
+
+            if (isShrinkingOrUnlinked(version)) {
+                root.waitUntilNotChanging();
+            }
+            else if (root == rootHolder.right) {
+                int result = attemptSearch(n, root, n < root.key, version);
+                if (result != RETRY) {
+                    return result == 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Continue a search below a node whose version has been read.
+     * @return 1 if found, 0 if not found, RETRY if the node changed and the search must restart above it.
+     */
+    private int attemptSearch(int n, Node node, boolean goLeft, long nodeVersion) {
+
+        while (true) {
+            Node child = node.child(goLeft);
+
+            if (child == null) {
+                // Only a miss if node was not moved while we looked
+                return (node.version != nodeVersion) ? RETRY : 0;
+            }
+
+            if (n == child.key) {
+                return child.present ? 1 : 0;
+            }
+
+            long childVersion = child.version;
+
+            if (isShrinkingOrUnlinked(childVersion)) {
+                child.waitUntilNotChanging();
+
+                if (node.version != nodeVersion) {
+                    return RETRY;
+                }
+            }
+            else if (child != node.child(goLeft)) {
+                // The link changed, read it again
+                if (node.version != nodeVersion) {
+                    return RETRY;
+                }
+            }
+            else {
+                // Hand-over-hand: the child was reached while node was unchanged
+                if (node.version != nodeVersion) {
+                    return RETRY;
+                }
+
+                int result = attemptSearch(n, child, n < child.key, childVersion);
+                if (result != RETRY) {
+                    return result;
+                }
+            }
+        }
+    }
+
+
+
+    /**
+     * Insert a new key value into the tree.
+     * @param n The value to be inserted.
+     * @return True if the value was added, false if it was already in the tree.
+     */
+    public boolean insert(int n) {
+        boolean changed = update(n, true);
+        if (changed) {
+            size.increment();
+        }
+        return changed;
+    }
+
+    /**
+     * Remove a key from the tree.
+     * @param n The key to be removed.
+     * @return True if the value was removed, false if it was not in the tree.
+     */
+    public boolean delete(int n) {
+        boolean changed = update(n, false);
+        if (changed) {
+            size.decrement();
+        }
+        return changed;
+    }
+
+    /**
+     * Make a key present or absent.
+     * @return True if the presence of the key changed.
+     */
+    private boolean update(int n, boolean present) {
+
+        while (true) {
+            Node root = rootHolder.right;
+
+            if (root == null) {
+                if (!present) {
+                    return false;
+                }
+
+                synchronized (rootHolder) {
+                    if (rootHolder.right == null) {
+                        rootHolder.right = new Node(n, 0, true, rootHolder);
+                        metrics.allocation();
+                        return true;
+                    }
+                }
+            }
+            else {
+                long version = root.version;
+
+                if (isShrinkingOrUnlinked(version)) {
+                    root.waitUntilNotChanging();
+                }
+                else if (root == rootHolder.right) {
+                    int result = attemptUpdate(n, present, rootHolder, root, version);
+                    if (result != RETRY) {
+                        return result == 1;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Continue an update below a node whose version has been read.
+     * @return 1 if the key changed, 0 if not, RETRY if the search must restart above node.
+     */
+    private int attemptUpdate(int n, boolean present, Node parent, Node node, long nodeVersion) {
+
+        if (n == node.key) {
+            return attemptNodeUpdate(present, parent, node);
+        }
+
+        boolean goLeft = n < node.key;
+
+        while (true) {
+            Node child = node.child(goLeft);
+
+            if (node.version != nodeVersion) {
+                return RETRY;
+            }
+
+            if (child == null) {
+                if (!present) {
+                    // Nothing to remove
+                    return 0;
+                }
+
+                Node damaged;
+
+                synchronized (node) {
+                    if (node.version != nodeVersion) {
+                        return RETRY;
+                    }
+
+                    if (node.child(goLeft) != null) {
+                        // Another thread inserted here first, look again
+                        continue;
+                    }
+
+                    node.setChild(goLeft, new Node(n, 0, true, node));
+                    metrics.allocation();
+                    damaged = fixHeight_nl(node);
+                }
+
+                fixHeightAndRebalance(damaged);
+                return 1;
+            }
+
+            long childVersion = child.version;
+
+            if (isShrinkingOrUnlinked(childVersion)) {
+                child.waitUntilNotChanging();
+            }
+            else if (child == node.child(goLeft)) {
+                if (node.version != nodeVersion) {
+                    return RETRY;
+                }
+
+                int result = attemptUpdate(n, present, node, child, childVersion);
+                if (result != RETRY) {
+                    return result;
+                }
+            }
+        }
+    }
+
+    /**
+     * Change the presence of the key held by node.
+     * @return 1 if the key changed, 0 if not, RETRY if the node was moved or unlinked.
+     */
+    private int attemptNodeUpdate(boolean present, Node parent, Node node) {
+
+        if (!present && (node.left == null || node.right == null)) {
+            // The node can be removed completely, which needs the parent's lock as well
+            Node damaged;
+
+            synchronized (parent) {
+                if (isUnlinked(parent.version) || node.parent != parent) {
+                    return RETRY;
+                }
+
+                synchronized (node) {
+                    if (!node.present) {
+                        return 0;
+                    }
+
+                    if (!attemptUnlink_nl(parent, node)) {
+                        return RETRY;
+                    }
+                }
+
+                damaged = fixHeight_nl(parent);
+            }
+
+            fixHeightAndRebalance(damaged);
+            return 1;
+        }
+
+        synchronized (node) {
+            if (isUnlinked(node.version)) {
+                return RETRY;
+            }
+
+            if (node.present == present) {
+                return 0;
+            }
+
+            if (!present && (node.left == null || node.right == null)) {
+                // A child was removed since we looked, unlink the node instead
+                return RETRY;
+            }
+
+            node.present = present;
+            return 1;
+        }
+    }
+
+    /**
+     * Remove a node with at most one child, replacing it with that child.
+     * Both parent and node must be locked.
+     * @return False if the node has been moved or has two children.
+     */
+    private boolean attemptUnlink_nl(Node parent, Node node) {
+
+        Node parentLeft = parent.left;
+        Node parentRight = parent.right;
+
+        if (parentLeft != node && parentRight != node) {
+            return false;
+        }
+
+        Node left = node.left;
+        Node right = node.right;
+
+        if (left != null && right != null) {
+            return false;
+        }
+
+        Node splice = (left != null) ? left : right;
+
+        if (parentLeft == node) {
+            parent.left = splice;
+        }
+        else {
+            parent.right = splice;
+        }
+
+        if (splice != null) {
+            splice.parent = parent;
+        }
+
+        node.version = UNLINKED;
+        node.present = false;
+        return true;
+    }
+
+
+
+    //Relaxed rebalancing
+
+    /**
+     * Work out what a node needs after a change below it.
+     * @return UNLINK_REQUIRED, REBALANCE_REQUIRED, NOTHING_REQUIRED, or the new height of the node.
+     */
+    private static int nodeCondition(Node node) {
+
+        Node left = node.left;
+        Node right = node.right;
+
+        if ((left == null || right == null) && !node.present) {
+            return UNLINK_REQUIRED;
+        }
+
+        int hN = node.height;
+        int hL = height(left);
+        int hR = height(right);
+        int hNRepl = Math.max(hL, hR) + 1;
+        int bf = hL - hR;
+
+        if (bf < -1 || bf > 1) {
+            return REBALANCE_REQUIRED;
+        }
+
+        return (hN != hNRepl) ? hNRepl : NOTHING_REQUIRED;
+    }
+
+    /**
+     * Update the height of a locked node.
+     * @return The next node that needs attention, or null if nothing more is required.
+     */
+    private static Node fixHeight_nl(Node node) {
+
+        int c = nodeCondition(node);
+
+        switch (c) {
+            case REBALANCE_REQUIRED:
+            case UNLINK_REQUIRED:
+                // The caller must deal with node itself
+                return node;
+
+            case NOTHING_REQUIRED:
+                return null;
+
+            default:
+                // The height changed, so the parent may need fixing
+                node.height = c;
+                return node.parent;
+        }
+    }
+
+    /**
+     * Repair heights, balance and routing nodes from a node up to the root, locking one node at a time.
+     */
+    private void fixHeightAndRebalance(Node node) {
+
+        while (node != null && node.parent != null) {
+
+            int c = nodeCondition(node);
+
+            if (c == NOTHING_REQUIRED || isUnlinked(node.version)) {
+                // Another thread has taken over, or there is nothing to do
+                return;
+            }
+
+            if (c != UNLINK_REQUIRED && c != REBALANCE_REQUIRED) {
+                synchronized (node) {
+                    node = fixHeight_nl(node);
+                }
+            }
+            else {
+                Node parent = node.parent;
+                Node next = node;
+
+                synchronized (parent) {
+                    if (!isUnlinked(parent.version) && node.parent == parent) {
+                        synchronized (node) {
+                            next = rebalance_nl(parent, node);
+                        }
+                    }
+                    // Otherwise try again with the same node
+                }
+
+                if (next != node || node.parent != parent) {
+                    // A rotation can damage more than one node. Follow the one it reported, then
+                    // check this node and the one above the rotated subtree again
+                    fixHeightAndRebalance(next);
+                    fixHeightAndRebalance(node);
+                    node = parent;
+                }
+            }
+        }
+    }
+
+    /**
+     * Balance a node, or unlink it if it is a routing node with at most one child.
+     * parent and n must be locked.
+     * @return The next node that needs attention, or null if nothing more is required.
+     */
+    private Node rebalance_nl(Node parent, Node n) {
+
+        Node nL = n.left;
+        Node nR = n.right;
+
+        if ((nL == null || nR == null) && !n.present) {
+            if (attemptUnlink_nl(parent, n)) {
+                return fixHeight_nl(parent);
+            }
+            return n;
+        }
+
+        int hN = n.height;
+        int hL0 = height(nL);
+        int hR0 = height(nR);
+        int hNRepl = Math.max(hL0, hR0) + 1;
+        int bf = hL0 - hR0;
+
+        if (bf > 1) {
+            // The left subtree is taller
+            return rebalanceToRight_nl(parent, n, nL, hR0);
+        }
+        else if (bf < -1) {
+            // The right subtree is taller
+            return rebalanceToLeft_nl(parent, n, nR, hL0);
+        }
+        else if (hNRepl != hN) {
+            n.height = hNRepl;
+            return fixHeight_nl(parent);
+        }
+        else {
+            return null;
+        }
+    }
+
+    /**
+     * Balance a node whose left subtree is too tall, with an LL or LR rotation as in AVLTree.balance().
+     */
+    private Node rebalanceToRight_nl(Node parent, Node n, Node nL, int hR0) {
+
+        synchronized (nL) {
+            int hL = nL.height;
+
+            if (hL - hR0 <= 1) {
+                // Another thread fixed it, look again
+                return n;
+            }
+
+            Node nLR = nL.right;
+            int hLL0 = height(nL.left);
+            int hLR0 = height(nLR);
+
+            // Double rotation only if the left child leans to the right
+            if (hLL0 >= hLR0) {
+                return llRotation_nl(parent, n, nL, hR0, hLL0, nLR, hLR0);
+            }
+
+            synchronized (nLR) {
+                int hLR = nLR.height;
+
+                if (hLL0 >= hLR) {
+                    return llRotation_nl(parent, n, nL, hR0, hLL0, nLR, hLR);
+                }
+
+                return lrRotation_nl(parent, n, nL, hR0, hLL0, nLR);
+            }
+        }
+    }
+
+    /**
+     * Balance a node whose right subtree is too tall, with an RR or RL rotation as in AVLTree.balance().
+     */
+    private Node rebalanceToLeft_nl(Node parent, Node n, Node nR, int hL0) {
+
+        synchronized (nR) {
+            int hR = nR.height;
+
+            if (hR - hL0 <= 1) {
+                return n;
+            }
+
+            Node nRL = nR.left;
+            int hRR0 = height(nR.right);
+            int hRL0 = height(nRL);
+
+            if (hRR0 >= hRL0) {
+                return rrRotation_nl(parent, n, nR, hL0, hRR0, nRL, hRL0);
+            }
+
+            synchronized (nRL) {
+                int hRL = nRL.height;
+
+                if (hRR0 >= hRL) {
+                    return rrRotation_nl(parent, n, nR, hL0, hRR0, nRL, hRL);
+                }
+
+                return rlRotation_nl(parent, n, nR, hL0, hRR0, nRL);
+            }
+        }
+    }
+
+
+    //Rotations. Each one marks the nodes that move down as shrinking while it runs.
+
+    /**
+     * Perform a left single rotation: nL replaces n, n becomes its right child.
+     */
+    private Node llRotation_nl(Node parent, Node n, Node nL, int hR, int hLL, Node nLR, int hLR) {
+
+        metrics.llRotation();
+
+        long nodeVersion = n.version;
+        Node parentLeft = parent.left;
+
+        n.version = beginChange(nodeVersion);
+
+        n.left = nLR;
+        if (nLR != null) {
+            nLR.parent = n;
+        }
+
+        nL.right = n;
+        n.parent = nL;
+
+        if (parentLeft == n) {
+            parent.left = nL;
+        }
+        else {
+            parent.right = nL;
+        }
+        nL.parent = parent;
+
+        // Update the heights of the rotated nodes
+        int hNRepl = Math.max(hLR, hR) + 1;
+        n.height = hNRepl;
+        nL.height = Math.max(hLL, hNRepl) + 1;
+
+        n.version = endChange(nodeVersion);
+
+        // Report any node left needing attention
+        int bfN = hLR - hR;
+        if (bfN < -1 || bfN > 1) {
+            return n;
+        }
+
+        if ((nLR == null || hR == -1) && !n.present) {
+            return n;
+        }
+
+        int bfL = hLL - hNRepl;
+        if (bfL < -1 || bfL > 1) {
+            return nL;
+        }
+
+        if (hLL == -1 && !nL.present) {
+            return nL;
+        }
+
+        return fixHeight_nl(parent);
+    }
+
+    /**
+     * Perform a right single rotation: nR replaces n, n becomes its left child.
+     */
+    private Node rrRotation_nl(Node parent, Node n, Node nR, int hL, int hRR, Node nRL, int hRL) {
+
+        metrics.rrRotation();
+
+        long nodeVersion = n.version;
+        Node parentLeft = parent.left;
+
+        n.version = beginChange(nodeVersion);
+
+        n.right = nRL;
+        if (nRL != null) {
+            nRL.parent = n;
+        }
+
+        nR.left = n;
+        n.parent = nR;
+
+        if (parentLeft == n) {
+            parent.left = nR;
+        }
+        else {
+            parent.right = nR;
+        }
+        nR.parent = parent;
+
+        int hNRepl = Math.max(hL, hRL) + 1;
+        n.height = hNRepl;
+        nR.height = Math.max(hNRepl, hRR) + 1;
+
+        n.version = endChange(nodeVersion);
+
+        int bfN = hRL - hL;
+        if (bfN < -1 || bfN > 1) {
+            return n;
+        }
+
+        if ((nRL == null || hL == -1) && !n.present) {
+            return n;
+        }
+
+        int bfR = hRR - hNRepl;
+        if (bfR < -1 || bfR > 1) {
+            return nR;
+        }
+
+        if (hRR == -1 && !nR.present) {
+            return nR;
+        }
+
+        return fixHeight_nl(parent);
+    }
+
+    /**
+     * Perform a left double rotation: nLR replaces n, with nL and n as its children.
+     */
+    private Node lrRotation_nl(Node parent, Node n, Node nL, int hR, int hLL, Node nLR) {
+
+        metrics.lrRotation();
+
+        long nodeVersion = n.version;
+        long leftVersion = nL.version;
+
+        Node parentLeft = parent.left;
+        Node nLRL = nLR.left;
+        Node nLRR = nLR.right;
+        int hLRL = height(nLRL);
+        int hLRR = height(nLRR);
+
+        n.version = beginChange(nodeVersion);
+        nL.version = beginChange(leftVersion);
+
+        n.left = nLRR;
+        if (nLRR != null) {
+            nLRR.parent = n;
+        }
+
+        nL.right = nLRL;
+        if (nLRL != null) {
+            nLRL.parent = nL;
+        }
+
+        nLR.left = nL;
+        nL.parent = nLR;
+        nLR.right = n;
+        n.parent = nLR;
+
+        if (parentLeft == n) {
+            parent.left = nLR;
+        }
+        else {
+            parent.right = nLR;
+        }
+        nLR.parent = parent;
+
+        int hNRepl = Math.max(hLRR, hR) + 1;
+        n.height = hNRepl;
+        int hLRepl = Math.max(hLL, hLRL) + 1;
+        nL.height = hLRepl;
+        nLR.height = Math.max(hLRepl, hNRepl) + 1;
+
+        n.version = endChange(nodeVersion);
+        nL.version = endChange(leftVersion);
+
+        // nL and n both moved down, so either may need repair
+        int bfL = hLL - hLRL;
+        if (bfL < -1 || bfL > 1) {
+            return nL;
+        }
+
+        if ((hLL == -1 || nLRL == null) && !nL.present) {
+            return nL;
+        }
+
+        int bfN = hLRR - hR;
+        if (bfN < -1 || bfN > 1) {
+            return n;
+        }
+
+        if ((nLRR == null || hR == -1) && !n.present) {
+            return n;
+        }
+
+        int bfLR = hLRepl - hNRepl;
+        if (bfLR < -1 || bfLR > 1) {
+            return nLR;
+        }
+
+        return fixHeight_nl(parent);
+    }
+
+    /**
+     * Perform a right double rotation: nRL replaces n, with n and nR as its children.
+     */
+    private Node rlRotation_nl(Node parent, Node n, Node nR, int hL, int hRR, Node nRL) {
+
+        metrics.rlRotation();
+
+        long nodeVersion = n.version;
+        long rightVersion = nR.version;
+
+        Node parentLeft = parent.left;
+        Node nRLL = nRL.left;
+        Node nRLR = nRL.right;
+        int hRLL = height(nRLL);
+        int hRLR = height(nRLR);
+
+        n.version = beginChange(nodeVersion);
+        nR.version = beginChange(rightVersion);
+
+        n.right = nRLL;
+        if (nRLL != null) {
+            nRLL.parent = n;
+        }
+
+        nR.left = nRLR;
+        if (nRLR != null) {
+            nRLR.parent = nR;
+        }
+
+        nRL.right = nR;
+        nR.parent = nRL;
+        nRL.left = n;
+        n.parent = nRL;
+
+        if (parentLeft == n) {
+            parent.left = nRL;
+        }
+        else {
+            parent.right = nRL;
+        }
+        nRL.parent = parent;
+
+        int hNRepl = Math.max(hL, hRLL) + 1;
+        n.height = hNRepl;
+        int hRRepl = Math.max(hRLR, hRR) + 1;
+        nR.height = hRRepl;
+        nRL.height = Math.max(hNRepl, hRRepl) + 1;
+
+        n.version = endChange(nodeVersion);
+        nR.version = endChange(rightVersion);
+
+        int bfR = hRR - hRLR;
+        if (bfR < -1 || bfR > 1) {
+            return nR;
+        }
+
+        if ((hRR == -1 || nRLR == null) && !nR.present) {
+            return nR;
+        }
+
+        int bfN = hRLL - hL;
+        if (bfN < -1 || bfN > 1) {
+            return n;
+        }
+
+        if ((nRLL == null || hL == -1) && !n.present) {
+            return n;
+        }
+
+        int bfRL = hRRepl - hNRepl;
+        if (bfRL < -1 || bfRL > 1) {
+            return nRL;
+        }
+
+        return fixHeight_nl(parent);
+    }
+
+
+
+    /**
+     * The number of keys in the tree.
+     * @return The number of keys.
+     */
+    public int size() {
+        return size.intValue();
+    }
+
+    /**
+     * Get the height of the tree.
+     * Routing nodes are included, so this can be larger than for an AVLTree with the same keys.
+     * @return The height of the tree.
+     */
+    public int height() {
+        return height(rootHolder.right);
+    }
+
+    /**
+     * Get the rotation and allocation counters of this tree.
+     * Comparisons are not counted, so that searches never write to shared memory.
+     * @return The metrics of the tree.
+     */
+    public TreeMetrics metrics() {
+        return metrics;
+    }
+
+}
@@ -0,0 +1,162 @@
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A Red-Black tree that can be shared between threads, for workloads with many readers and few writers.
+ *
+ * Writers take an exclusive lock around the RBTree operations. search first walks the tree without any
+ * lock and then checks that no writer ran in the meantime. Only if one did is the search repeated under
+ * a read lock. The optimistic walk allocates nothing and writes nothing to shared memory.
+ *
+ * Searches are never profiled: the profile of the tree is not thread-safe and the read lock lets several
+ * searches run at once. Inserts and deletes hold the write lock, so they are profiled as usual.
+ */
+public class ConcurrentRBTree {
+
+    // An optimistic walk longer than this has seen a tree in the middle of a rotation
+    private static final int MAX_OPTIMISTIC_STEPS = 128;
+
+    private final RBTree tree;
+    private final StampedLock lock = new StampedLock();
+
+
+    /**
+     * Constructs an empty tree with no values.
+     */
+    public ConcurrentRBTree() {
+        this(new RBTree());
+    }
+
+    /**
+     * Constructs a concurrent tree holding the keys of an existing tree.
+     * The existing tree must not be used directly afterwards.
+     * @param tree The tree to wrap.
+     */
+    public ConcurrentRBTree(RBTree tree) {
+        this.tree = tree;
+    }
+
+
+    /**
+     * Search the tree for a given key value.
+     * Does not update the comparison counters when the optimistic walk succeeds.
+     * @param n The key value to search for.
+     * @return True if the value is in the tree.
+     */
+    public boolean search(int n) {
+
+        long stamp = lock.tryOptimisticRead();
+
+        if (stamp != 0) {
+            int found = optimisticSearch(n);
+
+            // The result can only be trusted if no writer held the lock during the walk
+            if (found >= 0 && lock.validate(stamp)) {
+                return found == 1;
+            }
+        }
+
+        // A writer got in the way, search again while holding off writers
+        stamp = lock.readLock();
+        try {
+            return tree.searchKey(n) != null;
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Walk the tree without locking. The fields read may be inconsistent if a writer is active,
+     * so every reference is checked and the number of steps is bounded.
+     * @return 1 if n was found, 0 if it was not, -1 if the walk had to be abandoned.
+     */
+    private int optimisticSearch(int n) {
+
+        RBTree.Node x = tree.root;
+
+        for (int steps = 0; steps < MAX_OPTIMISTIC_STEPS; steps++) {
+
+            if (x == null) {
+                return 0;
+            }
+
+            // A node that is not fully published yet may show a key of 0, which validate() will catch
+            int k = x.key;
+
+            if (n == k) {
+                return 1;
+            }
+
+            x = (n < k) ? x.left : x.right;
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * Insert a new key value into the tree.
+     * @param n The value to be inserted.
+     */
+    public void insert(int n) {
+        long stamp = lock.writeLock();
+        try {
+            tree.insert(n);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Delete a node from the tree.
+     * @param n The key value of the node to be deleted.
+     */
+    public void delete(int n) {
+        long stamp = lock.writeLock();
+        try {
+            tree.delete(n);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+
+    /**
+     * Get the height of the tree.
+     * @return The height of the tree.
+     */
+    public int height() {
+        long stamp = lock.readLock();
+        try {
+            return tree.height();
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Counts the number of nodes in the tree.
+     * @return The number of nodes in the tree.
+     */
+    public int countNodes() {
+        long stamp = lock.readLock();
+        try {
+            return tree.countNodes();
+        }
+        finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Get the counters of the underlying tree.
+     * @return The metrics of the tree.
+     */
+    public TreeMetrics metrics() {
+        return tree.metrics();
+    }
+
+}
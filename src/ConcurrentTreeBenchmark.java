@@ -0,0 +1,241 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how the throughput of the thread-safe trees scales with the number of threads.
+ *
+ * In the default "mixed" mode each thread runs a mix of searches and updates against one shared tree
+ * for a fixed time. Updates delete a key and insert it again, so the tree keeps its size. In "insert"
+ * mode every thread inserts new keys spread across the whole key range, so the tree keeps growing.
+ * Results for the concurrent trees are shown next to an RBTree and an AVLTree behind a single lock.
+ *
+ * Usage: java ConcurrentTreeBenchmark [--trees locked,stamped,lockedavl,avl] [--threads 1,2,4,8]
+ *                                     [--size 1000000] [--mode mixed] [--writes 0.01] [--dist uniform]
+ *                                     [--seconds 5] [--seed 42]
+ */
+public class ConcurrentTreeBenchmark {
+
+    /**
+     * The operations of a thread-safe tree that are benchmarked.
+     */
+    interface Subject {
+        boolean search(int n);
+        void insert(int n);
+        void delete(int n);
+    }
+
+    static Subject create(String tree, int[] sortedKeys) {
+        switch (tree) {
+            case "locked": {
+                RBTree t = RBTree.fromSorted(sortedKeys);
+                return new Subject() {
+                    public synchronized boolean search(int n) { return t.search(n) != null; }
+                    public synchronized void insert(int n) { t.insert(n); }
+                    public synchronized void delete(int n) { t.delete(n); }
+                };
+            }
+            case "stamped": {
+                ConcurrentRBTree t = new ConcurrentRBTree(RBTree.fromSorted(sortedKeys));
+                return new Subject() {
+                    public boolean search(int n) { return t.search(n); }
+                    public void insert(int n) { t.insert(n); }
+                    public void delete(int n) { t.delete(n); }
+                };
+            }
+            case "lockedavl": {
+                AVLTree t = AVLTree.fromSorted(sortedKeys);
+                return new Subject() {
+                    public synchronized boolean search(int n) { return t.search(n) != null; }
+                    public synchronized void insert(int n) { t.insert(n); }
+                    public synchronized void delete(int n) { t.delete(n); }
+                };
+            }
+            case "avl": {
+                ConcurrentAVLTree t = new ConcurrentAVLTree();
+                for (int key : sortedKeys) {
+                    t.insert(key);
+                }
+                return new Subject() {
+                    public boolean search(int n) { return t.search(n); }
+                    public void insert(int n) { t.insert(n); }
+                    public void delete(int n) { t.delete(n); }
+                };
+            }
+            default:
+                throw new IllegalArgumentException("Unknown tree: " + tree);
+        }
+    }
+
+
+    // Benchmark parameters
+    String[] trees = {"locked", "stamped", "lockedavl", "avl"};
+    int[] threads = defaultThreadCounts();
+    int size = 1000000;
+    String mode = "mixed";
+    double writes = 0.01;
+    String dist = "uniform";
+    double seconds = 5;
+    long seed = 42;
+
+    // Set when the worker threads should stop
+    private volatile boolean stop;
+
+    // Consumes search results so that the searches cannot be optimised away
+    static volatile int sink;
+
+
+    public static void main(String[] args) throws InterruptedException {
+        ConcurrentTreeBenchmark b = new ConcurrentTreeBenchmark();
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+
+            switch (args[i]) {
+                case "--trees": b.trees = value.split(","); break;
+                case "--threads": b.threads = TreeBenchmark.parseInts(value); break;
+                case "--size": b.size = (int) Double.parseDouble(value); break;
+                case "--mode": b.mode = value; break;
+                case "--writes": b.writes = Double.parseDouble(value); break;
+                case "--dist": b.dist = value; break;
+                case "--seconds": b.seconds = Double.parseDouble(value); break;
+                case "--seed": b.seed = Long.parseLong(value); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        b.run();
+    }
+
+    /**
+     * Thread counts from 1 up to the number of available processors, doubling each time.
+     */
+    static int[] defaultThreadCounts() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        List<Integer> counts = new ArrayList<>();
+
+        for (int t = 1; t < cpus; t *= 2) {
+            counts.add(t);
+        }
+        counts.add(cpus);
+
+        int[] result = new int[counts.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = counts.get(i);
+        }
+        return result;
+    }
+
+
+    /**
+     * Run every tree at every thread count and print the throughput.
+     */
+    void run() throws InterruptedException {
+        if (!mode.equals("mixed") && !mode.equals("insert")) {
+            throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+
+        // Tree keys are even, so that odd keys are guaranteed misses
+        int[] keys = new int[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = i << 1;
+        }
+
+        System.out.printf("%-10s %-7s %8s %8s %16s %16s %10s%n", "tree", "mode", "threads", "writes", "ops/s", "ops/s/thread", "scaling");
+
+        for (String tree : trees) {
+            double single = 0;
+
+            for (int t : threads) {
+                // Warm up on a fresh tree, then measure on another
+                measure(create(tree, keys), keys, t, seconds / 5);
+                double throughput = measure(create(tree, keys), keys, t, seconds);
+
+                if (single == 0) {
+                    single = throughput / t;
+                }
+
+                System.out.printf(Locale.ROOT, "%-10s %-7s %8d %8.3f %16.0f %16.0f %10.2f%n",
+                        tree, mode, t, writes, throughput, throughput / t, throughput / single);
+            }
+        }
+    }
+
+    /**
+     * Run a number of threads against a tree for a fixed time.
+     * @return The total number of operations per second.
+     */
+    double measure(Subject subject, int[] keys, int threadCount, double duration) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        long[] counts = new long[threadCount];
+        Thread[] workers = new Thread[threadCount];
+        stop = false;
+
+        for (int t = 0; t < threadCount; t++) {
+            final int id = t;
+
+            workers[t] = new Thread(() -> {
+                KeyGenerator order = KeyGenerator.of(dist, keys.length, seed + id);
+                KeyGenerator coin = KeyGenerator.uniform(1 << 30, seed * 31 + id);
+                int writeThreshold = (int) (writes * (1 << 30));
+                boolean insertOnly = mode.equals("insert");
+                long ops = 0;
+                int found = 0;
+
+                try {
+                    start.await();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+
+                // Check the stop flag every 1024 operations
+                while (!stop) {
+                    for (int i = 0; i < 1024; i++) {
+                        if (insertOnly) {
+                            // Odd keys are never in the initial tree, and each thread gets its own
+                            int fresh = (int) ((ops + i) * threadCount + id);
+                            subject.insert(KeyGenerator.scramble(fresh, seed) << 1 | 1);
+                            continue;
+                        }
+
+                        int key = keys[order.next()];
+
+                        if (coin.next() < writeThreshold) {
+                            subject.delete(key);
+                            subject.insert(key);
+                        }
+                        else if (subject.search(key)) {
+                            found++;
+                        }
+                    }
+                    ops += 1024;
+                }
+
+                counts[id] = ops;
+                sink += found;
+            });
+
+            workers[t].start();
+        }
+
+        start.countDown();
+        long begin = System.nanoTime();
+        Thread.sleep((long) (duration * 1000));
+        stop = true;
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+
+        return total / (elapsed / 1e9);
+    }
+
+}
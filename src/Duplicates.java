@@ -0,0 +1,21 @@
+/**
+ * How a tree stores a key that is inserted more than once.
+ *
+ * NODES stores every copy in a node of its own, sent to the right subtree of an equal key, so a key that
+ * repeats often makes the tree bigger and deeper. COUNTED turns the tree into a multiset: every distinct
+ * key has one node holding the number of its copies, so the number of nodes grows with the distinct keys
+ * only. In both modes size() counts every copy, and so do rank(), select() and countInRange().
+ */
+public enum Duplicates {
+
+    /**
+     * Store every copy of a key in its own node.
+     */
+    NODES,
+
+    /**
+     * Keep one node per distinct key, with a count that insert increments and delete decrements.
+     */
+    COUNTED
+
+}
@@ -0,0 +1,587 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * A Red-Black tree whose inserts and deletes survive a restart.
+ *
+ * Every change is appended to a write-ahead log before insert or delete returns. Appends are group
+ * committed: a writer that finds no flush in progress writes and syncs everything queued so far, and the
+ * writers that queue up behind it are made durable by the next flush, so many changes share one fsync.
+ *
+ * A checkpoint writes the keys in order to a single file and starts a new log generation. Recovery
+ * builds the tree from the latest checkpoint with RBTree.fromSorted() and replays the logs written after it.
+ * The directory is synced after a new log is created and after the checkpoint is renamed into place, so the
+ * log a checkpoint replaces is only deleted once a crash can no longer lose the checkpoint.
+ * A checkpoint copies the keys while holding the monitor, which stalls changes for O(n), but writes and
+ * syncs the file outside it, so changes go on being logged to the new generation meanwhile.
+ * A checkpoint taken automatically after a change never makes that change fail, since it is already durable:
+ * its error is kept for checkpointFailure(), and the next change tries again.
+ *
+ * The directory holds "checkpoint" and "wal-<generation>" files. The tree is guarded by this object's
+ * monitor, so readers and writers never see it half changed. A change becomes visible to readers as soon
+ * as it is applied, which may be slightly before it is durable.
+ */
+public class DurableRBTree implements Closeable {
+
+    static final byte INSERT = 1;               // Log record for an insert
+    static final byte DELETE = 2;               // Log record for a delete
+    static final int RECORD_BYTES = 9;          // Operation, key and CRC of a log record
+    static final int CHECKPOINT_MAGIC = 0x52424350;     // "RBCP", at the start of a checkpoint
+
+    private final Path dir;             // The directory holding the checkpoint and logs
+    private final long checkpointEvery; // Take a checkpoint after this many log records, 0 to never do it
+    private final RBTree tree;          // The keys
+
+    private FileChannel wal;            // The log currently being appended to
+    private long generation;            // The generation of that log
+
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);    // Records waiting for the next flush
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);      // Buffer to swap in during a flush
+    private long appended;              // Number of records appended since the tree was opened
+    private long durable;               // Number of those records that have been synced
+    private long sinceCheckpoint;       // Records appended since the last checkpoint
+    private boolean flushing;           // Set while a writer is flushing outside the monitor
+    private boolean checkpointing;      // Set while a checkpoint is written outside the monitor
+    private IOException failure;        // Set if a log write failed, after which every change fails
+    private IOException checkpointFailure;  // Set if the last automatic checkpoint failed
+
+    private final CRC32 crc = new CRC32();
+
+    private final long recoveryNanos;       // Time taken to open the tree
+    private final int checkpointKeys;       // Keys loaded from the checkpoint
+    private final long replayedRecords;     // Log records replayed on top of the checkpoint
+
+
+    private DurableRBTree(Path dir, long checkpointEvery, RBTree tree, long generation,
+                          long recoveryNanos, int checkpointKeys, long replayedRecords) throws IOException {
+        this.dir = dir;
+        this.checkpointEvery = checkpointEvery;
+        this.tree = tree;
+        this.generation = generation;
+        this.wal = FileChannel.open(walFile(dir, generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        syncDirectory(dir);
+        this.recoveryNanos = recoveryNanos;
+        this.checkpointKeys = checkpointKeys;
+        this.replayedRecords = replayedRecords;
+    }
+
+
+    //Recovery
+
+    /**
+     * Open a durable tree, recovering its keys from a directory, or creating an empty tree if the directory is empty.
+     * @param dir The directory to keep the checkpoint and logs in. It is created if it does not exist.
+     * @param checkpointEvery Take a checkpoint automatically after this many changes, or 0 to leave it to checkpoint().
+     * @return The tree.
+     * @throws IOException If the directory could not be read, or a checkpoint is damaged.
+     */
+    public static DurableRBTree open(Path dir, long checkpointEvery) throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(dir);
+
+        // Build the tree from the checkpoint, which knows which log generation follows it
+        int[] keys = new int[0];
+        long first = 0;
+        Path checkpoint = dir.resolve("checkpoint");
+
+        if (Files.exists(checkpoint)) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+
+            CRC32 check = new CRC32();
+            check.update(buffer.array(), 0, Math.max(0, buffer.limit() - 4));
+
+            if (buffer.limit() < 20 || buffer.getInt() != CHECKPOINT_MAGIC
+                    || (int) check.getValue() != buffer.getInt(buffer.limit() - 4)) {
+                throw new IOException("Damaged checkpoint: " + checkpoint);
+            }
+
+            first = buffer.getLong();
+            keys = new int[buffer.getInt()];
+            buffer.asIntBuffer().get(keys);
+        }
+
+        RBTree tree = RBTree.fromSorted(keys);
+
+        // Replay the logs written since, oldest first, and remove the ones the checkpoint already covers
+        long last = first;
+        long replayed = 0;
+
+        long[] gens = generations(dir);
+
+        for (int i = 0; i < gens.length; i++) {
+            if (gens[i] < first) {
+                Files.delete(walFile(dir, gens[i]));
+            }
+            else {
+                replayed += replay(walFile(dir, gens[i]), tree, i == gens.length - 1);
+                last = gens[i];
+            }
+        }
+
+        return new DurableRBTree(dir, checkpointEvery, tree, last, System.nanoTime() - start, keys.length, replayed);
+    }
+
+    /**
+     * Apply every complete record of a log to a tree. A torn record at the end of the newest log, left by a
+     * crash during an append, is cut off so that later appends follow the last good record. An older log was
+     * complete when the next one was started, so a bad record in it is damage, and recovery fails rather than
+     * replay the later logs over a hole.
+     * @param newest True if this is the last log, the only one a crash can have left torn.
+     * @return The number of records applied.
+     * @throws IOException If the log could not be read, or an older log is damaged.
+     */
+    private static long replay(Path file, RBTree tree, boolean newest) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        CRC32 check = new CRC32();
+        long count = 0;
+
+        while (buffer.remaining() >= RECORD_BYTES) {
+            int at = buffer.position();
+            byte op = buffer.get();
+            int key = buffer.getInt();
+
+            check.reset();
+            check.update(bytes, at, 5);
+            if ((int) check.getValue() != buffer.getInt() || (op != INSERT && op != DELETE)) {
+                buffer.position(at);
+                break;
+            }
+
+            if (op == INSERT) {
+                tree.insert(key);
+            }
+            else {
+                tree.delete(key);
+            }
+            count++;
+        }
+
+        if (buffer.position() < bytes.length) {
+            if (!newest) {
+                throw new IOException("Damaged log: " + file + " at byte " + buffer.position());
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(buffer.position());
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * The generations of the logs in a directory, in ascending order.
+     */
+    private static long[] generations(Path dir) throws IOException {
+        List<Long> found = new ArrayList<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "wal-*")) {
+            for (Path file : files) {
+                found.add(Long.parseLong(file.getFileName().toString().substring(4)));
+            }
+        }
+
+        return found.stream().mapToLong(Long::longValue).sorted().toArray();
+    }
+
+    private static Path walFile(Path dir, long generation) {
+        return dir.resolve("wal-" + generation);
+    }
+
+    /**
+     * Sync a directory, making the files created, renamed or deleted in it durable.
+     */
+    private static void syncDirectory(Path dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+
+    //Changes
+
+    /**
+     * Insert a new key value into the tree, returning once the change is durable.
+     * @param n The value to be inserted.
+     * @throws IOException If the change could not be logged.
+     */
+    public void insert(int n) throws IOException {
+        long seq;
+
+        synchronized (this) {
+            seq = append(INSERT, n);
+            tree.insert(n);
+        }
+
+        commit(seq);
+    }
+
+    /**
+     * Delete a key from the tree, returning once the change is durable.
+     * @param n The key value to be deleted.
+     * @throws IOException If the change could not be logged.
+     */
+    public void delete(int n) throws IOException {
+        long seq;
+
+        synchronized (this) {
+            seq = append(DELETE, n);
+            tree.delete(n);
+        }
+
+        commit(seq);
+    }
+
+    /**
+     * Queue a log record for the next flush. Called while holding the monitor.
+     * @return The sequence number of the record.
+     */
+    private long append(byte op, int key) throws IOException {
+        if (failure != null) {
+            throw new IOException("An earlier log write failed", failure);
+        }
+
+        if (pending.remaining() < RECORD_BYTES) {
+            ByteBuffer bigger = ByteBuffer.allocate(pending.capacity() * 2);
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+
+        int at = pending.position();
+        pending.put(op).putInt(key);
+        crc.reset();
+        crc.update(pending.array(), at, 5);
+        pending.putInt((int) crc.getValue());
+
+        sinceCheckpoint++;
+        return ++appended;
+    }
+
+    /**
+     * Wait until record seq is durable. If no flush is running, this thread flushes every queued record,
+     * including those of threads that queued while the previous flush was running.
+     */
+    private void commit(long seq) throws IOException {
+
+        while (true) {
+            ByteBuffer batch;
+            FileChannel channel;
+            long upTo;
+
+            synchronized (this) {
+                while (flushing && durable < seq && failure == null) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for the log");
+                    }
+                }
+
+                if (failure != null) {
+                    throw new IOException("Log write failed", failure);
+                }
+                if (durable >= seq) {
+                    break;
+                }
+
+                // Become the flusher for everything queued so far
+                flushing = true;
+                batch = pending;
+                pending = spare;
+                spare = null;
+                channel = wal;
+                upTo = appended;
+            }
+
+            IOException error = null;
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                channel.force(false);
+            }
+            catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (this) {
+                batch.clear();
+                spare = batch;
+                flushing = false;
+
+                if (error == null) {
+                    durable = upTo;
+                }
+                else {
+                    failure = error;
+                }
+                notifyAll();
+            }
+        }
+
+        if (checkpointEvery > 0) {
+            try {
+                checkpoint(true);
+            }
+            catch (IOException e) {
+                // The change is durable, so a caller that saw this would wrongly retry it
+                synchronized (this) {
+                    checkpointFailure = e;
+                }
+            }
+        }
+    }
+
+
+    //Checkpoints
+
+    /**
+     * Write every key to a new checkpoint and start a new log, deleting the log the checkpoint replaces.
+     * Changes wait while the keys are copied, but not while they are written.
+     * @throws IOException If the checkpoint could not be written. The previous checkpoint and logs are kept.
+     */
+    public void checkpoint() throws IOException {
+        checkpoint(false);
+    }
+
+    /**
+     * Get the error of the last automatic checkpoint, which does not fail the change that started it.
+     * If the error came from the log, every later change fails too.
+     * @return The error, or null if the last automatic checkpoint succeeded or none has run.
+     */
+    public synchronized IOException checkpointFailure() {
+        return checkpointFailure;
+    }
+
+    /**
+     * Take a checkpoint. An error writing the log or starting the next one stops every later change,
+     * since the log may then be missing records; an error writing the checkpoint file only loses the checkpoint.
+     * @param ifDue True to do nothing unless checkpointEvery records have been logged since the last
+     *              checkpoint and no other checkpoint is running, as after a commit.
+     */
+    private void checkpoint(boolean ifDue) throws IOException {
+        ByteBuffer buffer;
+        long previous;
+
+        synchronized (this) {
+            if (ifDue && (checkpointing || sinceCheckpoint < checkpointEvery)) {
+                return;
+            }
+
+            // Let a running flush or checkpoint finish, then flush whatever is still queued to the old log
+            while (flushing || checkpointing) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the log");
+                }
+            }
+            if (failure != null) {
+                throw new IOException("Log write failed", failure);
+            }
+
+            long next = generation + 1;
+
+            try {
+                pending.flip();
+                while (pending.hasRemaining()) {
+                    wal.write(pending);
+                }
+                pending.clear();
+                wal.force(false);
+                durable = appended;
+
+                // Changes from here on go to the next generation, whose log must exist before any is acknowledged.
+                // It is opened before the old log is closed, so that the tree always has an open log
+                FileChannel nextWal = FileChannel.open(walFile(dir, next), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                try {
+                    syncDirectory(dir);
+                }
+                catch (IOException e) {
+                    try {
+                        nextWal.close();
+                    }
+                    catch (IOException closing) {
+                        e.addSuppressed(closing);
+                    }
+                    throw e;
+                }
+
+                FileChannel old = wal;
+                wal = nextWal;
+                old.close();
+            }
+            catch (IOException e) {
+                // Queued records may be partly written, so no further change can be acknowledged
+                failure = e;
+                throw e;
+            }
+            finally {
+                notifyAll();
+            }
+
+            previous = generation;
+            generation = next;
+            sinceCheckpoint = 0;
+
+            // Header and keys in order, copied now so the file can be written without the monitor
+            int size = tree.size();
+            buffer = ByteBuffer.allocate(16 + 4 * size + 4);
+            buffer.putInt(CHECKPOINT_MAGIC).putLong(next).putInt(size);
+            tree.forEachInRange(Integer.MIN_VALUE, Integer.MAX_VALUE, buffer::putInt);
+
+            checkpointing = true;
+        }
+
+        try {
+            // Then a CRC of everything before it
+            CRC32 check = new CRC32();
+            check.update(buffer.array(), 0, buffer.position());
+            buffer.putInt((int) check.getValue());
+            buffer.flip();
+
+            // Replace the old checkpoint atomically, so a crash leaves one or the other
+            Path temp = dir.resolve("checkpoint.tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, dir.resolve("checkpoint"), StandardCopyOption.ATOMIC_MOVE);
+
+            // Only once the rename is durable is the old log no longer needed
+            syncDirectory(dir);
+            Files.deleteIfExists(walFile(dir, previous));
+        }
+        finally {
+            synchronized (this) {
+                checkpointing = false;
+                notifyAll();
+            }
+        }
+
+        if (ifDue) {
+            synchronized (this) {
+                checkpointFailure = null;
+            }
+        }
+    }
+
+
+    //Reading
+
+    /**
+     * Search the tree for a given key value.
+     * @param n The key value to search for.
+     * @return True if the value is in the tree.
+     */
+    public synchronized boolean search(int n) {
+        return tree.search(n) != null;
+    }
+
+    /**
+     * Pass every key k with lo <= k <= hi to an action, in ascending order.
+     * @param lo The least value in the range.
+     * @param hi The largest value in the range.
+     * @param action Called with each key in the range.
+     */
+    public synchronized void forEachInRange(int lo, int hi, IntConsumer action) {
+        tree.forEachInRange(lo, hi, action);
+    }
+
+    /**
+     * Get the number of keys in the tree.
+     * @return The number of keys.
+     */
+    public synchronized int size() {
+        return tree.size();
+    }
+
+    /**
+     * Get the comparison, rotation and allocation counters of the underlying tree.
+     * @return The metrics of the tree.
+     */
+    public TreeMetrics metrics() {
+        return tree.metrics();
+    }
+
+
+    //Recovery statistics
+
+    /**
+     * Get the time open() took, including reading the checkpoint and replaying the logs.
+     * @return The recovery time in nanoseconds.
+     */
+    public long recoveryNanos() {
+        return recoveryNanos;
+    }
+
+    /**
+     * Describe how the tree was recovered.
+     * @return The number of keys loaded, records replayed and the time taken.
+     */
+    public String recoveryReport() {
+        return String.format("recovered %d checkpoint keys and %d log records in %.1f ms",
+                checkpointKeys, replayedRecords, recoveryNanos / 1e6);
+    }
+
+
+    /**
+     * Flush any queued changes and close the log.
+     * @throws IOException If the last changes could not be written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!wal.isOpen()) {
+            return;
+        }
+
+        while (flushing || checkpointing) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the log");
+            }
+        }
+
+        try {
+            if (failure == null) {
+                pending.flip();
+                while (pending.hasRemaining()) {
+                    wal.write(pending);
+                }
+                pending.clear();
+                wal.force(false);
+                durable = appended;
+            }
+        }
+        finally {
+            wal.close();
+        }
+    }
+
+}
@@ -0,0 +1,286 @@
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable set of int keys stored in a single array, laid out so that searches touch few cache lines.
+ *
+ * The keys form an implicit complete binary search tree, padded with Integer.MAX_VALUE up to 2^h - 1 slots.
+ * No node holds a pointer: the children of node i are nodes 2i and 2i + 1, and the array order is one of
+ *
+ *   EYTZINGER      Breadth-first order. The top levels of the tree share a few cache lines that stay hot,
+ *                  and the children of a node are next to each other.
+ *   VAN_EMDE_BOAS  The top half of the levels is stored first, then each subtree hanging below it, each
+ *                  laid out the same way. Any path of the tree crosses O(log_B n) blocks of B keys, for
+ *                  every block size at once.
+ *
+ * Every search descends all h levels with a branch-free step, so the number of keys below the value falls
+ * out of the index where the descent ends. The padding at most doubles the array, which still uses far less
+ * memory than a tree node per key. A frozen set can be read by any number of threads.
+ */
+public final class FrozenIntSet {
+
+    /**
+     * The order in which the nodes of the implicit tree are stored.
+     */
+    public enum Layout {
+        EYTZINGER,
+        VAN_EMDE_BOAS
+    }
+
+    // The most keys a set can hold, so that the padded array still fits in a Java array
+    static final int MAX_SIZE = (1 << 30) - 1;
+
+    private final Layout layout;
+    private final int size;         // The number of keys
+    private final int height;       // The number of levels of the implicit tree
+    private final int[] keys;       // The padded tree. EYTZINGER uses slots 1 to 2^h - 1, VAN_EMDE_BOAS 0 to 2^h - 2
+
+
+    private FrozenIntSet(Layout layout, int size, int height) {
+        this.layout = layout;
+        this.size = size;
+        this.height = height;
+        this.keys = new int[1 << height];
+    }
+
+
+    //Building
+
+    /**
+     * Build a frozen set from keys that are already sorted. Repeated keys are stored once.
+     * @param sorted The keys, in ascending order.
+     * @param layout The order of the array.
+     * @return The new set.
+     */
+    public static FrozenIntSet fromSorted(int[] sorted, Layout layout) {
+
+        // Drop repeated keys, which an AVLTree may hold
+        int size = 0;
+        int[] distinct = sorted.clone();
+        for (int i = 0; i < distinct.length; i++) {
+            if (i > 0 && distinct[i] < distinct[i - 1]) {
+                throw new IllegalArgumentException("Keys are not sorted at index " + i);
+            }
+            if (size == 0 || distinct[i] != distinct[size - 1]) {
+                distinct[size++] = distinct[i];
+            }
+        }
+
+        if (size > MAX_SIZE) {
+            throw new IllegalArgumentException("Too many keys for a frozen set: " + size);
+        }
+
+        // The smallest complete tree that holds every key, with at least one level
+        int height = 1;
+        while ((1 << height) - 1 < size) {
+            height++;
+        }
+
+        FrozenIntSet set = new FrozenIntSet(layout, size, height);
+
+        // The i-th slot in sorted order holds the i-th key, the slots after the last key hold padding
+        int slots = (1 << height) - 1;
+        for (int i = 0; i < slots; i++) {
+            set.keys[set.slot(set.nodeAt(i))] = (i < size) ? distinct[i] : Integer.MAX_VALUE;
+        }
+
+        return set;
+    }
+
+    //Navigation
+
+    /**
+     * The node of the implicit tree that holds the i-th slot in sorted order.
+     * The trailing zeros of i + 1 give the number of levels above the leaves.
+     */
+    private int nodeAt(int i) {
+        int inOrder = i + 1;
+        return ((1 << height) + inOrder) >>> (Integer.numberOfTrailingZeros(inOrder) + 1);
+    }
+
+    /**
+     * The array index of node i of the implicit tree.
+     */
+    private int slot(int i) {
+        if (layout == Layout.EYTZINGER) {
+            return i;
+        }
+
+        int d = 31 - Integer.numberOfLeadingZeros(i);
+        return vebSlot(0, height, d, i & ((1 << d) - 1));
+    }
+
+    /**
+     * The array index of a node in a van Emde Boas subtree.
+     * @param start The array index of the subtree.
+     * @param levels The number of levels of the subtree.
+     * @param d The level of the node within the subtree.
+     * @param path The turns from the root of the subtree to the node, one bit per level, 1 for right.
+     */
+    private static int vebSlot(int start, int levels, int d, int path) {
+
+        while (d > 0) {
+            // The top half of the levels is stored first, then the bottom subtrees from left to right
+            int topLevels = levels / 2;
+
+            if (d < topLevels) {
+                levels = topLevels;
+            }
+            else {
+                int bottomLevels = levels - topLevels;
+                d -= topLevels;
+
+                start += (1 << topLevels) - 1 + (path >>> d) * ((1 << bottomLevels) - 1);
+                path &= (1 << d) - 1;
+                levels = bottomLevels;
+            }
+        }
+
+        return start;
+    }
+
+    /**
+     * Count the keys that are smaller than n, following every level of the tree.
+     */
+    private int lowerBound(int n) {
+
+        int i;
+
+        if (layout == Layout.EYTZINGER) {
+            i = 1;
+            for (int d = 0; d < height; d++) {
+                i = 2 * i + (keys[i] < n ? 1 : 0);
+            }
+            i -= 1 << height;
+        }
+        else {
+            i = vebDescend(0, height, n);
+        }
+
+        // The padding sorts after every key, so only real keys can be counted
+        return Math.min(i, size);
+    }
+
+    /**
+     * Descend a van Emde Boas subtree, first through its top half and then through the bottom subtree
+     * the top half leads to.
+     * @return The turns taken, one bit per level, 1 for right.
+     */
+    private int vebDescend(int start, int levels, int n) {
+
+        if (levels == 1) {
+            return keys[start] < n ? 1 : 0;
+        }
+
+        int topLevels = levels / 2;
+        int bottomLevels = levels - topLevels;
+
+        int top = vebDescend(start, topLevels, n);
+        int bottom = vebDescend(start + (1 << topLevels) - 1 + top * ((1 << bottomLevels) - 1), bottomLevels, n);
+
+        return (top << bottomLevels) | bottom;
+    }
+
+    /**
+     * Count the keys that are smaller than n, or not larger than n if inclusive is set.
+     */
+    private int countBelow(int n, boolean inclusive) {
+        if (!inclusive) {
+            return lowerBound(n);
+        }
+        return (n == Integer.MAX_VALUE) ? size : lowerBound(n + 1);
+    }
+
+    /**
+     * The i-th smallest key, without bounds checks.
+     */
+    private int key(int i) {
+        return keys[slot(nodeAt(i))];
+    }
+
+
+    //Queries
+
+    /**
+     * Search the set for a given key value.
+     * @param n The key value to search for.
+     * @return True if the value is in the set.
+     */
+    public boolean contains(int n) {
+        int i = lowerBound(n);
+        return i < size && key(i) == n;
+    }
+
+    /**
+     * Find the largest key that is not larger than n.
+     * @param n The value.
+     * @return The key.
+     * @throws NoSuchElementException If every key is larger than n.
+     */
+    public int floor(int n) {
+        int i = countBelow(n, true) - 1;
+        if (i < 0) {
+            throw new NoSuchElementException("No key at or below " + n);
+        }
+        return key(i);
+    }
+
+    /**
+     * Find the least key that is not smaller than n.
+     * @param n The value.
+     * @return The key.
+     * @throws NoSuchElementException If every key is smaller than n.
+     */
+    public int ceiling(int n) {
+        int i = lowerBound(n);
+        if (i == size) {
+            throw new NoSuchElementException("No key at or above " + n);
+        }
+        return key(i);
+    }
+
+    /**
+     * Count the keys that are smaller than a given value.
+     * @param n The value.
+     * @return The number of keys less than n.
+     */
+    public int rank(int n) {
+        return lowerBound(n);
+    }
+
+    /**
+     * Find the key at a given position in sorted order.
+     * @param k The position, starting from 0 for the least key.
+     * @return The k-th smallest key.
+     */
+    public int select(int k) {
+        if (k < 0 || k >= size) {
+            throw new IndexOutOfBoundsException("Index " + k + " out of bounds for size " + size);
+        }
+        return key(k);
+    }
+
+    /**
+     * Get the number of keys in the set.
+     * @return The number of keys.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the order of the array.
+     * @return The layout.
+     */
+    public Layout layout() {
+        return layout;
+    }
+
+    /**
+     * Get the memory used by the key array, including the padding.
+     * @return The size of the array in bytes.
+     */
+    public long bytes() {
+        return 4L * keys.length;
+    }
+
+}
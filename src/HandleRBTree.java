@@ -0,0 +1,1043 @@
+import java.util.function.IntConsumer;
+
+/**
+ * The Red-Black tree algorithms for trees whose nodes are records identified by an integer handle rather than
+ * Node objects. The search, insertion, deletion, deleteFixup and rotation logic lives here once; a subclass
+ * only decides where the records are kept, through the storage methods, as ArrayRBTree does with parallel
+ * arrays and OffHeapRBTree with a direct ByteBuffer.
+ *
+ * A record holds a key, the handles of the left and right children and of the parent, a colour, the size of
+ * the subtree, and in a multiset the number of copies of its key. As in RBTree, the subtree sizes give rank,
+ * select and range counts in O(log n), a key inserted a second time is stored again and delete removes one
+ * copy, and a tree created with Duplicates.COUNTED keeps one record per distinct key instead.
+ *
+ * Released handles are kept on a free list, linked through the left field, and reused before new ones.
+ */
+public abstract class HandleRBTree implements SortedIntSet {
+
+    static final int NIL = -1;      // Handle used for a missing node
+
+    final TreeMetrics metrics = new TreeMetrics();  // Counters for the work done by this tree
+    final Comparison comparison;                    // How keys are compared
+    final Duplicates duplicates;                    // How repeated keys are stored
+
+    int root;       // The root of the tree
+    int count;      // The number of nodes in use
+    int next;       // The first handle that has never been used
+    int free;       // Head of the list of released handles, linked through the left field
+
+
+    /**
+     * Constructs an empty tree.
+     * @param comparison COUNTING to count every comparison in metrics(), RAW for the fastest comparisons.
+     * @param duplicates NODES to store every copy of a key in its own node, COUNTED for a multiset.
+     */
+    HandleRBTree(Comparison comparison, Duplicates duplicates) {
+        this.comparison = comparison;
+        this.duplicates = duplicates;
+
+        this.root = NIL;
+        this.count = 0;
+        this.next = 0;
+        this.free = NIL;
+    }
+
+
+    //Node storage
+
+    /**
+     * The number of records the storage holds before it needs to grow.
+     */
+    abstract int capacity();
+
+    /**
+     * Make room for more records, keeping the ones already stored.
+     */
+    abstract void grow();
+
+    /**
+     * Fill a record for a new red node with no children or parent, a subtree of one key.
+     * @param x The handle of the record.
+     * @param key The key stored.
+     */
+    abstract void initNode(int x, int key);
+
+    abstract int keyOf(int x);
+
+    abstract int left(int x);
+
+    abstract int right(int x);
+
+    abstract int parent(int x);
+
+    abstract boolean isRed(int x);
+
+    /**
+     * The number of keys in the subtree rooted at x, counting every copy.
+     */
+    abstract int sizeOf(int x);
+
+    /**
+     * The number of copies of the key of x. Always 1 unless the tree was created with Duplicates.COUNTED.
+     */
+    abstract int copiesOf(int x);
+
+    abstract void setLeft(int x, int y);
+
+    abstract void setRight(int x, int y);
+
+    abstract void setParent(int x, int p);
+
+    /**
+     * Change the colour of a node from red to black or back, without counting the change.
+     */
+    abstract void flipColour(int x);
+
+    abstract void setSize(int x, int size);
+
+    /**
+     * Set the number of copies of the key of x. Only called in a tree created with Duplicates.COUNTED.
+     */
+    abstract void setCopies(int x, int copies);
+
+    /**
+     * Throw IllegalStateException if the storage can no longer be used. Called by every public method.
+     */
+    void checkOpen() {
+    }
+
+
+    /**
+     * Creates a red node with a given value.
+     * @param n The value stored.
+     * @return The handle of the new node.
+     */
+    private int newNode(int n) {
+        int x;
+
+        if (free != NIL) {
+            //Reuse a released handle
+            x = free;
+            free = left(x);
+        }
+        else {
+            if (next == capacity()) {
+                grow();
+            }
+            x = next++;
+        }
+
+        initNode(x, n);
+
+        count++;
+        metrics.allocation();
+        return x;
+    }
+
+    /**
+     * Releases a node so that its handle can be reused.
+     * @param x The handle of the node.
+     */
+    private void freeNode(int x) {
+        setLeft(x, free);
+        free = x;
+        count--;
+    }
+
+    /**
+     * Change the colour of a node, counting the change.
+     * @param x The node to recolour.
+     * @param isRed True to colour the node red, false to colour it black.
+     */
+    private void setRed(int x, boolean isRed) {
+        if (isRed(x) != isRed) {
+            metrics.recolouring();
+            flipColour(x);
+        }
+    }
+
+    /**
+     * Check the colour of a node that may be missing, which counts as black.
+     */
+    private boolean isBlack(int x) {
+        return x == NIL || !isRed(x);
+    }
+
+    /**
+     * The size of a subtree that may be missing.
+     */
+    private int size(int x) {
+        return (x == NIL) ? 0 : sizeOf(x);
+    }
+
+
+    //Searching
+
+    /**
+     * Search the tree for a given key value.
+     * @param n The key value to search for.
+     * @return True if the value is in the tree.
+     */
+    public boolean contains(int n) {
+        return search(n) != NIL;
+    }
+
+    /**
+     * Search the tree for a given key value.
+     * @param n The key value to search for.
+     * @return The handle of the node with the key value or NIL if the value is not in the tree.
+     */
+    public int search(int n) {
+
+        checkOpen();
+        int x = root;
+
+        while (x != NIL) {
+
+            int c = compare(n, keyOf(x));
+
+            if (c == 0) {
+                // This is the requested node
+                return x;
+            }
+            else if (c < 0) {
+                // The key is in the left subtree
+                x = left(x);
+            }
+            else {
+                // The key is in the right subtree
+                x = right(x);
+            }
+
+        }
+
+        // The key was not found
+        return NIL;
+    }
+
+
+    //Insertion
+
+    /**
+     * Insert a new key value into the tree. In a multiset a key that is already present gains a copy instead.
+     * @param n The value to be inserted.
+     */
+    public void insert(int n) {
+
+        checkOpen();
+
+        // Check if the root node has been created yet
+        if (root == NIL) {
+            //Create a black root node
+            root = newNode(n);
+            setRed(root, false);
+            return;
+        }
+
+
+        // Begin insertion
+
+        int x = root; //Current node
+
+        // Loop until we have found the right position
+        while (x != NIL) {
+
+            int c = compare(n, keyOf(x));
+
+            // The new key ends up below every node on the way down. A rotation on the way recomputes the sizes
+            // of the nodes it moves down from their children, so a node is never counted twice
+            setSize(x, sizeOf(x) + 1);
+
+            if (c == 0 && duplicates == Duplicates.COUNTED) {
+                //The key is already here, add a copy
+                setCopies(x, copiesOf(x) + 1);
+                break;
+            }
+
+            if (c < 0) {
+                //insert n in the left subtree
+
+                if (left(x) == NIL) {
+                    //Insert n here, as the left child
+                    int newNode = newNode(n);
+                    setLeft(x, newNode);
+                    setParent(newNode, x);
+
+                    //If the current node is black, we can just insert n and stop
+                    //If the node is red, we must perform rotations
+
+                    if (isRed(x)) {
+                        //The current node is red & we know the uncle cannot also be red
+                        int oldParent = parent(x);
+
+                        if (x == left(oldParent)) {
+                            //The current node is a left child
+                            //We are inserting n on the left
+                            llRotation(oldParent);
+                            setRed(x, false);
+                        }
+                        else {
+                            //The current node is a right child
+                            //We are inserting n on the left
+                            rlRotation(oldParent);
+                            setRed(newNode, false);
+                        }
+
+                        // Update node colours after rotations
+                        setRed(oldParent, true);
+
+                    }
+
+
+                    x = NIL; // Stop Looping
+
+                }
+                else {
+                    //Continue searching
+
+                    //Check if we have 2 red children that need to be recoloured
+                    checkFor2RedChildren(x);
+
+
+                    //Continue in the left subtree
+                    x = left(x);
+                }
+
+            }
+
+            else {
+                //insert n in the right subtree
+
+                if (right(x) == NIL) {
+                    //Insert n as the right child
+                    int newNode = newNode(n);
+                    setRight(x, newNode);
+                    setParent(newNode, x);
+
+                    //If the current node is black, we can just insert n and stop
+                    //If the node is red, we must perform rotations
+
+                    if (isRed(x))  {
+                        //The current node is red & we know the uncle cannot also be red
+                        int oldParent = parent(x);
+
+                        if (x == right(oldParent)) {
+                            //The current node is a right child
+                            //We are inserting n on the right
+                            rrRotation(oldParent);
+                            setRed(x, false);
+                        }
+                        else {
+                            //The current node is a left child
+                            //We are inserting n on the right
+                            lrRotation(oldParent);
+                            setRed(newNode, false);
+                        }
+
+                        //Update colours after rotations
+                        setRed(oldParent, true);
+
+                    }
+
+                    x = NIL; // Stop Looping
+                }
+                else {
+                    //Continue searching
+
+                    //Check if we have 2 red children that need to be recoloured
+                    checkFor2RedChildren(x);
+
+
+                    //Continue in the right subtree
+                    x = right(x);
+                }
+
+            }
+
+        }
+
+
+        //The root node must always be black
+        setRed(root, false);
+    }
+
+
+    /**
+     * When carrying out a top-down insertion, check if the next 2 children are both red.
+     * If both children are red, change their colours and perform any necessary rotations.
+     * @param x The current node.
+     */
+    private void checkFor2RedChildren(int x) {
+
+        int l = left(x);
+        int r = right(x);
+
+        if (l != NIL && r != NIL) {
+            if (isRed(l) && isRed(r)) {
+                //Both children are red, swap their colours
+                //The root must stay black, otherwise its children cannot be rotated
+                int p = parent(x);
+
+                setRed(x, p != NIL);
+                setRed(l, false);
+                setRed(r, false);
+
+                //Check for red-red violations
+                if (p != NIL && isRed(p)) {
+                    //We have a violation, perform the necessary rotation
+                    int g = parent(p);
+
+                    if (p == left(g)) {
+                        // The parent is left of the grandparent
+
+                        if (x == left(p)) {
+                            // The current node is also left
+                            llRotation(g);
+                            setRed(p, false);
+                        }
+                        else {
+                            // The current node is right
+                            lrRotation(g);
+                            setRed(x, false);
+                        }
+
+                    }
+                    else {
+                        // The parent is right of the grandparent
+
+                        if (x == left(p)) {
+                            // The current node is left
+                            rlRotation(g);
+                            setRed(x, false);
+                        }
+                        else {
+                            // The current node is also right
+                            rrRotation(g);
+                            setRed(p, false);
+                        }
+
+                    }
+
+                    // The grandparent moves below the new subtree root
+                    setRed(g, true);
+
+                }
+
+            }
+
+        }
+
+    }
+
+
+    //Deletion
+
+    /**
+     * Delete a node from the tree. In a multiset one copy of the key is removed.
+     * @param n The key value of the node to be deleted.
+     */
+    public void delete(int n) {
+
+        int x = search(n);
+
+        if (x == NIL) {
+            return;
+        }
+
+        // Every node from x up loses a key
+        for (int u = x; u != NIL; u = parent(u)) {
+            setSize(u, sizeOf(u) - 1);
+        }
+
+        if (copiesOf(x) > 1) {
+            //Other copies of the key remain
+            setCopies(x, copiesOf(x) - 1);
+            return;
+        }
+
+        boolean yColour = isRed(x);
+
+        int z;  //The node that moves into the removed position
+        int p;  //Parent node, will be passed to deleteFixup
+
+        if (left(x) == NIL) {
+            //Replace x with the right child
+            z = right(x);
+            transplant(x, z);
+            p = parent(x);
+        }
+
+        else if (right(x) == NIL) {
+            //Replace x with the left child
+            z = left(x);
+            transplant(x, z);
+            p = parent(x);
+        }
+
+        else {
+            //There are two non null-children
+            //Find the inorder successor of x;
+            int y = right(x);
+
+            while (left(y) != NIL) {
+                y = left(y);
+            }
+
+            // The nodes between x and y lose y, with every copy of its key
+            for (int u = parent(y); u != x; u = parent(u)) {
+                setSize(u, sizeOf(u) - copiesOf(y));
+            }
+
+            yColour = isRed(y);
+            z = right(y);
+            p = (parent(y) == x) ? y : parent(y);
+
+            if (parent(y) == x && z != NIL) {
+                setParent(z, y);
+            }
+            else if (parent(y) != x) {
+                transplant(y, z);
+                setRight(y, right(x));
+                setParent(right(y), y);
+            }
+
+            transplant(x, y);
+            setLeft(y, left(x));
+            setParent(left(y), y);
+            setRed(y, isRed(x));
+            setSize(y, sizeOf(x));
+
+        }
+
+        freeNode(x);
+
+        if (!yColour) {
+            deleteFixup(z, p);
+        }
+    }
+
+
+    /**
+     * Replace node X with node Y.
+     * @param x The node to be replaced.
+     * @param y The new node.
+     */
+    private void transplant(int x, int y) {
+
+        int p = parent(x);
+
+        if (p == NIL) {
+            //x is the root
+            root = y;
+        }
+        else if (x == left(p)) {
+            //x is the left child
+            setLeft(p, y);
+        }
+        else {
+            //x is the right child
+            setRight(p, y);
+        }
+
+        if (y != NIL) {
+            setParent(y, p);
+        }
+    }
+
+
+    /**
+     * After a node has been deleted, some RB tree properties may have been violated.
+     * @param x We will start fixing the tree from node x
+     * @param p The parent of x
+     */
+    private void deleteFixup(int x, int p) {
+
+        while (x != root && (x == NIL || !isRed(x))) {
+
+            int w; //Sibling node
+
+            if (x == left(p)) {
+
+                w = right(p);
+
+                //Case 1: x has a red sibling
+                if (w != NIL && isRed(w)) {
+                    setRed(w, false);
+                    setRed(p, true);
+                    rrRotation(p);
+                    w = right(p);
+                }
+
+                //Case 2: x's sibling is black, and the sibling has 2 black children
+                if (w != NIL && isBlack(left(w)) && isBlack(right(w))) {
+                    setRed(w, true);
+                    x = p;
+                    p = parent(x);
+                }
+
+                //Case 3: x's sibling is black, and the sibling's left child is red and right child is black
+                else if (w != NIL && isBlack(right(w))) {
+                    setRed(left(w), false);
+                    setRed(w, true);
+                    llRotation(w);
+                    w = right(p);
+                }
+
+                //Case 4: x's sibling is black, and the sibling's right child is red
+                else if (w != NIL) {
+                    setRed(w, isRed(p));
+                    setRed(p, false);
+                    setRed(right(w), false);
+                    rrRotation(p);
+                    x = root;
+                }
+
+                //Case 5: x does not have a sibling
+                else {
+                    break;
+                }
+
+            }
+
+            else {
+
+                w = left(p);
+
+                //Case 1: x has a red sibling
+                if (w != NIL && isRed(w)) {
+                    setRed(w, false);
+                    setRed(p, true);
+                    llRotation(p);
+                    w = left(p);
+                }
+
+                //Case 2: x's sibling is black, and the sibling has 2 black children
+                if (w != NIL && isBlack(left(w)) && isBlack(right(w))) {
+                    setRed(w, true);
+                    x = p;
+                    p = parent(x);
+                }
+
+                //Case 3: x's sibling is black, and the sibling's right child is red and left child is black
+                else if (w != NIL && isBlack(left(w))) {
+                    setRed(right(w), false);
+                    setRed(w, true);
+                    rrRotation(w);
+                    w = left(p);
+                }
+
+                //Case 4: x's sibling is black, and the sibling's left child is red
+                else if (w != NIL) {
+                    setRed(w, isRed(p));
+                    setRed(p, false);
+                    setRed(left(w), false);
+                    llRotation(p);
+                    x = root;
+                }
+
+                //Case 5: x does not have a sibling
+                else {
+                    break;
+                }
+
+            }
+
+        }
+
+        if (x != NIL) {
+            setRed(x, false);
+        }
+    }
+
+
+    //Rotations
+
+    /**
+     * Perform a left single rotation
+     */
+    private void llRotation(int x) {
+        metrics.llRotation();
+        llRotate(x);
+    }
+
+    /**
+     * Perform a left double rotation
+     */
+    private void lrRotation(int x) {
+        metrics.lrRotation();
+        rrRotate(left(x));
+        llRotate(x);
+    }
+
+    /**
+     * Perform a right single rotation
+     */
+    private void rrRotation(int x) {
+        metrics.rrRotation();
+        rrRotate(x);
+    }
+
+    /**
+     * Perform a right double rotation
+     */
+    private void rlRotation(int x) {
+        metrics.rlRotation();
+        llRotate(right(x));
+        rrRotate(x);
+    }
+
+    /**
+     * Rotate the left child of x up without counting the rotation.
+     */
+    private void llRotate(int x) {
+
+        int tmp = left(x);      //Store the node that will be rotated temporarily
+        int moved = right(tmp); //The child that changes sides
+
+        setLeft(x, moved);      //Move the child to its new position
+
+        if (moved != NIL) {
+            //If the child exists, update its parent
+            setParent(moved, x);
+        }
+
+        //tmp takes the place of x below its parent
+        transplant(x, tmp);
+
+        //Put x in its new position
+        setRight(tmp, x);
+        setParent(x, tmp);
+
+        //tmp now roots the whole subtree, and x only its part of it
+        setSize(tmp, sizeOf(x));
+        setSize(x, size(moved) + size(right(x)) + copiesOf(x));
+
+    }
+
+    /**
+     * Rotate the right child of x up without counting the rotation.
+     */
+    private void rrRotate(int x) {
+
+        int tmp = right(x);     //Store the node that will be rotated temporarily
+        int moved = left(tmp);  //The child that changes sides
+
+        setRight(x, moved);     //Move the child to its new position
+
+        if (moved != NIL) {
+            //If the child exists, update its parent
+            setParent(moved, x);
+        }
+
+        //tmp takes the place of x below its parent
+        transplant(x, tmp);
+
+        //Put x in its new position
+        setLeft(tmp, x);
+        setParent(x, tmp);
+
+        //tmp now roots the whole subtree, and x only its part of it
+        setSize(tmp, sizeOf(x));
+        setSize(x, size(left(x)) + size(moved) + copiesOf(x));
+
+    }
+
+
+    //Reading
+
+    /**
+     * Get the key stored in a node.
+     * @param x The handle of the node.
+     * @return The key value of the node.
+     */
+    public int key(int x) {
+        checkOpen();
+        return keyOf(x);
+    }
+
+    /**
+     * Pass every key k with lo <= k <= hi to an action, in ascending order, once for every copy.
+     * Takes O(log n + k) time: the least key in range is found from the root, and each following key is reached
+     * through the parent links, so no stack is needed.
+     * @param lo The least value in the range.
+     * @param hi The largest value in the range.
+     * @param action Called with each key in the range.
+     */
+    public void forEachInRange(int lo, int hi, IntConsumer action) {
+        checkOpen();
+
+        // Find the first node in order that is not smaller than lo
+        int first = NIL;
+        for (int x = root; x != NIL; ) {
+            if (compare('<', keyOf(x), lo)) {
+                x = right(x);
+            }
+            else {
+                first = x;
+                x = left(x);
+            }
+        }
+
+        for (int x = first; x != NIL; x = successor(x)) {
+            int k = keyOf(x);
+
+            if (compare('>', k, hi)) {
+                return;
+            }
+
+            for (int i = copiesOf(x); i > 0; i--) {
+                action.accept(k);
+            }
+        }
+    }
+
+    /**
+     * Find the node that follows x in order.
+     * @return The handle of the next node, NIL if x holds the largest key.
+     */
+    private int successor(int x) {
+        if (right(x) != NIL) {
+            x = right(x);
+            while (left(x) != NIL) {
+                x = left(x);
+            }
+            return x;
+        }
+
+        // Climb until x is in the left subtree of its parent
+        int p = parent(x);
+        while (p != NIL && x == right(p)) {
+            x = p;
+            p = parent(x);
+        }
+        return p;
+    }
+
+    /**
+     * Get the height of the tree. The tree is walked through the parent links, so no stack is needed.
+     * @return The height of the tree, -1 when it is empty.
+     */
+    public int height() {
+        checkOpen();
+
+        int height = -1;
+        int depth = 0;
+        int from = NIL;     // The node the walk came from
+        int x = root;
+
+        while (x != NIL) {
+            int p = parent(x);
+            int to;
+
+            if (from == p) {
+                // Arrived from above: go down the left subtree first, then the right one
+                height = Math.max(height, depth);
+                to = (left(x) != NIL) ? left(x) : (right(x) != NIL) ? right(x) : p;
+            }
+            else if (from == left(x) && right(x) != NIL) {
+                // Back from the left subtree
+                to = right(x);
+            }
+            else {
+                // Back from the last subtree
+                to = p;
+            }
+
+            depth += (to == p) ? -1 : 1;
+            from = x;
+            x = to;
+        }
+
+        return height;
+    }
+
+    /**
+     * Counts the number of nodes in the tree. In a multiset this is the number of distinct keys.
+     * @return The number of nodes in the tree.
+     */
+    public int countNodes() {
+        checkOpen();
+        return count;
+    }
+
+
+    //Order statistics
+
+    /**
+     * Get the number of keys in the tree, which every node keeps up to date.
+     * Every copy of a key counts, also in a multiset.
+     * @return The number of keys in the tree.
+     */
+    public int size() {
+        checkOpen();
+        return size(root);
+    }
+
+    /**
+     * Count the keys that are smaller than a given value.
+     * @param n The value.
+     * @return The number of keys less than n, which is the position n has or would have in sorted order.
+     */
+    public int rank(int n) {
+        checkOpen();
+        return countBelow(n, false);
+    }
+
+    /**
+     * Find the key at a given position in sorted order.
+     * @param k The position, starting from 0 for the least key.
+     * @return The k-th smallest key.
+     */
+    public int select(int k) {
+
+        if (k < 0 || k >= size()) {
+            throw new IndexOutOfBoundsException("Index " + k + " out of bounds for size " + size());
+        }
+
+        int x = root;
+
+        while (true) {
+
+            int leftSize = size(left(x));
+
+            if (k < leftSize) {
+                // The key is in the left subtree
+                x = left(x);
+            }
+            else if (k < leftSize + copiesOf(x)) {
+                // This is the requested key
+                return keyOf(x);
+            }
+            else {
+                // Skip the left subtree and this node
+                k -= leftSize + copiesOf(x);
+                x = right(x);
+            }
+
+        }
+    }
+
+    /**
+     * Count the copies of a key.
+     * @param n The key.
+     * @return The number of times n is in the tree, 0 if it is not.
+     */
+    public int count(int n) {
+        if (duplicates == Duplicates.COUNTED) {
+            int x = search(n);
+            return (x == NIL) ? 0 : copiesOf(x);
+        }
+
+        // The copies are in separate nodes
+        return countInRange(n, n);
+    }
+
+    /**
+     * Count the keys in a range.
+     * @param lo The least value in the range.
+     * @param hi The largest value in the range.
+     * @return The number of keys k with lo <= k <= hi.
+     */
+    public int countInRange(int lo, int hi) {
+        checkOpen();
+
+        if (lo > hi) {
+            return 0;
+        }
+
+        return countBelow(hi, true) - countBelow(lo, false);
+    }
+
+    /**
+     * Count the keys that are smaller than n, or not larger than n if inclusive is set.
+     */
+    private int countBelow(int n, boolean inclusive) {
+
+        int x = root;
+        int count = 0;
+
+        while (x != NIL) {
+
+            if (inclusive ? !compare('>', keyOf(x), n) : compare('<', keyOf(x), n)) {
+                // This node and its left subtree are below n
+                count += size(left(x)) + copiesOf(x);
+                x = right(x);
+            }
+            else {
+                x = left(x);
+            }
+
+        }
+
+        return count;
+    }
+
+
+    /**
+     * Compare two keys once, for callers that need to tell all three outcomes apart.
+     * Counts as one comparison unless the tree was created with Comparison.RAW.
+     * @return A negative number, zero or a positive number as n1 is less than, equal to or greater than n2.
+     */
+    private int compare(int n1, int n2) {
+        return comparison.compare(n1, n2, metrics);
+    }
+
+    /**
+     * Used instead of <, >, and == operators, counting the number of times it was called
+     * unless the tree was created with Comparison.RAW.
+     * @return boolean value
+     */
+    private boolean compare(char op, int n1, int n2) {
+        int c = compare(n1, n2);
+
+        switch (op) {
+            case '<':
+                return c < 0;
+
+            case '>':
+                return c > 0;
+
+            default:
+                return c == 0;
+        }
+    }
+
+
+    /**
+     * Get the comparison, rotation, recolouring and allocation counters of this tree.
+     * @return The metrics of the tree.
+     */
+    public TreeMetrics metrics() {
+        checkOpen();
+        return metrics;
+    }
+
+
+    /**
+     * Print out the contents of the tree.
+     * Prints "(key, R/B, left.key, right.key)" for each node.
+     * Used for debugging purposes.
+     */
+    public void print(){
+        checkOpen();
+
+        if (root != NIL) {
+            print(root);
+        }
+    }
+
+    private void print(int x) {
+        System.out.print("(" + keyOf(x) + ", " + (isRed(x) ? "R":"B") + ", ");
+        System.out.print((left(x) == NIL ? "-" : String.valueOf(keyOf(left(x)))) + ", ");
+        System.out.print((right(x) == NIL ? "-" : String.valueOf(keyOf(right(x)))) + ")");
+        System.out.println(parent(x) == NIL ? " (root)" : " (" + keyOf(parent(x)) + ")");
+
+        if (left(x) != NIL) {
+            print(left(x));
+        }
+        if (right(x) != NIL) {
+            print(right(x));
+        }
+    }
+
+}
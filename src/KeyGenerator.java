@@ -0,0 +1,276 @@
+import java.util.SplittableRandom;
+
+/**
+ * Produces a stream of indices in [0, n) following a chosen distribution.
+ * Used by the benchmarks to decide which key to operate on next.
+ */
+public abstract class KeyGenerator {
+
+    final int n;    // The number of distinct indices
+
+
+    KeyGenerator(int n) {
+        this.n = n;
+    }
+
+
+    /**
+     * Get the next index.
+     * @return An index in [0, n).
+     */
+    public abstract int next();
+
+
+    /**
+     * Create a generator by name.
+     * @param name One of "uniform", "sequential", "reverse", "zipfian" or "hotspot".
+     * @param n The number of distinct indices.
+     * @param seed The random seed.
+     * @return The generator.
+     */
+    public static KeyGenerator of(String name, int n, long seed) {
+        switch (name) {
+            case "uniform":
+                return uniform(n, seed);
+            case "sequential":
+                return sequential(n);
+            case "reverse":
+                return reverse(n);
+            case "zipfian":
+                return zipfian(n, 0.99, seed);
+            case "hotspot":
+                return hotspot(n, 0.2, 0.8, seed);
+            default:
+                throw new IllegalArgumentException("Unknown distribution: " + name);
+        }
+    }
+
+    /**
+     * Every index is equally likely.
+     */
+    public static KeyGenerator uniform(int n, long seed) {
+        SplittableRandom rnd = new SplittableRandom(seed);
+
+        return new KeyGenerator(n) {
+            public int next() {
+                return rnd.nextInt(n);
+            }
+        };
+    }
+
+    /**
+     * Indices in ascending order, starting again from 0 after n-1.
+     */
+    public static KeyGenerator sequential(int n) {
+        return new KeyGenerator(n) {
+            int i = 0;
+
+            public int next() {
+                int next = i;
+                i = (i + 1 == n) ? 0 : i + 1;
+                return next;
+            }
+        };
+    }
+
+    /**
+     * Indices in descending order, starting again from n-1 after 0.
+     */
+    public static KeyGenerator reverse(int n) {
+        return new KeyGenerator(n) {
+            int i = n - 1;
+
+            public int next() {
+                int next = i;
+                i = (i == 0) ? n - 1 : i - 1;
+                return next;
+            }
+        };
+    }
+
+    /**
+     * A fraction of the indices, the lowest ones, receives a fixed fraction of the requests.
+     * Both the hot and the cold indices are chosen uniformly within their own part.
+     * @param n The number of distinct indices.
+     * @param hotFraction The fraction of the indices that are hot, e.g. 0.2.
+     * @param hotRequests The fraction of the requests that go to a hot index, e.g. 0.8.
+     * @param seed The random seed.
+     * @return The generator.
+     */
+    public static KeyGenerator hotspot(int n, double hotFraction, double hotRequests, long seed) {
+        SplittableRandom rnd = new SplittableRandom(seed);
+        int hot = Math.max(1, Math.min(n, (int) (n * hotFraction)));
+
+        return new KeyGenerator(n) {
+            public int next() {
+                if (hot == n || rnd.nextDouble() < hotRequests) {
+                    return rnd.nextInt(hot);
+                }
+                return hot + rnd.nextInt(n - hot);
+            }
+        };
+    }
+
+    /**
+     * Index i is chosen with probability proportional to 1/(i+1)^exponent, so low indices are hot.
+     * Uses rejection-inversion sampling (Hormann and Derflinger), which needs no precomputed tables.
+     */
+    public static KeyGenerator zipfian(int n, double exponent, long seed) {
+        return new Zipf(n, exponent, seed);
+    }
+
+
+    /**
+     * Rejection-inversion sampler for the Zipf distribution, from W. Hormann and G. Derflinger,
+     * "Rejection-inversion to generate variates from monotone discrete distributions", ACM TOMACS 6(3), 1996.
+     *
+     * Adapted from RejectionInversionZipfSampler in Apache Commons RNG, licensed under the Apache License 2.0.
+     * h(x) is the unnormalised density 1/x^exponent, hIntegral is an antiderivative of it, and a sample is
+     * taken by inverting hIntegral at a uniform point and accepting the nearest integer if it falls under h.
+     */
+    private static final class Zipf extends KeyGenerator {
+
+        private final SplittableRandom rnd;
+        private final double exponent;
+        private final double hIntegralX1;
+        private final double hIntegralN;
+        private final double s;
+
+        Zipf(int n, double exponent, long seed) {
+            super(n);
+            this.rnd = new SplittableRandom(seed);
+            this.exponent = exponent;
+            this.hIntegralX1 = hIntegral(1.5) - 1.0;
+            this.hIntegralN = hIntegral(n + 0.5);
+            this.s = 2.0 - hIntegralInverse(hIntegral(2.5) - h(2.0));
+        }
+
+        public int next() {
+            while (true) {
+                double u = hIntegralN + rnd.nextDouble() * (hIntegralX1 - hIntegralN);
+                double x = hIntegralInverse(u);
+                int k = (int) (x + 0.5);
+
+                if (k < 1) {
+                    k = 1;
+                }
+                else if (k > n) {
+                    k = n;
+                }
+
+                if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                    return k - 1;
+                }
+            }
+        }
+
+        private double h(double x) {
+            return Math.exp(-exponent * Math.log(x));
+        }
+
+        private double hIntegral(double x) {
+            double logX = Math.log(x);
+            return expm1OverX((1.0 - exponent) * logX) * logX;
+        }
+
+        private double hIntegralInverse(double x) {
+            double t = x * (1.0 - exponent);
+            if (t < -1.0) {
+                t = -1.0;
+            }
+            return Math.exp(log1pOverX(t) * x);
+        }
+
+        // log(1+x)/x, accurate near 0
+        private static double log1pOverX(double x) {
+            if (Math.abs(x) > 1e-8) {
+                return Math.log1p(x) / x;
+            }
+            return 1.0 - x * (0.5 - x * (1.0 / 3.0 - 0.25 * x));
+        }
+
+        // (exp(x)-1)/x, accurate near 0
+        private static double expm1OverX(double x) {
+            if (Math.abs(x) > 1e-8) {
+                return Math.expm1(x) / x;
+            }
+            return 1.0 + x * 0.5 * (1.0 + x * (1.0 / 3.0) * (1.0 + 0.25 * x));
+        }
+    }
+
+
+    /**
+     * Maps 0..n-1 to n distinct pseudo-random values in [0, 2^30), without storing a set.
+     * The mixing steps are each invertible on 30 bits, so different indices never collide.
+     * @param i The index.
+     * @param seed The random seed.
+     * @return A value in [0, 2^30).
+     */
+    public static int scramble(int i, long seed) {
+        final int mask = (1 << 30) - 1;
+        int x = (i ^ (int) seed) & mask;
+
+        x = (x * 0x2C1B3C6D + (int) (seed >>> 32)) & mask;
+        x ^= x >>> 15;
+        x = (x * 0x297A2D39) & mask;
+        x ^= x >>> 13;
+        x = (x * 0x0B4B82E5) & mask;
+        x ^= x >>> 16;
+
+        return x;
+    }
+
+
+    /**
+     * Draw distinct values from a range in a random order, in O(count) time and without a set.
+     * The i-th value is the image of i under a pseudo-random permutation of the range, so no value can repeat
+     * however close count is to the size of the range.
+     * @param count The number of values.
+     * @param min The least value that may be drawn.
+     * @param max The largest value that may be drawn.
+     * @param seed The random seed.
+     * @return The values.
+     */
+    public static int[] distinct(int count, int min, int max, long seed) {
+        long range = (long) max - min + 1;
+
+        if (count < 0 || range <= 0 || count > range) {
+            throw new IllegalArgumentException("Cannot draw " + count + " distinct values from [" + min + ", " + max + "]");
+        }
+
+        // The permutation works on whole bits, values outside the range are mapped again until they fall inside.
+        // The range is more than half of 2^bits, so this takes fewer than two steps on average
+        int bits = Math.max(1, 64 - Long.numberOfLeadingZeros(range - 1));
+        int[] values = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            long x = permute(i, bits, seed);
+            while (x >= range) {
+                x = permute(x, bits, seed);
+            }
+            values[i] = (int) (min + x);
+        }
+
+        return values;
+    }
+
+    /**
+     * A pseudo-random permutation of [0, 2^bits), for up to 33 bits.
+     * Like scramble, every step is invertible on the given number of bits.
+     */
+    static long permute(long x, int bits, long seed) {
+        final long mask = (1L << bits) - 1;
+        final int shift = (bits + 1) / 2;
+
+        x = (x ^ seed) & mask;
+        x = (x * 0x2C1B3C6DL + (seed >>> 32)) & mask;
+        x ^= x >>> shift;
+        x = (x * 0x297A2D39L) & mask;
+        x ^= x >>> shift;
+        x = (x * 0x0B4B82E5L) & mask;
+        x ^= x >>> shift;
+
+        return x;
+    }
+
+}
@@ -0,0 +1,147 @@
+import java.util.Arrays;
+
+/**
+ * Counts recorded values, such as latencies in nanoseconds, in buckets whose width grows with the value.
+ *
+ * Values below 128 each have their own bucket. Above that, every power of two is split into 64 buckets,
+ * so a percentile is reported within 1.6% of the true value whatever its size. The histogram is a
+ * fixed array of counts: recording allocates nothing and takes a few instructions. It is not thread safe,
+ * give each thread its own histogram and merge them with add().
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;                   // Buckets per power of two, as bits
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;    // Buckets per power of two
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total;     // The number of recorded values
+    private long sum;       // The sum of the recorded values
+    private long max;       // The largest recorded value
+
+
+    //Recording
+
+    /**
+     * Record a value. Negative values are recorded as 0.
+     * @param value The value.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts[index(value)]++;
+        total++;
+        sum += value;
+
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Add every value recorded by another histogram to this one.
+     * @param other The other histogram.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+
+        total += other.total;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Forget every recorded value.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        total = 0;
+        sum = 0;
+        max = 0;
+    }
+
+
+    //Buckets
+
+    /**
+     * The bucket of a value. Keeps the top 7 bits of the value, the leading one and 6 more.
+     */
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int shift = 64 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS + 1);
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * The largest value that falls in a bucket.
+     */
+    private static long highestValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+
+    //Reading
+
+    /**
+     * Get the number of recorded values.
+     * @return The count.
+     */
+    public long count() {
+        return total;
+    }
+
+    /**
+     * Get the largest recorded value, exactly.
+     * @return The largest value, or 0 if nothing was recorded.
+     */
+    public long max() {
+        return max;
+    }
+
+    /**
+     * Get the mean of the recorded values, exactly.
+     * @return The mean, or 0 if nothing was recorded.
+     */
+    public double mean() {
+        return (total == 0) ? 0 : (double) sum / total;
+    }
+
+    /**
+     * Find the value that a given percentage of the recorded values are not larger than.
+     * @param percent The percentage, from 0 to 100.
+     * @return The upper end of the bucket holding that value, or 0 if nothing was recorded.
+     */
+    public long percentile(double percent) {
+        if (total == 0) {
+            return 0;
+        }
+
+        // The rank of the value, counting from 1
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max);
+            }
+        }
+
+        return max;
+    }
+
+}
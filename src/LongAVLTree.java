@@ -0,0 +1,1913 @@
+import java.lang.Math;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.LongConsumer;
+
+/**
+ * An AVLTree with long keys. The algorithms are the same as in AVLTree, with the key stored unboxed
+ * in each node and empty nodes marked by a negative height.
+ * Generated from AVLTree by TreeVariants. Change AVLTree and run java TreeVariants instead of editing this file.
+ */
+public class LongAVLTree {
+
+    Shared shared;  // State shared by every node in the tree
+
+    int height;     // The height of the tree/subtree, or its rank when rebalancing is WAVL
+    int size;       // The number of keys in the tree/subtree, counting every copy
+    int count;      // The number of copies of the key held by this node, 1 unless the tree is a multiset
+
+    LongAVLTree left;   // The left subtree
+    LongAVLTree right;  // The right subtree
+    long key;           // The key value of the node, unused while the node is empty
+
+
+    /*
+     * State that belongs to a whole tree rather than to a single node.
+     */
+    static final class Shared {
+
+        final TreeMetrics metrics = new TreeMetrics();  // Counters for the work done by the tree
+        final Comparison comparison;                    // How keys are compared
+        final AVLTree.Rebalancing rebalancing;          // How the tree is kept balanced
+        final Duplicates duplicates;                    // How repeated keys are stored
+        final TreeProfile profile = TreeProfile.ENABLED ? new TreeProfile("long-avl") : null;
+
+        LongAVLTree[] path = new LongAVLTree[32];  // Reusable stack of the nodes on the current path
+
+
+        Shared(Comparison comparison, AVLTree.Rebalancing rebalancing, Duplicates duplicates) {
+            this.comparison = comparison;
+            this.rebalancing = rebalancing;
+            this.duplicates = duplicates;
+        }
+
+
+        /**
+         * Store a node on the path stack, growing the stack if it is full.
+         * @param depth The position of the node on the stack.
+         * @param node The node.
+         */
+        void push(int depth, LongAVLTree node) {
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, depth * 2);
+            }
+            path[depth] = node;
+        }
+    }
+
+
+    /**
+     * Creates an empty node with no key value.
+     */
+    public LongAVLTree() {
+        this(Comparison.COUNTING);
+    }
+
+    /**
+     * Creates an empty tree that compares keys in a given way.
+     * @param comparison COUNTING to count every comparison in metrics(), RAW for the fastest comparisons.
+     */
+    public LongAVLTree(Comparison comparison) {
+        this(comparison, AVLTree.Rebalancing.AVL);
+    }
+
+    /**
+     * Creates an empty tree that compares keys and rebalances in given ways.
+     * @param comparison COUNTING to count every comparison in metrics(), RAW for the fastest comparisons.
+     * @param rebalancing AVL for strict height balance, WAVL for fewer rotations on delete.
+     */
+    public LongAVLTree(Comparison comparison, AVLTree.Rebalancing rebalancing) {
+        this(comparison, rebalancing, Duplicates.NODES);
+    }
+
+    /**
+     * Creates an empty tree that compares keys, rebalances and stores repeated keys in given ways.
+     * @param comparison COUNTING to count every comparison in metrics(), RAW for the fastest comparisons.
+     * @param rebalancing AVL for strict height balance, WAVL for fewer rotations on delete.
+     * @param duplicates NODES to store every copy of a key in its own node, COUNTED for a multiset.
+     */
+    public LongAVLTree(Comparison comparison, AVLTree.Rebalancing rebalancing, Duplicates duplicates) {
+        this(new Shared(comparison, rebalancing, duplicates));
+    }
+
+    /**
+     * Creates an empty node belonging to an existing tree.
+     * @param shared The state of the tree.
+     */
+    private LongAVLTree(Shared shared) {
+        this.shared = shared;
+        this.left = null;
+        this.right = null;
+        this.key = 0;
+
+        this.height = -1;
+        this.size = 0;
+        this.count = 0;
+
+        shared.metrics.allocation();
+    }
+
+    /**
+     * Creates an initialised node with a given key value.
+     * @param key The key value of the node.
+     */
+    public LongAVLTree(long key) {
+        this();
+        this.left = new LongAVLTree(shared);
+        this.right = new LongAVLTree(shared);
+        this.key = key;
+
+        this.height = 0;
+        this.size = 1;
+        this.count = 1;
+    }
+
+
+    //Binary search Tree implementation
+
+
+    /**
+     * Search the tree for a given key value.
+     * @param n The key value to search for.
+     * @return The node with the key value or null if the value is not in the tree.
+     */
+    public LongAVLTree search(long n) {
+
+        if (TreeProfile.ENABLED) {
+            long start = shared.profile.begin();
+            LongAVLTree x = searchKey(n);
+            shared.profile.end(TreeProfile.SEARCH, start, n);
+            return x;
+        }
+
+        return searchKey(n);
+    }
+
+    /**
+     * Search the tree for a given key value.
+     * @param n The key value to search for.
+     * @return True if the value is in the tree.
+     */
+    public boolean contains(long n) {
+        return search(n) != null;
+    }
+
+    private LongAVLTree searchKey(long n) {
+
+        LongAVLTree x = this;
+
+        // If a node has no value,
+        // then the entire tree has been searched and the value was not found
+        while (!x.isEmpty()) {
+
+            int c = compare(n, x.key);
+
+            if (c == 0) {
+                // This is the requested node
+                return x;
+            }
+
+            else if (c < 0) {
+                // The key is in the left subtree
+                x = x.left;
+            }
+
+            else {
+                // The key is in the right subtree
+                x = x.right;
+            }
+
+        }
+
+        return null;
+
+    }
+
+
+    /**
+     * Insert a new key value into the tree.
+     * @param n The value to be inserted.
+     */
+    public void insert(long n) {
+
+        if (TreeProfile.ENABLED) {
+            long start = shared.profile.begin();
+            insertKey(n);
+            shared.profile.end(TreeProfile.INSERT, start, n);
+            return;
+        }
+
+        insertKey(n);
+    }
+
+    private void insertKey(long n) {
+
+        LongAVLTree x = this;
+        int depth = 0;
+
+        // Walk down to an empty node, remembering the path
+        while (!x.isEmpty()) {
+
+            int c = compare(n, x.key);
+
+            if (c == 0 && shared.duplicates == Duplicates.COUNTED) {
+                // A multiset keeps every copy of n in this node, so only the sizes change
+                addCopies(x, depth, 1);
+                return;
+            }
+
+            shared.push(depth++, x);
+
+            if (c < 0) {
+                //Add the key to left subtree
+                x = x.left;
+            }
+            else {
+                //Add the key to right subtree
+                x = x.right;
+            }
+        }
+
+        //This node has no value, add the key here
+        x.key = n;
+        x.height = 0;
+        x.size = 1;
+        x.count = 1;
+        x.left = new LongAVLTree(shared);
+        x.right = new LongAVLTree(shared);
+
+        if (TreeProfile.ENABLED) {
+            shared.profile.pathLength = depth;
+        }
+
+        //Balance the tree
+        if (shared.rebalancing == AVLTree.Rebalancing.WAVL) {
+            rebalanceInsertRanks(x, depth);
+        }
+        else {
+            rebalancePath(depth);
+        }
+    }
+
+
+    /**
+     * Remove a key from the tree.
+     * @param n The key to be removed.
+     */
+    public void delete(long n) {
+
+        if (TreeProfile.ENABLED) {
+            long start = shared.profile.begin();
+            deleteKey(n);
+            shared.profile.end(TreeProfile.DELETE, start, n);
+            return;
+        }
+
+        deleteKey(n);
+    }
+
+    private void deleteKey(long n) {
+
+        LongAVLTree x = this;
+        int depth = 0;
+
+        // Find the node holding n, remembering the path
+        while (true) {
+
+            if (x.isEmpty()) {
+                //n is not in the tree
+                return;
+            }
+
+            int c = compare(x.key, n);
+
+            if (c == 0) {
+                //This is the key to be removed
+                break;
+            }
+
+            shared.push(depth++, x);
+
+            if (c < 0) {
+                // The required key is in the right subtree
+                x = x.right;
+            }
+            else {
+                // The required key is in the left subtree
+                x = x.left;
+            }
+
+        }
+
+        if (x.count > 1) {
+            // A multiset node with other copies of n stays in the tree
+            addCopies(x, depth, -1);
+            return;
+        }
+
+        // Find the node that will be removed from the bottom of the tree
+        LongAVLTree y = x;
+
+        if (!x.left.isEmpty()) {
+            //Replace it with the largest key from the left subtree
+            shared.push(depth++, x);
+            y = x.left;
+
+            while (!y.right.isEmpty()) {
+                shared.push(depth++, y);
+                y = y.right;
+            }
+        }
+
+        else if (!x.right.isEmpty()) {
+            //Replace it with the least key from the right subtree
+            shared.push(depth++, x);
+            y = x.right;
+
+            while (!y.left.isEmpty()) {
+                shared.push(depth++, y);
+                y = y.left;
+            }
+        }
+
+        x.key = y.key;
+        x.count = y.count;
+
+        // y has at most one child, which must be a leaf. Move it up into y
+        LongAVLTree child = !y.left.isEmpty() ? y.left : y.right;
+
+        y.key = child.key;
+        y.height = child.height;
+        y.size = child.size;
+        y.count = child.count;
+        y.left = child.left;
+        y.right = child.right;
+
+        if (TreeProfile.ENABLED) {
+            shared.profile.pathLength = depth;
+        }
+
+        // Balance the tree
+        if (shared.rebalancing == AVLTree.Rebalancing.WAVL) {
+            rebalanceDeleteRanks(y, depth);
+        }
+        else {
+            rebalancePath(depth);
+        }
+    }
+
+
+    /**
+     * Balance the nodes stored on the path stack, from the bottom up.
+     * Stops balancing as soon as a node keeps its height, since no height above it can have changed.
+     * The sizes of the remaining nodes are still updated.
+     * @param depth The number of nodes on the path stack.
+     */
+    private void rebalancePath(int depth) {
+        LongAVLTree[] path = shared.path;
+
+        while (depth > 0) {
+            LongAVLTree x = path[--depth];
+            int oldHeight = x.height;
+
+            x.balance();
+
+            if (x.height == oldHeight) {
+                break;
+            }
+        }
+
+        while (depth > 0) {
+            path[--depth].adjustSize();
+        }
+    }
+
+    /**
+     * Change the number of copies held by a node of a multiset, and the sizes of the subtrees holding it.
+     * The shape of the tree does not change.
+     * @param x The node.
+     * @param depth The number of nodes on the path stack, which are the ancestors of x.
+     * @param copies The number of copies to add, negative to remove copies.
+     */
+    private void addCopies(LongAVLTree x, int depth, int copies) {
+        LongAVLTree[] path = shared.path;
+
+        x.count += copies;
+        x.size += copies;
+
+        while (depth > 0) {
+            path[--depth].size += copies;
+        }
+    }
+
+    /**
+     * Restore the rank rule after an insertion into a WAVL tree, working up the path stack.
+     * A node with a child of the same rank is promoted while its other child is one rank below it,
+     * otherwise one single or double rotation ends the repair, exactly as in an AVL tree.
+     * @param x The new leaf.
+     * @param depth The number of nodes on the path stack, which are the ancestors of x.
+     */
+    private void rebalanceInsertRanks(LongAVLTree x, int depth) {
+        LongAVLTree[] path = shared.path;
+
+        while (depth > 0) {
+            LongAVLTree p = path[depth - 1];
+
+            if (p.height != x.height) {
+                // x is a 1-child, so no rank above it changes
+                break;
+            }
+
+            depth--;
+            LongAVLTree s = (x == p.left) ? p.right : p.left;  // The sibling of x
+
+            if (p.height - s.height == 1) {
+                // Promote p, which may leave it with the same rank as its own parent
+                p.height++;
+                p.adjustSize();
+                x = p;
+                continue;
+            }
+
+            // The sibling is a 2-child: rotate x up, or its inner child if that is the higher one
+            int rp = p.height;
+            int rx = x.height;
+
+            if (x == p.left) {
+                if (rx - x.right.height == 2) {
+                    p.llRotation();
+                    p.height = rx;
+                }
+                else {
+                    int ry = x.right.height;
+                    p.lrRotation();
+                    p.height = ry + 1;
+                    p.left.height = rx - 1;
+                }
+                p.right.height = rp - 1;
+            }
+            else {
+                if (rx - x.left.height == 2) {
+                    p.rrRotation();
+                    p.height = rx;
+                }
+                else {
+                    int ry = x.left.height;
+                    p.rlRotation();
+                    p.height = ry + 1;
+                    p.right.height = rx - 1;
+                }
+                p.left.height = rp - 1;
+            }
+
+            break;
+        }
+
+        while (depth > 0) {
+            path[--depth].adjustSize();
+        }
+    }
+
+    /**
+     * Restore the rank rule after a deletion from a WAVL tree, working up the path stack.
+     * Demotions move up the path while the removed position leaves a child three ranks below its parent,
+     * and at most one single or double rotation ends the repair.
+     * @param x The node now in the position that lost a key, possibly empty.
+     * @param depth The number of nodes on the path stack, which are the ancestors of x.
+     */
+    private void rebalanceDeleteRanks(LongAVLTree x, int depth) {
+        LongAVLTree[] path = shared.path;
+
+        if (depth > 0) {
+            LongAVLTree p = path[depth - 1];
+
+            if (p.left.isEmpty() && p.right.isEmpty() && p.height == 1) {
+                // p lost its only child and is now a leaf, which must have rank 0
+                p.height = 0;
+                p.adjustSize();
+                x = p;
+                depth--;
+            }
+        }
+
+        while (depth > 0) {
+            LongAVLTree p = path[depth - 1];
+
+            if (p.height - x.height != 3) {
+                // x is a 1-child or a 2-child, so no rank above it changes
+                break;
+            }
+
+            depth--;
+            LongAVLTree y = (x == p.left) ? p.right : p.left;  // The sibling of x, never empty here
+
+            if (p.height - y.height == 2) {
+                // Demote p, which may leave it three ranks below its own parent
+                p.height--;
+                p.adjustSize();
+                x = p;
+                continue;
+            }
+
+            if (y.height - y.left.height == 2 && y.height - y.right.height == 2) {
+                // Both children of the sibling are 2-children, so it can be demoted along with p
+                y.height--;
+                p.height--;
+                p.adjustSize();
+                x = p;
+                continue;
+            }
+
+            // Rotate the sibling up, or its inner child if the outer one is a 2-child
+            int rp = p.height;
+            int ry = y.height;
+
+            if (x == p.left) {
+                if (ry - y.right.height == 1) {
+                    p.rrRotation();
+                    p.height = ry + 1;
+                    // p's old key is now on the left, and a leaf there must have rank 0
+                    p.left.height = (p.left.left.isEmpty() && p.left.right.isEmpty()) ? 0 : rp - 1;
+                }
+                else {
+                    int rv = y.left.height;
+                    p.rlRotation();
+                    p.height = rv + 2;
+                    p.left.height = rp - 2;
+                    p.right.height = ry - 1;
+                }
+            }
+            else {
+                if (ry - y.left.height == 1) {
+                    p.llRotation();
+                    p.height = ry + 1;
+                    // p's old key is now on the right, and a leaf there must have rank 0
+                    p.right.height = (p.right.left.isEmpty() && p.right.right.isEmpty()) ? 0 : rp - 1;
+                }
+                else {
+                    int rv = y.right.height;
+                    p.lrRotation();
+                    p.height = rv + 2;
+                    p.right.height = rp - 2;
+                    p.left.height = ry - 1;
+                }
+            }
+
+            break;
+        }
+
+        while (depth > 0) {
+            path[--depth].adjustSize();
+        }
+    }
+
+    /**
+     * Find the largest key value in the tree.
+     */
+    public long findMax() {
+
+        // Find the rightmost value
+        LongAVLTree x = this;
+
+        while (!x.right.isEmpty()) {
+            x = x.right;
+        }
+
+        return x.key;
+
+    }
+
+    /**
+     * Find the least value in the tree.
+     */
+    public long findMin() {
+
+        // Find the leftmost value.
+        LongAVLTree x = this;
+
+        while (!x.left.isEmpty()) {
+            x = x.left;
+        }
+
+        return x.key;
+
+    }
+
+
+    //Bulk construction
+
+    // Below this many keys a subtree is built on the current thread
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+
+
+    /**
+     * Build a perfectly balanced tree from keys that are already sorted, in linear time.
+     * No comparisons or rotations are needed.
+     * @param keys The keys, in ascending order.
+     * @return The new tree.
+     */
+    public static LongAVLTree fromSorted(long[] keys) {
+        LongAVLTree tree = new LongAVLTree();
+        tree.build(keys, 0, keys.length);
+        return tree;
+    }
+
+    /**
+     * Build a perfectly balanced tree from keys in any order.
+     * The keys are sorted in parallel and the subtrees are built in parallel with fork-join.
+     * @param keys The keys. The array is not modified.
+     * @return The new tree.
+     */
+    public static LongAVLTree fromUnsortedParallel(long[] keys) {
+        long[] sorted = keys.clone();
+        Arrays.parallelSort(sorted);
+
+        LongAVLTree tree = new LongAVLTree();
+        ForkJoinPool.commonPool().invoke(new BuildTask(tree, sorted, 0, sorted.length));
+        return tree;
+    }
+
+    /**
+     * Fill this empty node with a balanced subtree holding keys[lo..hi).
+     * The middle key is placed here, so the two subtrees differ in size by at most one.
+     */
+    private void build(long[] keys, int lo, int hi) {
+        if (lo == hi) {
+            return;
+        }
+
+        int mid = (lo + hi) >>> 1;
+
+        this.key = keys[mid];
+        this.count = 1;
+        this.left = new LongAVLTree(shared);
+        this.right = new LongAVLTree(shared);
+
+        left.build(keys, lo, mid);
+        right.build(keys, mid + 1, hi);
+
+        this.height = Math.max(left.height, right.height) + 1;
+        this.size = hi - lo;
+    }
+
+    /*
+     * Builds the subtree for keys[lo..hi) into an empty node, splitting large ranges between threads.
+     */
+    @SuppressWarnings("serial")
+    private static final class BuildTask extends RecursiveAction {
+
+        final LongAVLTree node;
+        final long[] keys;
+        final int lo;
+        final int hi;
+
+        BuildTask(LongAVLTree node, long[] keys, int lo, int hi) {
+            this.node = node;
+            this.keys = keys;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= PARALLEL_THRESHOLD) {
+                node.build(keys, lo, hi);
+                return;
+            }
+
+            int mid = (lo + hi) >>> 1;
+
+            node.key = keys[mid];
+            node.count = 1;
+            node.left = new LongAVLTree(node.shared);
+            node.right = new LongAVLTree(node.shared);
+
+            invokeAll(new BuildTask(node.left, keys, lo, mid), new BuildTask(node.right, keys, mid + 1, hi));
+
+            node.height = Math.max(node.left.height, node.right.height) + 1;
+            node.size = hi - lo;
+        }
+    }
+
+
+    //Batch operations and set algebra
+
+    // Operations for setOp
+    private static final int UNION = 0;         // Keys in either subtree
+    private static final int INTERSECT = 1;     // Keys in both subtrees
+    private static final int DIFFERENCE = 2;    // Keys of the walked subtree that are not in the split one
+    private static final int SUBTRACT = 3;      // Keys of the split subtree that are not in the walked one
+
+
+    /**
+     * Insert every key of a batch. The batch is sorted and merged into the tree in a single traversal:
+     * each node splits the keys that reach it between its subtrees, and each subtree is rebalanced once,
+     * by joining its two updated halves, instead of once per key.
+     * @param keys The keys to insert, in any order. The array is not modified.
+     */
+    public void insertAll(long[] keys) {
+        if (shared.duplicates == Duplicates.COUNTED) {
+            // Merging would add a second node for a key that is already in the multiset
+            for (long key : keys) {
+                insert(key);
+            }
+            return;
+        }
+
+        long[] batch = keys.clone();
+        Arrays.sort(batch);
+
+        adopt(detach().union(batch, 0, batch.length));
+    }
+
+    /**
+     * Delete every key of a batch, removing one copy of a key for each time it appears in the batch.
+     * Keys that are not in the tree are ignored. The sorted batch is split around its middle key, the tree is
+     * split at the same key, and the two halves are processed separately and joined back together.
+     * @param keys The keys to delete, in any order. The array is not modified.
+     */
+    public void deleteAll(long[] keys) {
+        if (shared.duplicates == Duplicates.COUNTED) {
+            // Splitting would remove every copy held by a node at once
+            for (long key : keys) {
+                delete(key);
+            }
+            return;
+        }
+
+        long[] batch = keys.clone();
+        Arrays.sort(batch);
+
+        adopt(detach().difference(batch, 0, batch.length));
+    }
+
+    /**
+     * Search for every key of a batch in a single traversal. Keys that reach the same node share the
+     * path to it, so each node is visited at most once.
+     * @param keys The keys to search for, in any order.
+     * @param out Set to true at position i if keys[i] is in the tree, false otherwise.
+     */
+    public void searchAll(long[] keys, boolean[] out) {
+        if (out.length < keys.length) {
+            throw new IllegalArgumentException("Output has " + out.length + " places for " + keys.length + " keys");
+        }
+
+        // Search for the keys in sorted order, then look up where each one came from
+        long[] sorted = keys.clone();
+        Arrays.sort(sorted);
+
+        boolean[] found = new boolean[sorted.length];
+        searchAll(sorted, 0, sorted.length, found);
+
+        for (int i = 0; i < keys.length; i++) {
+            out[i] = found[Arrays.binarySearch(sorted, keys[i])];
+        }
+    }
+
+    /**
+     * Mark the keys of sorted[lo..hi) that are in this subtree.
+     */
+    private void searchAll(long[] sorted, int lo, int hi, boolean[] found) {
+        if (lo == hi || isEmpty()) {
+            return;
+        }
+
+        int from = firstNotBelow(sorted, lo, hi, key, false);
+        int to = firstNotBelow(sorted, from, hi, key, true);
+
+        Arrays.fill(found, from, to, true);
+
+        left.searchAll(sorted, lo, from, found);
+        right.searchAll(sorted, to, hi, found);
+    }
+
+    /**
+     * Move every key that is not smaller than n into a new tree. This tree keeps the keys smaller than n.
+     * Takes O(log n) time. The new tree shares this tree's counters.
+     * @param n The value to split at.
+     * @return A tree holding the keys that are not smaller than n.
+     */
+    public LongAVLTree split(long n) {
+        LongAVLTree[] parts = new LongAVLTree[2];
+        detach().split(n, parts);
+
+        adopt(parts[0]);
+
+        LongAVLTree rest = new LongAVLTree(shared);
+        rest.adopt(parts[1]);
+        return rest;
+    }
+
+    /**
+     * Append a key and then every key of another tree to this tree, leaving the other tree empty.
+     * Takes time proportional to the difference in the heights of the two trees, plus O(|right|) to hand over
+     * the nodes of a tree that does not share this tree's counters.
+     * In a multiset the keys must be strictly in order, since each key has a single node.
+     * @param key A key that is not smaller than any key of this tree.
+     * @param right A tree whose keys are not smaller than key.
+     * @throws IllegalArgumentException If the keys are not in order, or the trees compare, balance or count keys differently.
+     */
+    public void join(long key, LongAVLTree right) {
+        checkCompatible(right);
+
+        if ((!isEmpty() && outOfOrder(findMax(), key)) || (!right.isEmpty() && outOfOrder(key, right.findMin()))) {
+            throw new IllegalArgumentException("Keys are not in order around " + key);
+        }
+
+        LongAVLTree m = new LongAVLTree(shared);
+        m.key = key;
+        m.count = 1;
+
+        adopt(m.join(detach(), claim(right.detach())));
+        right.clear();
+    }
+
+    /**
+     * Append every key of another tree to this tree, leaving the other tree empty.
+     * Takes O(|right|) extra time to hand over the nodes of a tree that does not share this tree's counters.
+     * In a multiset the keys must be strictly in order, since each key has a single node.
+     * @param right A tree whose keys are not smaller than any key of this tree.
+     * @throws IllegalArgumentException If the keys are not in order, or the trees compare, balance or count keys differently.
+     */
+    public void join(LongAVLTree right) {
+        checkCompatible(right);
+
+        if (!isEmpty() && !right.isEmpty() && outOfOrder(findMax(), right.findMin())) {
+            throw new IllegalArgumentException("Keys are not in order");
+        }
+
+        adopt(concat(detach(), claim(right.detach())));
+        right.clear();
+    }
+
+    /**
+     * Check whether two keys that are joined around each other are out of order. Equal keys are out of
+     * order in a multiset, which must not get a second node for a key.
+     * @return True if a is larger than b, or equal to it in a multiset.
+     */
+    private boolean outOfOrder(long a, long b) {
+        int c = compare(a, b);
+        return c > 0 || (c == 0 && shared.duplicates == Duplicates.COUNTED);
+    }
+
+    /**
+     * Add every key of another tree to this one, leaving the other tree empty. A key in both trees is kept once,
+     * except in a multiset, where the counts of the key in the two trees are added.
+     * The smaller tree is walked and the larger is split at each of its keys, so for sizes m <= n this takes
+     * O(m log(n/m + 1)) work. Large subtrees are combined in parallel. The nodes of another tree that does not
+     * share this tree's counters, as a part split off from it does, are first handed over in O(|other|) time.
+     * Both trees must compare, balance and count their keys in the same way.
+     * @param other The other tree.
+     * @throws IllegalArgumentException If the trees compare, balance or count keys differently.
+     */
+    public void union(LongAVLTree other) {
+        setOp(UNION, other);
+    }
+
+    /**
+     * Keep only the keys that are also in another tree, leaving the other tree empty.
+     * In a multiset a key is kept as many times as the tree holding fewer copies has it.
+     * Takes O(m log(n/m + 1)) work for sizes m <= n, in parallel, plus O(|other|) to hand over the nodes of
+     * a tree that does not share this tree's counters.
+     * @param other The other tree.
+     * @throws IllegalArgumentException If the trees compare, balance or count keys differently.
+     */
+    public void intersect(LongAVLTree other) {
+        setOp(INTERSECT, other);
+    }
+
+    /**
+     * Remove every key that is in another tree, leaving the other tree empty.
+     * In a multiset each copy in the other tree removes one copy, down to none.
+     * Takes O(m log(n/m + 1)) work for sizes m <= n, in parallel, plus O(|other|) to hand over the nodes of
+     * a tree that does not share this tree's counters.
+     * @param other The other tree.
+     * @throws IllegalArgumentException If the trees compare, balance or count keys differently.
+     */
+    public void difference(LongAVLTree other) {
+        setOp(DIFFERENCE, other);
+    }
+
+    /**
+     * Count the keys that are in both this tree and another. Neither tree loses any keys, although
+     * the larger one is split and joined back together, so its shape may change.
+     * In a multiset a key counts as many times as the tree holding fewer copies has it.
+     * Takes O(m log(n/m + 1)) work for sizes m <= n, in parallel. Trees that do not share their counters
+     * always split this one, so that the comparisons are counted by this tree and the other is not touched.
+     * @param other The other tree.
+     * @return The number of common keys.
+     * @throws IllegalArgumentException If the trees compare, balance or count keys differently.
+     */
+    public int intersectionSize(LongAVLTree other) {
+        checkCompatible(other);
+
+        if (other == this) {
+            return size;
+        }
+
+        // Walk the smaller tree and split the larger one, unless the larger one keeps its own counters
+        LongAVLTree small = (size <= other.size && other.shared == shared) ? this : other;
+        LongAVLTree large = (small == this) ? other : this;
+
+        CountTask task = new CountTask(small, large.detach());
+        large.adopt(ForkJoinPool.commonPool().invoke(task));
+
+        return task.matches;
+    }
+
+    /**
+     * Replace the keys of this tree with the result of a set operation with another tree, which is left empty.
+     */
+    private void setOp(int op, LongAVLTree other) {
+        checkCompatible(other);
+
+        if (other == this) {
+            if (op == DIFFERENCE) {
+                clear();
+            }
+            else if (op == UNION && shared.duplicates == Duplicates.COUNTED) {
+                // Every key is added to itself
+                doubleCounts();
+            }
+            return;
+        }
+
+        // Walk the smaller tree and split the larger one
+        LongAVLTree s = detach();
+        LongAVLTree l = claim(other.detach());
+
+        if (s.size > l.size) {
+            LongAVLTree tmp = s;
+            s = l;
+            l = tmp;
+
+            if (op == DIFFERENCE) {
+                // Remove the keys of the walked tree from the split one instead
+                op = SUBTRACT;
+            }
+        }
+
+        adopt(ForkJoinPool.commonPool().invoke(new SetTask(op, s, l)));
+        other.clear();
+    }
+
+    /**
+     * Double the count of every key in this subtree, for the union of a multiset with itself.
+     */
+    private void doubleCounts() {
+        if (!isEmpty()) {
+            count *= 2;
+            size *= 2;
+            left.doubleCounts();
+            right.doubleCounts();
+        }
+    }
+
+    /**
+     * Reject a set operation or join with a tree whose nodes follow different rules: a set and a multiset count
+     * their keys differently, an AVL and a WAVL tree allow different shapes, and the comparisons of the result
+     * must be counted in one way.
+     * @throws IllegalArgumentException If the trees differ in Duplicates, AVLTree.Rebalancing or Comparison.
+     */
+    private void checkCompatible(LongAVLTree other) {
+        if (shared.duplicates != other.shared.duplicates) {
+            throw new IllegalArgumentException("Cannot combine a set and a multiset");
+        }
+        if (shared.rebalancing != other.shared.rebalancing) {
+            throw new IllegalArgumentException("Cannot combine " + shared.rebalancing + " and " + other.shared.rebalancing + " trees");
+        }
+        if (shared.comparison != other.shared.comparison) {
+            throw new IllegalArgumentException("Cannot combine trees with " + shared.comparison + " and " + other.shared.comparison + " comparisons");
+        }
+    }
+
+    /**
+     * Combine the subtree s, which is walked, with the subtree l, which is split at each key of s.
+     * In a multiset the counts of a key are merged: added by a union, the smaller one kept by an intersection,
+     * and subtracted by a difference.
+     * @param op UNION, INTERSECT, DIFFERENCE (s without l) or SUBTRACT (l without s).
+     * @return The root of the result.
+     */
+    private static LongAVLTree setOp(int op, LongAVLTree s, LongAVLTree l) {
+
+        if (s.isEmpty() || l.isEmpty()) {
+            if (op == UNION) {
+                return s.isEmpty() ? l : s;
+            }
+            if (op == DIFFERENCE) {
+                return s;
+            }
+            if (op == SUBTRACT) {
+                return l;
+            }
+            return s.isEmpty() ? s : l;
+        }
+
+        LongAVLTree sl = s.left;
+        LongAVLTree sr = s.right;
+
+        LongAVLTree[] parts = new LongAVLTree[3];
+        l.split3(s.key, parts);
+        boolean found = parts[1] != null;
+
+        LongAVLTree left;
+        LongAVLTree right;
+
+        if (s.size >= PARALLEL_THRESHOLD) {
+            // Combine the left halves on another thread
+            SetTask task = new SetTask(op, sl, parts[0]);
+            task.fork();
+            right = setOp(op, sr, parts[2]);
+            left = task.join();
+        }
+        else {
+            left = setOp(op, sl, parts[0]);
+            right = setOp(op, sr, parts[2]);
+        }
+
+        // The copies of the key of s that survive, and the node that keeps them
+        int inL = found ? parts[1].count : 0;
+        LongAVLTree x = s;
+        int copies;
+
+        switch (op) {
+            case UNION:
+                copies = (s.shared.duplicates == Duplicates.COUNTED) ? s.count + inL : s.count;
+                break;
+            case INTERSECT:
+                copies = Math.min(s.count, inL);
+                break;
+            case DIFFERENCE:
+                copies = s.count - inL;
+                break;
+            default:
+                x = parts[1];
+                copies = inL - s.count;
+        }
+
+        if (copies <= 0) {
+            return concat(left, right);
+        }
+
+        x.count = copies;
+        return x.join(left, right);
+    }
+
+    /**
+     * Count the keys of the subtree s that are also in the subtree l, adding them to task.matches.
+     * A key held several times in both counts as often as the smaller count.
+     * l is split at each key of s, then joined back together. s is not changed.
+     * @return The root of the rejoined l.
+     */
+    private static LongAVLTree count(LongAVLTree s, LongAVLTree l, CountTask task) {
+
+        if (s.isEmpty() || l.isEmpty()) {
+            return l;
+        }
+
+        LongAVLTree[] parts = new LongAVLTree[3];
+        l.split3(s.key, parts);
+
+        if (parts[1] != null) {
+            task.matches += Math.min(s.count, parts[1].count);
+        }
+
+        LongAVLTree left;
+        LongAVLTree right;
+
+        if (s.size >= PARALLEL_THRESHOLD) {
+            // Count in the left halves on another thread
+            CountTask other = new CountTask(s.left, parts[0]);
+            other.fork();
+            right = count(s.right, parts[2], task);
+            left = other.join();
+            task.matches += other.matches;
+        }
+        else {
+            left = count(s.left, parts[0], task);
+            right = count(s.right, parts[2], task);
+        }
+
+        return (parts[1] != null) ? parts[1].join(left, right) : concat(left, right);
+    }
+
+    /**
+     * Split this subtree around a node holding n, if there is one.
+     * @param out Set to the root of the keys smaller than n, the node holding n (or null),
+     *            and the root of the keys larger than n.
+     */
+    private void split3(long n, LongAVLTree[] out) {
+        if (isEmpty()) {
+            out[0] = this;
+            out[1] = null;
+            out[2] = new LongAVLTree(shared);
+            return;
+        }
+
+        LongAVLTree l = left;
+        LongAVLTree r = right;
+
+        int c = compare(key, n);
+
+        if (c == 0) {
+            // The two subtrees are the two parts
+            out[0] = l;
+            out[1] = this;
+            out[2] = r;
+        }
+        else if (c < 0) {
+            r.split3(n, out);
+            out[0] = join(l, out[0]);
+        }
+        else {
+            l.split3(n, out);
+            out[2] = join(out[2], r);
+        }
+    }
+
+    /*
+     * Combines two subtrees with setOp() on a fork-join thread.
+     */
+    @SuppressWarnings("serial")
+    private static final class SetTask extends RecursiveTask<LongAVLTree> {
+
+        final int op;
+        final LongAVLTree s;
+        final LongAVLTree l;
+
+        SetTask(int op, LongAVLTree s, LongAVLTree l) {
+            this.op = op;
+            this.s = s;
+            this.l = l;
+        }
+
+        @Override
+        protected LongAVLTree compute() {
+            return setOp(op, s, l);
+        }
+    }
+
+    /*
+     * Counts common keys with count() on a fork-join thread.
+     */
+    @SuppressWarnings("serial")
+    private static final class CountTask extends RecursiveTask<LongAVLTree> {
+
+        final LongAVLTree s;
+        final LongAVLTree l;
+        int matches;    // Number of common keys
+
+        CountTask(LongAVLTree s, LongAVLTree l) {
+            this.s = s;
+            this.l = l;
+        }
+
+        @Override
+        protected LongAVLTree compute() {
+            return count(s, l, this);
+        }
+    }
+
+    /**
+     * Merge keys[lo..hi) into this subtree.
+     * @return The root of the new subtree.
+     */
+    private LongAVLTree union(long[] keys, int lo, int hi) {
+        if (lo == hi) {
+            return this;
+        }
+
+        if (isEmpty()) {
+            // Every key in the range falls in this gap
+            build(keys, lo, hi);
+            return this;
+        }
+
+        // Keys less than this one go on the left, the rest on the right, as in insert
+        int mid = firstNotBelow(keys, lo, hi, key, false);
+        LongAVLTree l = left;
+        LongAVLTree r = right;
+
+        return join(l.union(keys, lo, mid), r.union(keys, mid, hi));
+    }
+
+    /**
+     * Remove one copy of each of keys[lo..hi) from this subtree.
+     * @return The root of the new subtree.
+     */
+    private LongAVLTree difference(long[] keys, int lo, int hi) {
+        if (lo == hi || isEmpty()) {
+            return this;
+        }
+
+        // Every copy of the middle key in the batch is handled here
+        long k = keys[(lo + hi) >>> 1];
+        int from = firstNotBelow(keys, lo, hi, k, false);
+        int to = firstNotBelow(keys, from, hi, k, true);
+
+        // After the split, every copy of k in the tree is at the start of the right part
+        LongAVLTree[] parts = new LongAVLTree[2];
+        split(k, parts);
+        LongAVLTree l = parts[0].difference(keys, lo, from);
+        LongAVLTree r = parts[1];
+
+        for (int i = from; i < to && !r.isEmpty() && compare('=', r.findMin(), k); i++) {
+            r.splitFirst(parts);
+            r = parts[1];
+        }
+
+        return concat(l, r.difference(keys, to, hi));
+    }
+
+    /**
+     * Join two subtrees with this node between them. Every key in l must be no greater than this key,
+     * and every key in r no less. This node's own subtrees are replaced.
+     * The node is hung from the spine of the taller subtree where the heights match, and only the nodes on
+     * that spine are rebalanced, so the cost is proportional to the difference in heights.
+     * @return The root of the joined subtree.
+     */
+    private LongAVLTree join(LongAVLTree l, LongAVLTree r) {
+
+        if (l.height > r.height + 1) {
+            // Descend the right spine of the taller left subtree
+            l.right = join(l.right, r);
+            l.balance();
+            return l;
+        }
+
+        if (r.height > l.height + 1) {
+            // Descend the left spine of the taller right subtree
+            r.left = join(l, r.left);
+            r.balance();
+            return r;
+        }
+
+        this.left = l;
+        this.right = r;
+        this.height = 0;
+        adjustHeight();
+
+        return this;
+    }
+
+    /**
+     * Join two subtrees where every key in l is no greater than every key in r.
+     * @return The root of the joined subtree.
+     */
+    private static LongAVLTree concat(LongAVLTree l, LongAVLTree r) {
+        if (r.isEmpty()) {
+            return l;
+        }
+        if (l.isEmpty()) {
+            return r;
+        }
+
+        // The least key of r goes between the two subtrees
+        LongAVLTree[] parts = new LongAVLTree[2];
+        r.splitFirst(parts);
+
+        return parts[0].join(l, parts[1]);
+    }
+
+    /**
+     * Split this subtree into the keys smaller than n and the rest.
+     * @param out Set to the root of the smaller keys, then the root of the rest.
+     */
+    private void split(long n, LongAVLTree[] out) {
+        if (isEmpty()) {
+            out[0] = this;
+            out[1] = new LongAVLTree(shared);
+            return;
+        }
+
+        LongAVLTree l = left;
+        LongAVLTree r = right;
+
+        if (compare('<', key, n)) {
+            // This node and its left subtree are below n
+            r.split(n, out);
+            out[0] = join(l, out[0]);
+        }
+        else {
+            l.split(n, out);
+            out[1] = join(out[1], r);
+        }
+    }
+
+    /**
+     * Remove the node holding the least key from this non-empty subtree.
+     * @param out Set to the removed node, then the root of the rest of the subtree.
+     */
+    private void splitFirst(LongAVLTree[] out) {
+        if (left.isEmpty()) {
+            out[0] = this;
+            out[1] = right;
+            return;
+        }
+
+        left.splitFirst(out);
+        left = out[1];
+        balance();
+        out[1] = this;
+    }
+
+    /**
+     * Find the first of keys[lo..hi) that is not smaller than n, or not larger than n if inclusive is set.
+     * @return The index of that key, or hi if there is none.
+     */
+    private int firstNotBelow(long[] keys, int lo, int hi, long n, boolean inclusive) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if (inclusive ? !compare('>', keys[mid], n) : compare('<', keys[mid], n)) {
+                lo = mid + 1;
+            }
+            else {
+                hi = mid;
+            }
+        }
+
+        return lo;
+    }
+
+    /**
+     * Move the contents of the root into a new node, so that the root node itself is free to be refilled.
+     * @return The new node.
+     */
+    private LongAVLTree detach() {
+        LongAVLTree x = new LongAVLTree(shared);
+        x.key = key;
+        x.height = height;
+        x.size = size;
+        x.count = count;
+        x.left = left;
+        x.right = right;
+        return x;
+    }
+
+    /**
+     * Make every node of a subtree taken from another tree, down to its empty leaves, use the state of this
+     * tree, so that later work on those keys is counted, compared and profiled by this tree.
+     * Takes O(n) time for a subtree of n keys, and no time for a subtree that already shares this tree's state,
+     * such as one split off from it.
+     * @param x The root of the subtree, which must not be the root of the other tree.
+     * @return x.
+     */
+    private LongAVLTree claim(LongAVLTree x) {
+        if (x.shared == shared) {
+            return x;
+        }
+
+        int depth = 0;
+
+        // Visit every node using the path stack in place of recursion
+        shared.push(depth++, x);
+
+        while (depth > 0) {
+            LongAVLTree y = shared.path[--depth];
+            y.shared = shared;
+
+            if (!y.isEmpty()) {
+                shared.push(depth++, y.right);
+                shared.push(depth++, y.left);
+            }
+        }
+
+        return x;
+    }
+
+    /**
+     * Make this node empty, for a tree whose keys have been moved elsewhere.
+     */
+    private void clear() {
+        key = 0;
+        height = -1;
+        size = 0;
+        count = 0;
+        left = null;
+        right = null;
+    }
+
+    /**
+     * Make the root hold the contents of another node.
+     */
+    private void adopt(LongAVLTree x) {
+        key = x.key;
+        height = x.height;
+        size = x.size;
+        count = x.count;
+        left = x.left;
+        right = x.right;
+    }
+
+
+    //AVL Tree Methods
+
+    /**
+     * Carries out any rotations necessary to balance the tree.
+     */
+    private void balance() {
+
+        // Update the height of the node
+        adjustHeight();
+
+        // Find the difference in heights of the subtrees
+        int bf = balanceFactor();
+
+        // If the balance factor is greater than 1, we need to balance the tree
+        if (compare('>', Math.abs(bf), 1)) {
+
+            if (compare('>', bf, 0)) {
+                // The left subtree is taller
+
+                // Check whether we need an inner or outer rotation
+                // A balanced child (possible after a deletion) needs only the outer rotation
+                if (compare('<', left.balanceFactor(), 0)) {
+                    lrRotation();
+                }
+                else {
+                    llRotation();
+                }
+
+            }
+            else {
+                // The right subtree is taller
+
+                // Check whether we need an inner or outer rotation
+                // A balanced child (possible after a deletion) needs only the outer rotation
+                if (compare('>', right.balanceFactor(), 0)) {
+                    rlRotation();
+                }
+                else {
+                    rrRotation();
+                }
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Check whether this node holds a key. Empty nodes are the leaves of the tree and have height -1.
+     * @return True if the node has no key.
+     */
+    public boolean isEmpty() {
+        return height < 0;
+    }
+
+    /**
+     * Check whether a tree is balanced.
+     * @return The difference in the heights of the subtrees. Return 0 if it is a terminal node.
+     */
+    public int balanceFactor() {
+        if (isEmpty()) { //This node has no value, it is a terminal node
+            return 0;
+        }
+        else {
+            return left.height - right.height;
+        }
+    }
+
+    /**
+     * Update the height value of the tree after an insertion
+     * The size of the tree is updated as well.
+     * @return The height of the tree.
+     */
+    public int adjustHeight() {
+
+        if (isEmpty()) { //This is a terminal node
+            this.height = -1;
+            this.size = 0;
+        }
+
+        else { // Increment the height
+            this.height = Math.max(left.height, right.height) + 1;
+            this.size = left.size + right.size + count;
+        }
+
+        return this.height;
+    }
+
+    /**
+     * Update the size of the tree from the sizes of its subtrees.
+     */
+    private void adjustSize() {
+        this.size = isEmpty() ? 0 : left.size + right.size + count;
+    }
+
+    //Rotations
+
+    /**
+     * Perform a left single rotation
+     */
+    public void llRotation() {
+        shared.metrics.llRotation();
+        if (TreeProfile.ENABLED) {
+            shared.profile.rotations += 1;
+        }
+        llRotate();
+    }
+
+    /**
+     * Perform a left double rotation
+     */
+    public void lrRotation() {
+        shared.metrics.lrRotation();
+        if (TreeProfile.ENABLED) {
+            shared.profile.rotations += 2;
+        }
+        left.rrRotate();
+        llRotate();
+    }
+
+    /**
+     * Perform a right single rotation
+     */
+    public void rrRotation() {
+        shared.metrics.rrRotation();
+        if (TreeProfile.ENABLED) {
+            shared.profile.rotations += 1;
+        }
+        rrRotate();
+    }
+
+    /**
+     * Perform a right double rotation
+     */
+    public void rlRotation() {
+        shared.metrics.rlRotation();
+        if (TreeProfile.ENABLED) {
+            shared.profile.rotations += 2;
+        }
+        right.llRotate();
+        rrRotate();
+    }
+
+    /**
+     * Rotate the left child up without counting the rotation.
+     */
+    private void llRotate() {
+
+        // Rotate the nodes
+        LongAVLTree tmpTree = right;
+        right = left;
+        left = right.left;
+        right.left = right.right;
+        right.right = tmpTree;
+
+        // Swap the key values and their counts
+        long tmpKey = key;
+        key = right.key;
+        right.key = tmpKey;
+
+        int tmpCount = count;
+        count = right.count;
+        right.count = tmpCount;
+
+        // Update the heights of the rotated nodes
+        right.adjustHeight();
+        adjustHeight();
+    }
+
+    /**
+     * Rotate the right child up without counting the rotation.
+     */
+    private void rrRotate() {
+
+        // Rotate the nodes
+        LongAVLTree tmpTree = left;
+        left = right;
+        right = left.right;
+        left.right = left.left;
+        left.left = tmpTree;
+
+        // Swap the key values and their counts
+        long tmpKey = key;
+        key = left.key;
+        left.key = tmpKey;
+
+        int tmpCount = count;
+        count = left.count;
+        left.count = tmpCount;
+
+        // Update the heights of the rotated nodes
+        left.adjustHeight();
+        adjustHeight();
+
+    }
+
+
+    //Order statistics
+
+    /**
+     * Get the number of keys in the tree, which every node keeps up to date.
+     * Every copy of a key counts, also in a multiset.
+     * @return The number of keys in the tree.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the height of the tree. This is the height field, except with WAVL rebalancing, where the field
+     * holds the rank, which may be larger after deletes, and the tree is walked instead.
+     * @return The height of the tree, -1 when it is empty.
+     */
+    public int height() {
+        return (shared.rebalancing == AVLTree.Rebalancing.WAVL) ? measureHeight() : height;
+    }
+
+    /**
+     * Find the height by visiting the tree level by level, which needs no recursion however deep it is.
+     */
+    private int measureHeight() {
+
+        int height = -1;
+
+        if (isEmpty()) {
+            return height;
+        }
+
+        ArrayDeque<LongAVLTree> level = new ArrayDeque<>();
+        level.add(this);
+
+        while (!level.isEmpty()) {
+            height++;
+
+            for (int i = level.size(); i > 0; i--) {
+                LongAVLTree x = level.poll();
+
+                if (!x.left.isEmpty()) {
+                    level.add(x.left);
+                }
+                if (!x.right.isEmpty()) {
+                    level.add(x.right);
+                }
+            }
+        }
+
+        return height;
+    }
+
+    /**
+     * Count the keys that are smaller than a given value.
+     * @param n The value.
+     * @return The number of keys less than n, which is the position n has or would have in sorted order.
+     */
+    public int rank(long n) {
+        return countBelow(n, false);
+    }
+
+    /**
+     * Find the key at a given position in sorted order.
+     * @param k The position, starting from 0 for the least key.
+     * @return The k-th smallest key.
+     */
+    public long select(int k) {
+
+        if (k < 0 || k >= size) {
+            throw new IndexOutOfBoundsException("Index " + k + " out of bounds for size " + size);
+        }
+
+        LongAVLTree x = this;
+
+        while (true) {
+
+            if (k < x.left.size) {
+                // The key is in the left subtree
+                x = x.left;
+            }
+            else if (k < x.left.size + x.count) {
+                // This is the requested key
+                return x.key;
+            }
+            else {
+                // Skip the left subtree and this node
+                k -= x.left.size + x.count;
+                x = x.right;
+            }
+
+        }
+    }
+
+    /**
+     * Count the copies of a key.
+     * @param n The key.
+     * @return The number of times n is in the tree, 0 if it is not.
+     */
+    public int count(long n) {
+        if (shared.duplicates == Duplicates.COUNTED) {
+            LongAVLTree x = search(n);
+            return (x == null) ? 0 : x.count;
+        }
+
+        // The copies are in separate nodes
+        return countInRange(n, n);
+    }
+
+    /**
+     * Count the keys in a range.
+     * @param lo The least value in the range.
+     * @param hi The largest value in the range.
+     * @return The number of keys k with lo <= k <= hi.
+     */
+    public int countInRange(long lo, long hi) {
+        if (lo > hi) {
+            return 0;
+        }
+
+        return countBelow(hi, true) - countBelow(lo, false);
+    }
+
+    /**
+     * Count the keys that are smaller than n, or not larger than n if inclusive is set.
+     */
+    private int countBelow(long n, boolean inclusive) {
+
+        LongAVLTree x = this;
+        int count = 0;
+
+        while (!x.isEmpty()) {
+
+            if (inclusive ? !compare('>', x.key, n) : compare('<', x.key, n)) {
+                // This node and its left subtree are below n
+                count += x.left.size + x.count;
+                x = x.right;
+            }
+            else {
+                x = x.left;
+            }
+
+        }
+
+        return count;
+    }
+
+
+    /**
+     * Pass every key k with lo <= k <= hi to an action, in ascending order, once for every copy.
+     * Takes O(log n + k) time and uses the path stack instead of parent pointers, so the action must not modify the tree.
+     * @param lo The least value in the range.
+     * @param hi The largest value in the range.
+     * @param action Called with each key in the range.
+     */
+    public void forEachInRange(long lo, long hi, LongConsumer action) {
+        int depth = 0;
+        LongAVLTree x = this;
+
+        while (true) {
+
+            // Stack the nodes that are not smaller than lo on the way down the left edge
+            while (!x.isEmpty()) {
+                if (compare('<', x.key, lo)) {
+                    x = x.right;
+                }
+                else {
+                    shared.push(depth++, x);
+                    x = x.left;
+                }
+            }
+
+            if (depth == 0) {
+                return;
+            }
+
+            // The top of the stack is the next key in order
+            x = shared.path[--depth];
+
+            if (compare('>', x.key, hi)) {
+                return;
+            }
+
+            for (int i = x.count; i > 0; i--) {
+                action.accept(x.key);
+            }
+            x = x.right;
+        }
+    }
+
+
+    /**
+     * Counts the number of nodes in the tree by visiting every node.
+     * size() gives the same answer without walking the tree, except in a multiset, which has a node for
+     * every distinct key.
+     * @return The number of nodes in the tree.
+     */
+    public int countNodes() {
+        int count = 0;
+        int depth = 0;
+
+        // Visit every node using the path stack in place of recursion
+        shared.push(depth++, this);
+
+        while (depth > 0) {
+            LongAVLTree x = shared.path[--depth];
+
+            if (!x.isEmpty()) {
+                count++;
+                shared.push(depth++, x.right);
+                shared.push(depth++, x.left);
+            }
+        }
+
+        return count;
+    }
+
+
+
+    /**
+     * Compare two keys once, for callers that need to tell all three outcomes apart.
+     * Counts as one comparison unless the tree was created with Comparison.RAW.
+     * @return A negative number, zero or a positive number as n1 is less than, equal to or greater than n2.
+     */
+    private int compare(long n1, long n2) {
+        return shared.comparison.compare(n1, n2, shared.metrics);
+    }
+
+    /**
+     * Used instead of <, >, and == operators, counting the number of times it was called
+     * unless the tree was created with Comparison.RAW.
+     * @return boolean value
+     */
+    private boolean compare(char op, long n1, long n2) {
+        int c = compare(n1, n2);
+
+        switch (op) {
+            case '<':
+                return c < 0;
+
+            case '>':
+                return c > 0;
+
+            default:
+                return c == 0;
+        }
+    }
+
+
+    /**
+     * Get the latency histograms of this tree.
+     * @return The profile, or null unless the JVM was started with -Dtrees.profile=true.
+     */
+    public TreeProfile profile() {
+        return shared.profile;
+    }
+
+    /**
+     * Get the comparison, rotation and allocation counters of this tree.
+     * @return The metrics of the tree.
+     */
+    public TreeMetrics metrics() {
+        return shared.metrics;
+    }
+
+
+    /**
+     * Print out the contents of the tree.
+     * Prints "(key, left.key, right.key)" for each node.
+     * Used for debugging purposes.
+     */
+    public void print(){
+        if (isEmpty()) {
+            return;
+        }
+
+        int depth = 0;
+
+        // Visit the nodes in pre-order using the path stack in place of recursion
+        shared.push(depth++, this);
+
+        while (depth > 0) {
+            LongAVLTree x = shared.path[--depth];
+
+            System.out.print("(" + x.key + ", ");
+
+            if (x.left.isEmpty()) {
+                System.out.print("-, ");
+            }
+            else {
+                System.out.print(x.left.key + ", ");
+            }
+
+            if (x.right.isEmpty()) {
+                System.out.println("-)");
+            }
+            else {
+                System.out.println(x.right.key + ")");
+            }
+
+            if (!x.right.isEmpty()) {
+                shared.push(depth++, x.right);
+            }
+            if (!x.left.isEmpty()) {
+                shared.push(depth++, x.left);
+            }
+        }
+
+    }
+
+}
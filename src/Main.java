@@ -1,102 +1,176 @@
 import java.util.*;
 import java.lang.Math;
 
+/**
+ * Compares the AVL and Red-Black trees.
+ *
+ * Usage: java Main [--seed 42] [--trees avl,wavl,rb,offheap,bplus,splay,semisplay,avl-multi,rb-multi]
+ *            Inserts a random set X into each tree, deletes a set Y and searches for a set Z, printing the
+ *            rotations and comparisons of each phase. Without a seed a random one is chosen and printed.
+ *        java Main [Workload options]
+ *            Runs a configurable workload and reports throughput and latency percentiles, see Workload.
+ */
 public class Main {
 
     public static void main(String[] args) {
 
-        RBTree rb = new RBTree();
-        AVLTree avl = new AVLTree();
+        long seed = new SplittableRandom().nextLong();
+        String[] names = {"avl", "rb"};
+
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for option: " + args[i]);
+            }
+
+            switch (args[i]) {
+                case "--seed":
+                    seed = Long.parseLong(args[i + 1]);
+                    break;
+                case "--trees":
+                    names = args[i + 1].split(",");
+                    break;
+                default:
+                    // Any other option describes a workload, and Workload.parse rejects unknown ones
+                    Workload.parse(args).run();
+                    return;
+            }
+        }
+
+        compare(seed, names);
+    }
+
+
+    /**
+     * Run the insert, delete and search phases on each tree with sets drawn from a seed.
+     * @param seed The random seed.
+     * @param names The trees, as accepted by SortedIntSet.create.
+     */
+    public static void compare(long seed, String[] names) {
+
+        SortedIntSet[] trees = new SortedIntSet[names.length];
+        for (int t = 0; t < names.length; t++) {
+            trees[t] = SortedIntSet.create(names[t]);
+        }
+
+        SplittableRandom rnd = new SplittableRandom(seed);
+
+        System.out.println("Seed is " + seed);
+        System.out.println();
 
 
         //Create sets
-        int n = (int) Math.round((Math.random()*2000)+1000);
-        int m = (int) Math.round((Math.random()*500)+500);
-        int k = (int) Math.round((Math.random()*1000)+1000);
+        int n = 1000 + rnd.nextInt(2001);
+        int m = 500 + rnd.nextInt(501);
+        int k = 1000 + rnd.nextInt(1001);
 
-        Set X = makeRandSet(n, -3000, 3000);
-        Set Y = makeRandSet(m, -3000, 3000);
-        Set Z = makeRandSet(k, -3000, 3000);
+        int[] X = makeRandSet(n, -3000, 3000, rnd.nextLong());
+        int[] Y = makeRandSet(m, -3000, 3000, rnd.nextLong());
+        int[] Z = makeRandSet(k, -3000, 3000, rnd.nextLong());
 
-        System.out.println("Set X contains " + X.size() + " elements");
-        System.out.println("Set Y contains " + Y.size() + " elements");
+        System.out.println("Set X contains " + X.length + " elements");
+        System.out.println("Set Y contains " + Y.length + " elements");
         System.out.println();
         System.out.println("Sets X and Y have " + compareSet(X, Y) + " elements in common");
         System.out.println();
 
-        RBTree.resetCounters();
-        AVLTree.resetCounters();
-
 
         //Insert Elements
 
-        for (Object x: X) {
-            avl.insert((int) x);
-            rb.insert((int) x);
+        for (int x: X) {
+            for (SortedIntSet tree : trees) {
+                tree.insert(x);
+            }
         }
 
         System.out.println("Insertions:");
-        System.out.printf("AVL: %d tot. rotations req., height is %d, #nodes is %d, #comparisons is %d\n", AVLTree.rotations, avl.height, avl.countNodes(), AVLTree.comparisons);
-        System.out.printf("RBT: %d tot. rotations req., height is %d, #nodes is %d, #comparisons is %d\n", RBTree.rotations, rb.height(), rb.countNodes(), RBTree.comparisons);
+        for (int t = 0; t < trees.length; t++) {
+            TreeMetrics.Snapshot stats = trees[t].metrics().snapshotAndReset();
+            System.out.printf("%s: %d tot. rotations req., height is %d, #nodes is %d, #comparisons is %d\n", label(names[t]), stats.rotations(), trees[t].height(), countNodes(trees[t]), stats.comparisons);
+        }
         System.out.println();
 
-        RBTree.resetCounters();
-        AVLTree.resetCounters();
-
 
         //Delete
 
-        for (Object y: Y) {
-            avl.delete((int) y);
-            rb.delete((int) y);
+        for (int y: Y) {
+            for (SortedIntSet tree : trees) {
+                tree.delete(y);
+            }
         }
 
         System.out.println("Deletions:");
-        System.out.printf("AVL: %d tot. rotations req., height is %d, #nodes is %d, #comparisons is %d\n", AVLTree.rotations, avl.height, avl.countNodes(), AVLTree.comparisons);
-        System.out.printf("RBT: %d tot. rotations req., height is %d, #nodes is %d, #comparisons is %d\n", RBTree.rotations, rb.height(), rb.countNodes(), RBTree.comparisons);
+        for (int t = 0; t < trees.length; t++) {
+            TreeMetrics.Snapshot stats = trees[t].metrics().snapshotAndReset();
+            System.out.printf("%s: %d tot. rotations req., height is %d, #nodes is %d, #comparisons is %d\n", label(names[t]), stats.rotations(), trees[t].height(), countNodes(trees[t]), stats.comparisons);
+        }
         System.out.println();
 
-        RBTree.resetCounters();
-        AVLTree.resetCounters();
-
 
         //Search
 
-        for (Object z: Z) {
-            avl.search((int) z);
-            rb.search((int) z);
+        for (int z: Z) {
+            for (SortedIntSet tree : trees) {
+                tree.contains(z);
+            }
         }
 
         System.out.println("Search:");
         System.out.println("k is " + k);
-        System.out.printf("AVL: %d tot. comparisons required\n", AVLTree.comparisons);
-        System.out.printf("RBT: %d tot. comparisons required\n", RBTree.comparisons);
+        for (int t = 0; t < trees.length; t++) {
+            TreeMetrics.Snapshot stats = trees[t].metrics().snapshotAndReset();
+            System.out.printf("%s: %d tot. comparisons required\n", label(names[t]), stats.comparisons);
+        }
         System.out.println();
 
     }
 
 
+    /**
+     * Count the nodes of a tree. A multiset has fewer nodes than keys, since it keeps the copies of a key together.
+     * @param tree The tree.
+     * @return The number of nodes holding keys.
+     */
+    static int countNodes(SortedIntSet tree) {
+        if (tree instanceof AVLTree) {
+            return ((AVLTree) tree).countNodes();
+        }
+        if (tree instanceof RBTree) {
+            return ((RBTree) tree).countNodes();
+        }
+        return tree.size();
+    }
+
+    /**
+     * The name printed for a tree.
+     */
+    static String label(String name) {
+        switch (name) {
+            case "avl": return "AVL";
+            case "wavl": return "WAVL";
+            case "rb": return "RBT";
+            case "offheap": return "Off-heap RBT";
+            case "bplus": return "B+T";
+            case "splay": return "Splay";
+            case "semisplay": return "Semi-splay";
+            case "avl-multi": return "AVL multiset";
+            case "wavl-multi": return "WAVL multiset";
+            case "rb-multi": return "RBT multiset";
+            default: return name;
+        }
+    }
+
+
     /**
      * Returns a set of randomly generated integers.
+     * The values are drawn without a set to reject repeats, so this stays fast as size approaches the range.
      * @param size The size of the set created.
      * @param min The lower-bound of the set.
      * @param max The upper-bound of the set.
-     * @return The Set of random numbers.
+     * @param seed The random seed.
+     * @return The distinct random numbers, in random order.
      */
-    public static Set makeRandSet(int size, int min, int max){
-
-        Set<Integer> X = new HashSet<Integer>();
-
-
-        // Loop until we have filled the set
-        // Since we are using sets, numbers will only be added if they do not already exist
-        // So the size will only increase when a new number is generated
-        while (X.size() < size) {
-            int r = (int) Math.floor( Math.random()*(max-min+1) + min);
-            X.add(r);
-        }
-
-        return X;
+    public static int[] makeRandSet(int size, int min, int max, long seed) {
+        return KeyGenerator.distinct(size, min, max, seed);
     }
 
 
@@ -106,11 +180,14 @@ public class Main {
      * @param Y The smaller set.
      * @return The number of common elements
      */
-    public static int compareSet(Set X, Set Y) {
+    public static int compareSet(int[] X, int[] Y) {
         int counter = 0;
 
-        for (Object y : Y) {
-            if (X.contains(y)) {
+        int[] sorted = X.clone();
+        Arrays.sort(sorted);
+
+        for (int y : Y) {
+            if (Arrays.binarySearch(sorted, y) >= 0) {
                 counter++;
             }
         }
@@ -0,0 +1,2339 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
+/**
+ * An RBTree for keys of any type, ordered by a Comparator. The algorithms are the same as in RBTree.
+ * @param <K> The type of the keys.
+ * Generated from RBTree by TreeVariants. Change RBTree and run java TreeVariants instead of editing this file.
+ */
+public class ObjectRBTree<K> {
+
+    final Comparator<? super K> comparator;         // The order of the keys
+    final TreeMetrics metrics = new TreeMetrics();  // Counters for the work done by this tree
+    final Comparison comparison;                    // How keys are compared
+    final Duplicates duplicates;                    // How repeated keys are stored
+    final TreeProfile profile = TreeProfile.ENABLED ? new TreeProfile("object-rb") : null;
+
+    // The most nodes on a path from the root. A red-black tree of fewer than 2^31 keys has height at most 62
+    private static final int MAX_DEPTH = 64;
+
+    Node<K> root;  // The root of the tree
+
+    @SuppressWarnings("unchecked")
+    private final Node<K>[] path = (Node<K>[]) new Node<?>[MAX_DEPTH];  // The ancestors of the node being deleted, or the nodes forEachInRange has still to visit
+
+
+    /**
+     * Constructs an empty tree whose keys are ordered by a comparator.
+     * @param comparator The order of the keys.
+     */
+    public ObjectRBTree(Comparator<? super K> comparator) {
+        this(comparator, Comparison.COUNTING);
+    }
+
+    /**
+     * Constructs an empty tree whose keys are ordered by a comparator and compared in a given way.
+     * @param comparator The order of the keys.
+     * @param comparison COUNTING to count every comparison in metrics(), RAW for the fastest comparisons.
+     */
+    public ObjectRBTree(Comparator<? super K> comparator, Comparison comparison) {
+        this(comparator, comparison, Duplicates.NODES);
+    }
+
+    /**
+     * Constructs an empty tree whose keys are ordered by a comparator, compared and stored in given ways.
+     * @param comparator The order of the keys.
+     * @param comparison COUNTING to count every comparison in metrics(), RAW for the fastest comparisons.
+     * @param duplicates NODES to store every copy of a key in its own node, COUNTED for a multiset.
+     */
+    public ObjectRBTree(Comparator<? super K> comparator, Comparison comparison, Duplicates duplicates) {
+        this.comparator = comparator;
+        this.comparison = comparison;
+        this.duplicates = duplicates;
+        this.root = null;
+    }
+
+
+    /*
+     * Represents a node in the tree. Each node has a key value and is coloured Red or Black.
+     * Nodes have no parent pointer: every update works top-down and keeps the few ancestors it needs in locals.
+     * The class is static so that a node does not hold a reference to its tree either.
+     */
+    public static class Node<K> {
+
+        Node<K> left;   // Left subtree
+        Node<K> right;  // Right subtree
+
+        K key;          // Value stored
+        boolean isRed;  // True when the node is red, false when the node is black
+        int size;       // The number of keys in the subtree rooted at this node, counting every copy
+
+
+        /**
+         * Creates an empty node with no value stored.
+         */
+        public Node () {
+            this.left = null;
+            this.right = null;
+            this.key = null;
+            this.isRed = true;
+            this.size = 0;
+        }
+
+        /**
+         * Creates a red node with a given value.
+         * @param key The Value stored.
+         */
+        public Node (K key) {
+            this.left = null;
+            this.right = null;
+            this.key = key;
+            this.isRed = true;
+            this.size = 1;
+        }
+
+
+        /**
+         * Get the number of copies of the key held by this node.
+         * @return 1, unless this is a CountedNode<K>.
+         */
+        int count() {
+            return 1;
+        }
+
+
+        /**
+         * Recursively print out the contents of the node.
+         * Prints "(Key, R/B, LeftKey, RightKey)" for each node.
+         * Used for debugging purposes.
+         */
+        public void print(){
+            print(null);
+        }
+
+        /**
+         * Recursively print out the contents of the node, followed by the key of its parent.
+         * @param parent The parent of this node, or null for the root.
+         */
+        void print(Node<K> parent){
+            System.out.print("(" + key + ", " + (isRed ? "R":"B") + ", ");
+
+            if (left == null) {
+                System.out.print("-, ");
+            }
+            else {
+                System.out.print(left.key + ", ");
+            }
+
+            if (right == null) {
+                System.out.print("-)");
+            }
+            else {
+                System.out.print(right.key + ")");
+            }
+
+            if (parent == null) {
+                System.out.println(" (root)");
+            }
+            else {
+                System.out.println(" (" + parent.key + ")");
+            }
+
+            if (left != null) {
+                left.print(this);
+            }
+            if (right != null) {
+                right.print(this);
+            }
+
+        }
+
+
+        /**
+         * Calculates the height of the node.
+         * @return The height of the node.
+         */
+        public int height() {
+
+            int rHeight = 0;
+            int lHeight = 0;
+
+            if (left == null && right == null) {
+                return 0;
+            }
+
+            if (left != null){
+                lHeight = left.height();
+            }
+
+            if (right != null){
+                rHeight = right.height();
+            }
+
+            return (rHeight > lHeight) ? (rHeight+1) : (lHeight+1);
+        }
+
+        /**
+         * Counts the number of nodes in the tree
+         * @return The number of nodes in the tree
+         */
+        public int countNodes() {
+            int lCount = 0;
+            int rCount = 0;
+
+            if (left != null) {
+                lCount += left.countNodes();
+            }
+
+            if (right != null) {
+                rCount += right.countNodes();
+            }
+
+            return 1 + lCount + rCount;
+        }
+
+    }
+
+
+    /*
+     * A node of a multiset, which holds every copy of its key. Only a multiset pays for the count,
+     * which takes a Node<K> from 32 to 40 bytes.
+     */
+    static final class CountedNode<K> extends Node<K> {
+
+        int count;      // The number of copies of the key
+
+
+        CountedNode(K key) {
+            super(key);
+            this.count = 1;
+        }
+
+        @Override
+        int count() {
+            return count;
+        }
+    }
+
+
+    /**
+     * Create a red node holding a given value, counting the allocation.
+     * @param n The value stored.
+     * @return The new node, a CountedNode<K> in a multiset.
+     */
+    private Node<K> newNode(K n) {
+        metrics.allocation();
+        return (duplicates == Duplicates.COUNTED) ? new CountedNode<>(n) : new Node<>(n);
+    }
+
+
+
+    /**
+     * Search the tree for a given key value.
+     * @param n The key value to search for.
+     * @return The node with the key value or null if the value is not in the tree.
+     */
+    public Node<K> search(K n) {
+
+        if (TreeProfile.ENABLED) {
+            long start = profile.begin();
+            Node<K> x = searchKey(n);
+            profile.end(TreeProfile.SEARCH, start, n);
+            return x;
+        }
+
+        return searchKey(n);
+    }
+
+    /**
+     * Search the tree for a given key value.
+     * @param n The key value to search for.
+     * @return True if the value is in the tree.
+     */
+    public boolean contains(K n) {
+        return search(n) != null;
+    }
+
+    /**
+     * Search the tree without profiling, for callers that search from several threads at once.
+     * @param n The key value to search for.
+     * @return The node with the key value or null if the value is not in the tree.
+     */
+    Node<K> searchKey(K n) {
+
+        Node<K> x = root;
+
+        while (x != null) {
+
+            int c = compare(n, x.key);
+
+            if (c == 0) {
+                // This is the requested node
+                return x;
+            }
+            else if (c < 0) {
+                // The key is in the left subtree
+                x = x.left;
+            }
+            else {
+                // The key is in the right subtree
+                x = x.right;
+            }
+
+        }
+
+        // The key was not found
+        return null;
+
+    }
+
+
+    //Bulk construction
+
+    // Below this many keys a subtree is built on the current thread
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+
+
+    /**
+     * Build a perfectly balanced tree from keys that are already sorted, in linear time.
+     * Every node is black except those on the bottom level when it is not full,
+     * which keeps the black height the same on every path. No comparisons or rotations are needed.
+     * @param keys The keys, in ascending order.
+     * @param comparator The order of the keys.
+     * @return The new tree.
+     */
+    public static <K> ObjectRBTree<K> fromSorted(K[] keys, Comparator<? super K> comparator) {
+        ObjectRBTree<K> tree = new ObjectRBTree<>(comparator);
+        tree.root = tree.build(keys, 0, keys.length, 0, redDepth(keys.length));
+        return tree;
+    }
+
+    /**
+     * Build a perfectly balanced tree from keys in any order.
+     * The keys are sorted in parallel and the subtrees are built in parallel with fork-join.
+     * @param keys The keys. The array is not modified.
+     * @param comparator The order of the keys.
+     * @return The new tree.
+     */
+    public static <K> ObjectRBTree<K> fromUnsortedParallel(K[] keys, Comparator<? super K> comparator) {
+        K[] sorted = keys.clone();
+        Arrays.parallelSort(sorted, comparator);
+
+        ObjectRBTree<K> tree = new ObjectRBTree<>(comparator);
+        tree.root = ForkJoinPool.commonPool().invoke(tree.new BuildTask(sorted, 0, sorted.length, 0, redDepth(sorted.length)));
+        return tree;
+    }
+
+    /**
+     * The depth of the nodes that are coloured red in a balanced tree of n nodes.
+     * @return The depth of the bottom level, or -1 if the bottom level is full.
+     */
+    private static int redDepth(int n) {
+        int bottom = 31 - Integer.numberOfLeadingZeros(n);  // floor(log2(n))
+
+        // A tree with 2^(bottom+1) - 1 nodes is perfect and can be entirely black
+        return ((n & (n + 1)) == 0) ? -1 : bottom;
+    }
+
+    /**
+     * Build a balanced subtree holding keys[lo..hi), with the middle key at its root.
+     * @param depth The depth of the subtree root.
+     * @param redDepth The depth of the nodes to colour red.
+     * @return The root of the subtree, or null if the range is empty.
+     */
+    private Node<K> build(K[] keys, int lo, int hi, int depth, int redDepth) {
+        if (lo == hi) {
+            return null;
+        }
+
+        int mid = (lo + hi) >>> 1;
+
+        Node<K> x = newNode(keys[mid]);
+        x.isRed = (depth == redDepth);
+
+        x.left = build(keys, lo, mid, depth + 1, redDepth);
+        x.right = build(keys, mid + 1, hi, depth + 1, redDepth);
+        x.size = hi - lo;
+
+        return x;
+    }
+
+    /*
+     * Builds the subtree for keys[lo..hi), splitting large ranges between threads.
+     */
+    @SuppressWarnings("serial")
+    private final class BuildTask extends RecursiveTask<Node<K>> {
+
+        final K[] keys;
+        final int lo;
+        final int hi;
+        final int depth;
+        final int redDepth;
+
+        BuildTask(K[] keys, int lo, int hi, int depth, int redDepth) {
+            this.keys = keys;
+            this.lo = lo;
+            this.hi = hi;
+            this.depth = depth;
+            this.redDepth = redDepth;
+        }
+
+        @Override
+        protected Node<K> compute() {
+            if (hi - lo <= PARALLEL_THRESHOLD) {
+                return build(keys, lo, hi, depth, redDepth);
+            }
+
+            int mid = (lo + hi) >>> 1;
+
+            Node<K> x = newNode(keys[mid]);
+            x.isRed = (depth == redDepth);
+
+            BuildTask leftTask = new BuildTask(keys, lo, mid, depth + 1, redDepth);
+            leftTask.fork();
+            x.right = new BuildTask(keys, mid + 1, hi, depth + 1, redDepth).compute();
+            x.left = leftTask.join();
+            x.size = hi - lo;
+
+            return x;
+        }
+    }
+
+
+    /**
+     * Insert a new key value into the tree.
+     * @param n The value to be inserted.
+     */
+    public void insert(K n) {
+
+        if (TreeProfile.ENABLED) {
+            long start = profile.begin();
+            insertKey(n);
+            profile.end(TreeProfile.INSERT, start, n);
+            return;
+        }
+
+        insertKey(n);
+    }
+
+    private void insertKey(K n) {
+
+        // Check if the root node has been created yet
+        if (root == null) {
+            //Create a black root node
+            root = newNode(n);
+            recolour(root, false);
+            return;
+        }
+
+
+        // Begin insertion
+
+        Node<K> x = root;   //Current node
+        Node<K> p = null;   //Parent of x
+        Node<K> g = null;   //Grandparent of x
+        Node<K> gg = null;  //Great-grandparent of x, where a subtree rotated at g is hung back
+
+        // Loop until we have found the right position
+        while (x != null) {
+
+            if (TreeProfile.ENABLED) {
+                profile.pathLength++;
+            }
+
+            //The new key will be below x
+            //Rotations hand a subtree's size to its new root, so the count survives them
+            x.size++;
+
+            int c = compare(n, x.key);
+
+            if (c == 0 && duplicates == Duplicates.COUNTED) {
+                //A multiset keeps every copy of n in this node, and the sizes above are already updated
+                ((CountedNode<K>) x).count++;
+                break;
+            }
+
+            if (c < 0) {
+                //insert n in the left subtree
+
+                if (x.left == null) {
+                    //Insert n here, as the left child
+                    x.left = newNode(n);
+
+                    //If the current node is black, we can just insert n and stop
+                    //If the node is red, we must perform rotations
+
+                    if (x.isRed) {
+                        //The current node is red & we know the uncle cannot also be red
+                        Node<K> newNode = x.left;
+
+                        if (x == p.left) {
+                            //The current node is a left child
+                            //We are inserting n on the left
+                            llRotation(g, p);
+                            recolour(x, false);
+                        }
+                        else {
+                            //The current node is a right child
+                            //We are inserting n on the left
+                            rlRotation(g, p);
+                            recolour(newNode, false);
+                        }
+
+                        // Update node colours after rotations
+                        recolour(p, true);
+
+                    }
+
+
+                    x = null; // Stop Looping
+
+                }
+                else {
+                    //Continue searching
+
+                    //Check if we have 2 red children that need to be recoloured
+                    Node<K> top = checkFor2RedChildren(x, p, g, gg);
+
+                    if (top == p) {
+                        //p took the place of g
+                        g = gg;
+                    }
+                    else if (top == x) {
+                        //x took the place of g and is black, so no rotation needs a node above gg
+                        //before x has moved down a level
+                        p = gg;
+                        g = null;
+                    }
+
+                    //Continue in the left subtree
+                    gg = g;
+                    g = p;
+                    p = x;
+                    x = x.left;
+                }
+
+            }
+
+            else {
+                //insert n in the right subtree
+
+                if (x.right == null) {
+                    //Insert n as the right child
+                    x.right = newNode(n);
+
+                    //If the current node is black, we can just insert n and stop
+                    //If the node is red, we must perform rotations
+
+                    if (x.isRed)  {
+                        //The current node is red & we know the uncle cannot also be red
+                        Node<K> newNode = x.right;
+
+                        if (x == p.right) {
+                            //The current node is a right child
+                            //We are inserting n on the right
+                            rrRotation(g, p);
+                            recolour(x, false);
+                        }
+                        else {
+                            //The current node is a left child
+                            //We are inserting n on the right
+                            lrRotation(g, p);
+                            recolour(newNode, false);
+                        }
+
+                        //Update colours after rotations
+                        recolour(p, true);
+
+                    }
+
+                    x = null; // Stop Looping
+                }
+                else {
+                    //Continue searching
+
+                    //Check if we have 2 red children that need to be recoloured
+                    Node<K> top = checkFor2RedChildren(x, p, g, gg);
+
+                    if (top == p) {
+                        //p took the place of g
+                        g = gg;
+                    }
+                    else if (top == x) {
+                        //x took the place of g and is black, so no rotation needs a node above gg
+                        //before x has moved down a level
+                        p = gg;
+                        g = null;
+                    }
+
+                    //Continue in the right subtree
+                    gg = g;
+                    g = p;
+                    p = x;
+                    x = x.right;
+                }
+
+            }
+
+        }
+
+
+        //The root node must always be black
+        recolour(root, false);
+    }
+
+
+    /**
+     * When carrying out a top-down insertion, check if the next 2 children are both red.
+     * If both children are red, change their colours and perform any necessary rotations.
+     * @param x The current node.
+     * @param p The parent of x, or null if x is the root.
+     * @param g The grandparent of x.
+     * @param gg The parent of g, or null if g is the root.
+     * @return The node that took the place of g after a rotation, or null if there was no rotation.
+     */
+    private Node<K> checkFor2RedChildren(Node<K> x, Node<K> p, Node<K> g, Node<K> gg) {
+
+        if (x.left != null && x.right != null) {
+            if (x.left.isRed && x.right.isRed) {
+                //Both children are red, swap their colours
+                //The root must stay black, otherwise its children cannot be rotated
+                recolour(x, p != null);
+                recolour(x.left, false);
+                recolour(x.right, false);
+
+                //Check for red-red violations
+                if (p != null && p.isRed) {
+                    //We have a violation, perform the necessary rotation
+                    Node<K> top;
+
+                    if (p == g.left) {
+                        // The parent is left of the grandparent
+
+                        if (x == p.left) {
+                            // The current node is also left
+                            top = llRotation(gg, g);
+                            recolour(p, false);
+                        }
+                        else {
+                            // The current node is right
+                            top = lrRotation(gg, g);
+                            recolour(x, false);
+                        }
+
+                    }
+                    else {
+                        // The parent is right of the grandparent
+
+                        if (x == p.left) {
+                            // The current node is left
+                            top = rlRotation(gg, g);
+                            recolour(x, false);
+                        }
+                        else {
+                            // The current node is also right
+                            top = rrRotation(gg, g);
+                            recolour(p, false);
+                        }
+
+                    }
+
+                    // The grandparent moves below the new subtree root
+                    recolour(g, true);
+
+                    return top;
+                }
+
+            }
+
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Delete a node from the tree.
+     * @param n The key value of the node to be deleted.
+     */
+    public void delete(K n) {
+
+        if (TreeProfile.ENABLED) {
+            long start = profile.begin();
+            deleteKey(n);
+            profile.end(TreeProfile.DELETE, start, n);
+            return;
+        }
+
+        deleteKey(n);
+    }
+
+    private void deleteKey(K n) {
+
+        //check the root node
+        if (root == null) {
+            return;
+        }
+
+
+        Node<K>[] path = this.path;  //The ancestors of x, from the root down
+        int depth = 0;               //The number of ancestors
+
+        Node<K> x = root;  //Current node being checked
+
+
+        while (true) {
+
+            if (TreeProfile.ENABLED) {
+                profile.pathLength++;
+            }
+
+            int c = compare(x.key, n);
+
+            if (c == 0) {
+                //This is the node to be deleted
+                break;
+            }
+
+            path[depth++] = x;
+
+            if (c < 0) {
+                //Search in the right subtree
+                x = x.right;
+            }
+            else {
+                //Search in the left subtree
+                x = x.left;
+            }
+
+            if (x == null) {
+                //The key is not in the tree
+                return;
+            }
+
+        }
+
+
+        if (x.count() > 1) {
+            //A multiset node with other copies of n stays in the tree
+            ((CountedNode<K>) x).count--;
+            x.size--;
+
+            for (int i = 0; i < depth; i++) {
+                path[i].size--;
+            }
+            return;
+        }
+
+
+        boolean removedRed;  //Colour of the node taken out of its position
+        Node<K> z;           //The node that moves into that position
+        int xDepth = depth;  //The depth of x, which the successor takes over when x has two children
+        int moved = 1;       //The number of keys that leave the subtrees below xDepth
+
+        if (x.left == null || x.right == null) {
+            //Replace x with its only child
+            removedRed = x.isRed;
+            z = (x.left == null) ? x.right : x.left;
+            replaceChild(parent(depth), x, z);
+        }
+
+        else {
+            //There are two non null-children
+            //Find the inorder successor of x, which will take its place
+            path[depth++] = x;
+
+            Node<K> y = x.right;
+
+            while (y.left != null) {
+                path[depth++] = y;
+                y = y.left;
+            }
+
+            //Take y out of its position, then put it in x's
+            removedRed = y.isRed;
+            moved = y.count();
+            z = y.right;
+            replaceChild(path[depth - 1], y, z);
+
+            y.left = x.left;
+            y.right = x.right;
+            y.size = x.size;
+            replaceChild(parent(xDepth), x, y);
+            recolour(y, x.isRed);
+
+            path[xDepth] = y;
+        }
+
+        //Every node above x has one key fewer below it, and the nodes between x and the successor have lost
+        //the successor's keys
+        for (int i = 0; i < depth; i++) {
+            path[i].size -= (i > xDepth) ? moved : 1;
+        }
+
+        if (!removedRed) {
+            deleteFixup(z, depth);
+        }
+
+    }
+
+
+    /**
+     * Get an ancestor recorded by the last delete.
+     * @param depth The number of ancestors of the node whose parent is wanted.
+     * @return The parent, or null for the root.
+     */
+    private Node<K> parent(int depth) {
+        return (depth == 0) ? null : path[depth - 1];
+    }
+
+    /**
+     * Hang a node in the place of one of a parent's children.
+     * @param p The parent, or null to make y the root.
+     * @param x The child being replaced.
+     * @param y The new child.
+     */
+    private void replaceChild(Node<K> p, Node<K> x, Node<K> y) {
+
+        if (p == null) {
+            //x is the root
+            root = y;
+        }
+        else if (p.left == x) {
+            //x is the left child
+            p.left = y;
+        }
+        else {
+            //x is the right child
+            p.right = y;
+        }
+    }
+
+
+    /**
+     * After a node has been deleted, some RB tree properties may have been violated.
+     * @param x We will start fixing the tree from node x
+     * @param depth The number of ancestors of x, which are in path
+     */
+    private void deleteFixup(Node<K> x, int depth) {
+
+        while (depth > 0 && (x == null || !x.isRed)) {
+
+            Node<K> p = path[depth - 1];  //Parent node
+            Node<K> w;                    //Sibling node
+
+            if (x == p.left) {
+
+                w = p.right;
+
+                //Case 1: x has a red sibling
+                if (w!= null && w.isRed) {
+                    recolour(w, false);
+                    recolour(p, true);
+                    rrRotation(parent(depth - 1), p);
+
+                    //w is now between p and its old parent
+                    path[depth - 1] = w;
+                    path[depth++] = p;
+                    w = p.right;
+                }
+
+                //Case 2: x's sibling is black, and the sibling has 2 black children
+                if (w!= null && (w.left==null || !w.left.isRed) && (w.right==null || !w.right.isRed)) {
+                    recolour(w, true);
+                    x = p;
+                    depth--;
+                }
+
+                //Case 3: x's sibling is black, and the sibling's left child is red and right child is black
+                else if (w!= null && (w.right==null || !w.right.isRed)){
+                    recolour(w.left, false);
+                    recolour(w, true);
+                    llRotation(p, w);
+                    w = p.right;
+                }
+
+                //Case 4: x's sibling is black, and the sibling's right child is red
+                else if (w!=null) {
+                    recolour(w, p.isRed);
+                    recolour(p, false);
+                    recolour(w.right, false);
+                    rrRotation(parent(depth - 1), p);
+                    x = root;
+                    depth = 0;
+                }
+
+                //Case 5: x does not have a sibling
+                else {
+                    break;
+                }
+
+            }
+
+            else {
+
+                w = p.left;
+
+                //Case 1: x has a red sibling
+                if (w!= null && w.isRed) {
+                    recolour(w, false);
+                    recolour(p, true);
+                    llRotation(parent(depth - 1), p);
+
+                    //w is now between p and its old parent
+                    path[depth - 1] = w;
+                    path[depth++] = p;
+                    w = p.left;
+                }
+
+                //Case 2: x's sibling is black, and the sibling has 2 black children
+                if (w!= null && (w.left==null || !w.left.isRed) && (w.right==null || !w.right.isRed)) {
+                    recolour(w, true);
+                    x = p;
+                    depth--;
+                }
+
+                //Case 3: x's sibling is black, and the sibling's right child is red and left child is black
+                else if (w!= null && (w.left==null || !w.left.isRed)){
+                    recolour(w.right, false);
+                    recolour(w, true);
+                    rrRotation(p, w);
+                    w = p.left;
+                }
+
+                //Case 4: x's sibling is black, and the sibling's left child is red
+                else if (w!= null){
+                    recolour(w, p.isRed);
+                    recolour(p, false);
+                    recolour(w.left, false);
+                    llRotation(parent(depth - 1), p);
+                    x = root;
+                    depth = 0;
+                }
+
+                //Case 5: x does not have a sibling
+                else {
+                    break;
+                }
+
+
+            }
+
+        }
+
+        if (x != null) {
+            recolour(x, false);
+        }
+    }
+
+
+
+
+
+
+    //Rotations
+
+    /**
+     * Perform a left single rotation
+     * @param p The parent of x, or null if x is the root.
+     * @return The node that took the place of x.
+     */
+    private Node<K> llRotation(Node<K> p, Node<K> x) {
+        metrics.llRotation();
+        if (TreeProfile.ENABLED) {
+            profile.rotations += 1;
+        }
+        return llRotate(p, x);
+    }
+
+    /**
+     * Perform a left double rotation
+     * @param p The parent of x, or null if x is the root.
+     * @return The node that took the place of x.
+     */
+    private Node<K> lrRotation(Node<K> p, Node<K> x) {
+        metrics.lrRotation();
+        if (TreeProfile.ENABLED) {
+            profile.rotations += 2;
+        }
+        rrRotate(x, x.left);
+        return llRotate(p, x);
+    }
+
+    /**
+     * Perform a right single rotation
+     * @param p The parent of x, or null if x is the root.
+     * @return The node that took the place of x.
+     */
+    private Node<K> rrRotation(Node<K> p, Node<K> x) {
+        metrics.rrRotation();
+        if (TreeProfile.ENABLED) {
+            profile.rotations += 1;
+        }
+        return rrRotate(p, x);
+    }
+
+    /**
+     * Perform a right double rotation
+     * @param p The parent of x, or null if x is the root.
+     * @return The node that took the place of x.
+     */
+    private Node<K> rlRotation(Node<K> p, Node<K> x) {
+        metrics.rlRotation();
+        if (TreeProfile.ENABLED) {
+            profile.rotations += 2;
+        }
+        llRotate(x, x.right);
+        return rrRotate(p, x);
+    }
+
+    /**
+     * Rotate the left child of x up without counting the rotation.
+     * @param p The parent of x, or null if x is the root.
+     * @return The node that took the place of x.
+     */
+    private Node<K> llRotate(Node<K> p, Node<K> x) {
+
+        Node<K> tmp = x.left;  //Store the node that will be rotated temporarily
+
+        x.left = tmp.right; //Move the child to its new position
+        tmp.right = x;      //Put x in its new position
+
+        replaceChild(p, x, tmp);
+
+        //The subtree still holds the same keys, so tmp takes x's size and only x is recomputed
+        tmp.size = x.size;
+        updateSize(x);
+
+        return tmp;
+    }
+
+    /**
+     * Rotate the right child of x up without counting the rotation.
+     * @param p The parent of x, or null if x is the root.
+     * @return The node that took the place of x.
+     */
+    private Node<K> rrRotate(Node<K> p, Node<K> x) {
+
+        Node<K> tmp = x.right;  //Store the node that will be rotated temporarily
+
+        x.right = tmp.left; //Move the child to its new position
+        tmp.left = x;       //Put x in its new position
+
+        replaceChild(p, x, tmp);
+
+        //The subtree still holds the same keys, so tmp takes x's size and only x is recomputed
+        tmp.size = x.size;
+        updateSize(x);
+
+        return tmp;
+    }
+
+
+    //Batch operations and set algebra
+
+    // Operations for setOp
+    private static final int UNION = 0;         // Keys in either subtree
+    private static final int INTERSECT = 1;     // Keys in both subtrees
+    private static final int DIFFERENCE = 2;    // Keys of the walked subtree that are not in the split one
+    private static final int SUBTRACT = 3;      // Keys of the split subtree that are not in the walked one
+
+
+    /*
+     * The parts of a split subtree, with their black heights.
+     */
+    private static final class Split<K> {
+        Node<K> left;
+        Node<K> middle;
+        Node<K> right;
+        int leftHeight;
+        int rightHeight;
+    }
+
+
+    /**
+     * Insert every key of a batch. The batch is sorted and merged into the tree in a single traversal:
+     * each node splits the keys that reach it between its subtrees, and each subtree is rebalanced once,
+     * by joining its two updated halves, instead of once per key.
+     * @param keys The keys to insert, in any order. The array is not modified.
+     */
+    public void insertAll(K[] keys) {
+        if (duplicates == Duplicates.COUNTED) {
+            // Merging would add a second node for a key that is already in the multiset
+            for (K key : keys) {
+                insert(key);
+            }
+            return;
+        }
+
+        K[] batch = keys.clone();
+        Arrays.sort(batch, comparator);
+
+        root = new Joiner().union(root, blackHeight(root), batch, 0, batch.length);
+        finishBatch();
+    }
+
+    /**
+     * Delete every key of a batch, removing one copy of a key for each time it appears in the batch.
+     * Keys that are not in the tree are ignored. The sorted batch is split around its middle key, the tree is
+     * split at the same key, and the two halves are processed separately and joined back together.
+     * @param keys The keys to delete, in any order. The array is not modified.
+     */
+    public void deleteAll(K[] keys) {
+        if (duplicates == Duplicates.COUNTED) {
+            // Splitting would remove every copy held by a node at once
+            for (K key : keys) {
+                delete(key);
+            }
+            return;
+        }
+
+        K[] batch = keys.clone();
+        Arrays.sort(batch, comparator);
+
+        root = new Joiner().difference(root, blackHeight(root), batch, 0, batch.length);
+        finishBatch();
+    }
+
+    /**
+     * Search for every key of a batch in a single traversal. Keys that reach the same node share the
+     * path to it, so each node is visited at most once.
+     * @param keys The keys to search for, in any order.
+     * @param out Set to true at position i if keys[i] is in the tree, false otherwise.
+     */
+    public void searchAll(K[] keys, boolean[] out) {
+        if (out.length < keys.length) {
+            throw new IllegalArgumentException("Output has " + out.length + " places for " + keys.length + " keys");
+        }
+
+        // Search for the keys in sorted order, then look up where each one came from
+        K[] sorted = keys.clone();
+        Arrays.sort(sorted, comparator);
+
+        boolean[] found = new boolean[sorted.length];
+        searchAll(root, sorted, 0, sorted.length, found);
+
+        for (int i = 0; i < keys.length; i++) {
+            out[i] = found[Arrays.binarySearch(sorted, keys[i], comparator)];
+        }
+    }
+
+    /**
+     * Mark the keys of sorted[lo..hi) that are in the subtree rooted at x.
+     */
+    private void searchAll(Node<K> x, K[] sorted, int lo, int hi, boolean[] found) {
+        if (lo == hi || x == null) {
+            return;
+        }
+
+        int from = firstNotBelow(sorted, lo, hi, x.key, false);
+        int to = firstNotBelow(sorted, from, hi, x.key, true);
+
+        Arrays.fill(found, from, to, true);
+
+        searchAll(x.left, sorted, lo, from, found);
+        searchAll(x.right, sorted, to, hi, found);
+    }
+
+    /**
+     * Move every key that is not smaller than n into a new tree. This tree keeps the keys smaller than n.
+     * Takes O(log n) time.
+     * @param n The value to split at.
+     * @return A tree holding the keys that are not smaller than n.
+     */
+    public ObjectRBTree<K> split(K n) {
+        Split<K> parts = new Split<>();
+        new Joiner().split(root, blackHeight(root), n, parts);
+
+        root = parts.left;
+        finishBatch();
+
+        ObjectRBTree<K> rest = new ObjectRBTree<>(comparator, comparison, duplicates);
+        rest.root = parts.right;
+        rest.finishBatch();
+        return rest;
+    }
+
+    /**
+     * Append a key and then every key of another tree to this tree, leaving the other tree empty.
+     * Takes time proportional to the difference in the heights of the two trees.
+     * In a multiset the keys must be strictly in order, since each key has a single node.
+     * @param key A key that is not smaller than any key of this tree.
+     * @param right A tree whose keys are not smaller than key.
+     * @throws IllegalArgumentException If the keys are not in order, or the trees compare or count keys differently.
+     */
+    public void join(K key, ObjectRBTree<K> right) {
+        checkCompatible(right);
+
+        if ((root != null && outOfOrder(rightmost(root).key, key))
+                || (right.root != null && outOfOrder(key, leftmost(right.root).key))) {
+            throw new IllegalArgumentException("Keys are not in order around " + key);
+        }
+
+        root = new Joiner().join(root, blackHeight(root), newNode(key), right.root, blackHeight(right.root));
+        right.root = null;
+        finishBatch();
+    }
+
+    /**
+     * Append every key of another tree to this tree, leaving the other tree empty.
+     * In a multiset the keys must be strictly in order, since each key has a single node.
+     * @param right A tree whose keys are not smaller than any key of this tree.
+     * @throws IllegalArgumentException If the keys are not in order, or the trees compare or count keys differently.
+     */
+    public void join(ObjectRBTree<K> right) {
+        checkCompatible(right);
+
+        if (root != null && right.root != null && outOfOrder(rightmost(root).key, leftmost(right.root).key)) {
+            throw new IllegalArgumentException("Keys are not in order");
+        }
+
+        root = new Joiner().concat(root, blackHeight(root), right.root, blackHeight(right.root));
+        right.root = null;
+        finishBatch();
+    }
+
+    /**
+     * Check whether two keys that are joined around each other are out of order. Equal keys are out of
+     * order in a multiset, which must not get a second node for a key.
+     * @return True if a is larger than b, or equal to it in a multiset.
+     */
+    private boolean outOfOrder(K a, K b) {
+        int c = compare(a, b);
+        return c > 0 || (c == 0 && duplicates == Duplicates.COUNTED);
+    }
+
+    /**
+     * Add every key of another tree to this one, leaving the other tree empty. A key in both trees is kept once,
+     * except in a multiset, where the counts of the key in the two trees are added.
+     * The smaller tree is walked and the larger is split at each of its keys, so for sizes m <= n this takes
+     * O(m log(n/m + 1)) work. Large subtrees are combined in parallel.
+     * Both trees must compare and count their keys in the same way.
+     * @param other The other tree.
+     * @throws IllegalArgumentException If the trees compare or count keys differently.
+     */
+    public void union(ObjectRBTree<K> other) {
+        setOp(UNION, other);
+    }
+
+    /**
+     * Keep only the keys that are also in another tree, leaving the other tree empty.
+     * In a multiset a key is kept as many times as the tree holding fewer copies has it.
+     * Takes O(m log(n/m + 1)) work for sizes m <= n, in parallel.
+     * @param other The other tree.
+     * @throws IllegalArgumentException If the trees compare or count keys differently.
+     */
+    public void intersect(ObjectRBTree<K> other) {
+        setOp(INTERSECT, other);
+    }
+
+    /**
+     * Remove every key that is in another tree, leaving the other tree empty.
+     * In a multiset each copy in the other tree removes one copy, down to none.
+     * Takes O(m log(n/m + 1)) work for sizes m <= n, in parallel.
+     * @param other The other tree.
+     * @throws IllegalArgumentException If the trees compare or count keys differently.
+     */
+    public void difference(ObjectRBTree<K> other) {
+        setOp(DIFFERENCE, other);
+    }
+
+    /**
+     * Count the keys that are in both this tree and another. Neither tree loses any keys, although
+     * the larger one is split and joined back together, so its shape may change.
+     * In a multiset a key counts as many times as the tree holding fewer copies has it.
+     * Takes O(m log(n/m + 1)) work for sizes m <= n, in parallel.
+     * @param other The other tree.
+     * @return The number of common keys.
+     * @throws IllegalArgumentException If the trees compare or count keys differently.
+     */
+    public int intersectionSize(ObjectRBTree<K> other) {
+        checkCompatible(other);
+
+        if (other == this) {
+            return size();
+        }
+
+        // Walk the smaller tree and split the larger one
+        ObjectRBTree<K> small = (size() <= other.size()) ? this : other;
+        ObjectRBTree<K> large = (small == this) ? other : this;
+
+        CountTask task = new CountTask(small.root, blackHeight(small.root), large.root, blackHeight(large.root));
+        large.root = ForkJoinPool.commonPool().invoke(task);
+        large.finishBatch();
+
+        return task.matches;
+    }
+
+    /**
+     * Replace the keys of this tree with the result of a set operation with another tree, which is left empty.
+     */
+    private void setOp(int op, ObjectRBTree<K> other) {
+        checkCompatible(other);
+
+        if (other == this) {
+            if (op == DIFFERENCE) {
+                root = null;
+            }
+            else if (op == UNION && duplicates == Duplicates.COUNTED) {
+                // Every key is added to itself
+                doubleCounts(root);
+            }
+            return;
+        }
+
+        // Walk the smaller tree and split the larger one
+        Node<K> s = root;
+        Node<K> l = other.root;
+
+        if (size(s) > size(l)) {
+            s = other.root;
+            l = root;
+
+            if (op == DIFFERENCE) {
+                // Remove the keys of the walked tree from the split one instead
+                op = SUBTRACT;
+            }
+        }
+
+        root = ForkJoinPool.commonPool().invoke(new SetTask(op, s, blackHeight(s), l, blackHeight(l)));
+        other.root = null;
+        finishBatch();
+    }
+
+
+    /**
+     * Double the count of every key in the subtree rooted at x, for the union of a multiset with itself.
+     */
+    private static <K> void doubleCounts(Node<K> x) {
+        if (x != null) {
+            ((CountedNode<K>) x).count *= 2;
+            x.size *= 2;
+            doubleCounts(x.left);
+            doubleCounts(x.right);
+        }
+    }
+
+    /**
+     * Reject a set operation or join with a tree whose nodes follow different rules: a set and a multiset count
+     * their keys differently, and the comparisons of the result must be counted in one way.
+     * @throws IllegalArgumentException If the trees differ in Duplicates or Comparison.
+     */
+    private void checkCompatible(ObjectRBTree<K> other) {
+        if (duplicates != other.duplicates) {
+            throw new IllegalArgumentException("Cannot combine a set and a multiset");
+        }
+        if (comparison != other.comparison) {
+            throw new IllegalArgumentException("Cannot combine trees with " + comparison + " and " + other.comparison + " comparisons");
+        }
+    }
+
+
+    /*
+     * The join-based algorithms. Each one reports the black height of the subtree it returns in joinedHeight,
+     * so every thread working on the tree uses its own Joiner.
+     */
+    private final class Joiner {
+
+        int joinedHeight;   // Black height of the subtree returned by the last call
+        int matches;        // Number of common keys found by count()
+
+        /**
+         * Merge keys[lo..hi) into the subtree rooted at t.
+         * @param h The black height of t.
+         * @return The root of the new subtree. Its black height is left in joinedHeight.
+         */
+        Node<K> union(Node<K> t, int h, K[] keys, int lo, int hi) {
+            if (lo == hi) {
+                joinedHeight = h;
+                return t;
+            }
+
+            if (t == null) {
+                // Every key in the range falls in this gap
+                int n = hi - lo;
+                joinedHeight = (31 - Integer.numberOfLeadingZeros(n)) + (redDepth(n) < 0 ? 1 : 0);
+                return build(keys, lo, hi, 0, redDepth(n));
+            }
+
+            // Keys less than this one go on the left, the rest on the right, as in insert
+            int mid = firstNotBelow(keys, lo, hi, t.key, false);
+            int hc = h - (t.isRed ? 0 : 1);
+            Node<K> r = t.right;
+
+            Node<K> newLeft = union(t.left, hc, keys, lo, mid);
+            int leftHeight = joinedHeight;
+            Node<K> newRight = union(r, hc, keys, mid, hi);
+
+            return join(newLeft, leftHeight, t, newRight, joinedHeight);
+        }
+
+        /**
+         * Remove one copy of each of keys[lo..hi) from the subtree rooted at t.
+         * @param h The black height of t.
+         * @return The root of the new subtree. Its black height is left in joinedHeight.
+         */
+        Node<K> difference(Node<K> t, int h, K[] keys, int lo, int hi) {
+            if (lo == hi || t == null) {
+                joinedHeight = h;
+                return t;
+            }
+
+            // Every copy of the middle key in the batch is handled here
+            K k = keys[(lo + hi) >>> 1];
+            int from = firstNotBelow(keys, lo, hi, k, false);
+            int to = firstNotBelow(keys, from, hi, k, true);
+
+            // After the split, every copy of k in the tree is at the start of the right part
+            Split<K> parts = new Split<>();
+            split(t, h, k, parts);
+            Node<K> r = parts.right;
+            int rightHeight = parts.rightHeight;
+
+            Node<K> l = difference(parts.left, parts.leftHeight, keys, lo, from);
+            int leftHeight = joinedHeight;
+
+            for (int i = from; i < to && r != null && compare('=', leftmost(r).key, k); i++) {
+                splitFirst(r, rightHeight, parts);
+                r = parts.right;
+                rightHeight = parts.rightHeight;
+            }
+
+            r = difference(r, rightHeight, keys, to, hi);
+
+            return concat(l, leftHeight, r, joinedHeight);
+        }
+
+        /**
+         * Join two subtrees with m between them. Every key in l must be no greater than m's key, and every
+         * key in r no less. m's own subtrees are replaced.
+         * m is hung from the spine of the taller subtree where the black heights match, and only the nodes on
+         * that spine are repaired, so the cost is proportional to the difference in black heights.
+         * @param hl The black height of l.
+         * @param hr The black height of r.
+         * @return The root of the joined subtree. Its black height is left in joinedHeight.
+         */
+        Node<K> join(Node<K> l, int hl, Node<K> m, Node<K> r, int hr) {
+            Node<K> t;
+
+            if (hl > hr) {
+                t = joinRight(l, hl, m, r, hr);
+                joinedHeight = hl;
+            }
+            else if (hr > hl) {
+                t = joinLeft(l, hl, m, r, hr);
+                joinedHeight = hr;
+            }
+            else {
+                // Equal black heights: m can be red unless it would sit on a red child
+                m.isRed = !isRed(l) && !isRed(r);
+                link(m, l, r);
+                t = m;
+                joinedHeight = m.isRed ? hl : hl + 1;
+            }
+
+            if (t.isRed && (isRed(t.left) || isRed(t.right))) {
+                // A red violation can only be left at the root, where blackening it is always allowed
+                recolour(t, false);
+                joinedHeight++;
+            }
+
+            return t;
+        }
+
+        /**
+         * Hang m on the right spine of l, which has the greater black height.
+         * @return The root of the joined subtree, which may be red with a red right child.
+         */
+        Node<K> joinRight(Node<K> l, int hl, Node<K> m, Node<K> r, int hr) {
+
+            if (!isRed(l) && hl == hr) {
+                // Found a black node of the same height as r, m replaces it as a red node
+                m.isRed = true;
+                link(m, l, r);
+                return m;
+            }
+
+            Node<K> t = joinRight(l.right, hl - (l.isRed ? 0 : 1), m, r, hr);
+            l.right = t;
+            updateSize(l);
+
+            if (!l.isRed && t.isRed && isRed(t.right)) {
+                // Two reds in a row below a black node: rotate the upper red up, with the lower one turned black
+                recolour(t.right, false);
+                metrics.rrRotation();
+
+                l.right = t.left;
+                updateSize(l);
+
+                t.left = l;
+                updateSize(t);
+
+                return t;
+            }
+
+            return l;
+        }
+
+        /**
+         * Hang m on the left spine of r, which has the greater black height.
+         * @return The root of the joined subtree, which may be red with a red left child.
+         */
+        Node<K> joinLeft(Node<K> l, int hl, Node<K> m, Node<K> r, int hr) {
+
+            if (!isRed(r) && hl == hr) {
+                // Found a black node of the same height as l, m replaces it as a red node
+                m.isRed = true;
+                link(m, l, r);
+                return m;
+            }
+
+            Node<K> t = joinLeft(l, hl, m, r.left, hr - (r.isRed ? 0 : 1));
+            r.left = t;
+            updateSize(r);
+
+            if (!r.isRed && t.isRed && isRed(t.left)) {
+                // Two reds in a row below a black node: rotate the upper red up, with the lower one turned black
+                recolour(t.left, false);
+                metrics.llRotation();
+
+                r.left = t.right;
+                updateSize(r);
+
+                t.right = r;
+                updateSize(t);
+
+                return t;
+            }
+
+            return r;
+        }
+
+        /**
+         * Join two subtrees where every key in l is no greater than every key in r.
+         * @return The root of the joined subtree. Its black height is left in joinedHeight.
+         */
+        Node<K> concat(Node<K> l, int hl, Node<K> r, int hr) {
+            if (r == null) {
+                joinedHeight = hl;
+                return l;
+            }
+            if (l == null) {
+                joinedHeight = hr;
+                return r;
+            }
+
+            // The least key of r goes between the two subtrees
+            Split<K> parts = new Split<>();
+            splitFirst(r, hr, parts);
+
+            return join(l, hl, parts.left, parts.right, parts.rightHeight);
+        }
+
+        /**
+         * Split the subtree rooted at t into the keys smaller than n and the rest.
+         * @param h The black height of t.
+         * @param out Receives both parts and their black heights.
+         */
+        void split(Node<K> t, int h, K n, Split<K> out) {
+            if (t == null) {
+                out.left = null;
+                out.right = null;
+                out.leftHeight = 0;
+                out.rightHeight = 0;
+                return;
+            }
+
+            int hc = h - (t.isRed ? 0 : 1);
+            Node<K> l = t.left;
+            Node<K> r = t.right;
+
+            if (compare('<', t.key, n)) {
+                // This node and its left subtree are below n
+                split(r, hc, n, out);
+                out.left = join(l, hc, t, out.left, out.leftHeight);
+                out.leftHeight = joinedHeight;
+            }
+            else {
+                split(l, hc, n, out);
+                out.right = join(out.right, out.rightHeight, t, r, hc);
+                out.rightHeight = joinedHeight;
+            }
+        }
+
+        /**
+         * Remove the node holding the least key from the non-empty subtree rooted at t.
+         * @param h The black height of t.
+         * @param out Receives the removed node on the left, and the rest of the subtree on the right.
+         */
+        void splitFirst(Node<K> t, int h, Split<K> out) {
+            int hc = h - (t.isRed ? 0 : 1);
+
+            if (t.left == null) {
+                out.left = t;
+                out.right = t.right;
+                out.rightHeight = hc;
+                return;
+            }
+
+            Node<K> r = t.right;
+
+            splitFirst(t.left, hc, out);
+            out.right = join(out.right, out.rightHeight, t, r, hc);
+            out.rightHeight = joinedHeight;
+        }
+
+        /**
+         * Combine the subtree rooted at s, which is walked, with the subtree rooted at l, which is split at each key of s.
+         * In a multiset the counts of a key are merged: added by a union, the smaller one kept by an intersection,
+         * and subtracted by a difference.
+         * @param op UNION, INTERSECT, DIFFERENCE (s without l) or SUBTRACT (l without s).
+         * @param hs The black height of s.
+         * @param hl The black height of l.
+         * @return The root of the result. Its black height is left in joinedHeight.
+         */
+        Node<K> setOp(int op, Node<K> s, int hs, Node<K> l, int hl) {
+
+            if (s == null || l == null) {
+                boolean keepS = (op == UNION && s != null) || op == DIFFERENCE;
+                boolean keepL = (op == UNION && s == null) || op == SUBTRACT;
+
+                joinedHeight = keepS ? hs : keepL ? hl : 0;
+                return keepS ? s : keepL ? l : null;
+            }
+
+            int hc = hs - (s.isRed ? 0 : 1);
+            Node<K> sl = s.left;
+            Node<K> sr = s.right;
+
+            Split<K> parts = new Split<>();
+            split3(l, hl, s.key, parts);
+            boolean found = parts.middle != null;
+
+            Node<K> left;
+            Node<K> right;
+            int leftHeight;
+            int rightHeight;
+
+            if (size(s) >= PARALLEL_THRESHOLD) {
+                // Combine the left halves on another thread
+                SetTask task = new SetTask(op, sl, hc, parts.left, parts.leftHeight);
+                task.fork();
+                right = setOp(op, sr, hc, parts.right, parts.rightHeight);
+                rightHeight = joinedHeight;
+                left = task.join();
+                leftHeight = task.height;
+            }
+            else {
+                left = setOp(op, sl, hc, parts.left, parts.leftHeight);
+                leftHeight = joinedHeight;
+                right = setOp(op, sr, hc, parts.right, parts.rightHeight);
+                rightHeight = joinedHeight;
+            }
+
+            // The copies of the key of s that survive, and the node that keeps them
+            int inL = found ? parts.middle.count() : 0;
+            Node<K> x = s;
+            int copies;
+
+            switch (op) {
+                case UNION:
+                    copies = (duplicates == Duplicates.COUNTED) ? s.count() + inL : s.count();
+                    break;
+                case INTERSECT:
+                    copies = Math.min(s.count(), inL);
+                    break;
+                case DIFFERENCE:
+                    copies = s.count() - inL;
+                    break;
+                default:
+                    x = parts.middle;
+                    copies = inL - s.count();
+            }
+
+            if (copies <= 0) {
+                return concat(left, leftHeight, right, rightHeight);
+            }
+
+            if (duplicates == Duplicates.COUNTED) {
+                ((CountedNode<K>) x).count = copies;
+            }
+            return join(left, leftHeight, x, right, rightHeight);
+        }
+
+        /**
+         * Count the keys of the subtree rooted at s that are also in the subtree rooted at l.
+         * A key held several times in both counts as often as the smaller count.
+         * l is split at each key of s, then joined back together. s is not changed.
+         * @return The root of the rejoined l. Its black height is left in joinedHeight.
+         */
+        Node<K> count(Node<K> s, int hs, Node<K> l, int hl) {
+
+            if (s == null || l == null) {
+                joinedHeight = hl;
+                return l;
+            }
+
+            int hc = hs - (s.isRed ? 0 : 1);
+
+            Split<K> parts = new Split<>();
+            split3(l, hl, s.key, parts);
+
+            if (parts.middle != null) {
+                matches += Math.min(s.count(), parts.middle.count());
+            }
+
+            Node<K> left;
+            Node<K> right;
+            int leftHeight;
+            int rightHeight;
+
+            if (size(s) >= PARALLEL_THRESHOLD) {
+                // Count in the left halves on another thread
+                CountTask task = new CountTask(s.left, hc, parts.left, parts.leftHeight);
+                task.fork();
+                right = count(s.right, hc, parts.right, parts.rightHeight);
+                rightHeight = joinedHeight;
+                left = task.join();
+                leftHeight = task.height;
+                matches += task.matches;
+            }
+            else {
+                left = count(s.left, hc, parts.left, parts.leftHeight);
+                leftHeight = joinedHeight;
+                right = count(s.right, hc, parts.right, parts.rightHeight);
+                rightHeight = joinedHeight;
+            }
+
+            if (parts.middle != null) {
+                return join(left, leftHeight, parts.middle, right, rightHeight);
+            }
+            return concat(left, leftHeight, right, rightHeight);
+        }
+
+        /**
+         * Split the subtree rooted at t around a node holding n, if there is one.
+         * @param h The black height of t.
+         * @param out Receives the keys smaller than n on the left, the node holding n in the middle (or null),
+         *            and the keys larger than n on the right.
+         */
+        void split3(Node<K> t, int h, K n, Split<K> out) {
+            if (t == null) {
+                out.left = null;
+                out.middle = null;
+                out.right = null;
+                out.leftHeight = 0;
+                out.rightHeight = 0;
+                return;
+            }
+
+            int hc = h - (t.isRed ? 0 : 1);
+            Node<K> l = t.left;
+            Node<K> r = t.right;
+
+            int c = compare(t.key, n);
+
+            if (c == 0) {
+                // The two subtrees are the two parts
+                out.left = l;
+                out.middle = t;
+                out.right = r;
+                out.leftHeight = hc;
+                out.rightHeight = hc;
+            }
+            else if (c < 0) {
+                split3(r, hc, n, out);
+                out.left = join(l, hc, t, out.left, out.leftHeight);
+                out.leftHeight = joinedHeight;
+            }
+            else {
+                split3(l, hc, n, out);
+                out.right = join(out.right, out.rightHeight, t, r, hc);
+                out.rightHeight = joinedHeight;
+            }
+        }
+    }
+
+    /*
+     * Combines two subtrees with setOp() on a fork-join thread.
+     */
+    @SuppressWarnings("serial")
+    private final class SetTask extends RecursiveTask<Node<K>> {
+
+        final int op;
+        final Node<K> s;
+        final int hs;
+        final Node<K> l;
+        final int hl;
+        int height;     // Black height of the result
+
+        SetTask(int op, Node<K> s, int hs, Node<K> l, int hl) {
+            this.op = op;
+            this.s = s;
+            this.hs = hs;
+            this.l = l;
+            this.hl = hl;
+        }
+
+        @Override
+        protected Node<K> compute() {
+            Joiner joiner = new Joiner();
+            Node<K> t = joiner.setOp(op, s, hs, l, hl);
+            height = joiner.joinedHeight;
+            return t;
+        }
+    }
+
+    /*
+     * Counts common keys with count() on a fork-join thread.
+     */
+    @SuppressWarnings("serial")
+    private final class CountTask extends RecursiveTask<Node<K>> {
+
+        final Node<K> s;
+        final int hs;
+        final Node<K> l;
+        final int hl;
+        int height;     // Black height of the rejoined l
+        int matches;    // Number of common keys
+
+        CountTask(Node<K> s, int hs, Node<K> l, int hl) {
+            this.s = s;
+            this.hs = hs;
+            this.l = l;
+            this.hl = hl;
+        }
+
+        @Override
+        protected Node<K> compute() {
+            Joiner joiner = new Joiner();
+            Node<K> t = joiner.count(s, hs, l, hl);
+            height = joiner.joinedHeight;
+            matches = joiner.matches;
+            return t;
+        }
+    }
+
+
+    /**
+     * Make l and r the children of x.
+     */
+    private static <K> void link(Node<K> x, Node<K> l, Node<K> r) {
+        x.left = l;
+        x.right = r;
+
+        updateSize(x);
+    }
+
+    /**
+     * The number of black nodes on a path from x down to a leaf.
+     */
+    private static <K> int blackHeight(Node<K> x) {
+        int h = 0;
+
+        while (x != null) {
+            if (!x.isRed) {
+                h++;
+            }
+            x = x.left;
+        }
+
+        return h;
+    }
+
+    private static <K> boolean isRed(Node<K> x) {
+        return x != null && x.isRed;
+    }
+
+    /**
+     * After a batch operation, make the new root black.
+     */
+    private void finishBatch() {
+        if (root != null) {
+            recolour(root, false);
+        }
+    }
+
+    /**
+     * Find the first of keys[lo..hi) that is not smaller than n, or not larger than n if inclusive is set.
+     * @return The index of that key, or hi if there is none.
+     */
+    private int firstNotBelow(K[] keys, int lo, int hi, K n, boolean inclusive) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if (inclusive ? !compare('>', keys[mid], n) : compare('<', keys[mid], n)) {
+                lo = mid + 1;
+            }
+            else {
+                hi = mid;
+            }
+        }
+
+        return lo;
+    }
+
+    //Subtree sizes
+
+    /**
+     * The number of keys in a subtree.
+     * @return The size of x, or 0 if x is null.
+     */
+    private static <K> int size(Node<K> x) {
+        return (x == null) ? 0 : x.size;
+    }
+
+    /**
+     * Recompute the size of a node from the sizes of its children.
+     */
+    private static <K> void updateSize(Node<K> x) {
+        x.size = size(x.left) + size(x.right) + x.count();
+    }
+
+
+
+    //Order statistics
+
+    /**
+     * Get the number of keys in the tree, which every node keeps up to date.
+     * Every copy of a key counts, also in a multiset.
+     * @return The number of keys in the tree.
+     */
+    public int size() {
+        return size(root);
+    }
+
+    /**
+     * Count the keys that are smaller than a given value.
+     * @param n The value.
+     * @return The number of keys less than n, which is the position n has or would have in sorted order.
+     */
+    public int rank(K n) {
+        return countBelow(n, false);
+    }
+
+    /**
+     * Find the key at a given position in sorted order.
+     * @param k The position, starting from 0 for the least key.
+     * @return The k-th smallest key.
+     */
+    public K select(int k) {
+
+        if (k < 0 || k >= size()) {
+            throw new IndexOutOfBoundsException("Index " + k + " out of bounds for size " + size());
+        }
+
+        Node<K> x = root;
+
+        while (true) {
+
+            int leftSize = size(x.left);
+
+            if (k < leftSize) {
+                // The key is in the left subtree
+                x = x.left;
+            }
+            else if (k < leftSize + x.count()) {
+                // This is the requested key
+                return x.key;
+            }
+            else {
+                // Skip the left subtree and this node
+                k -= leftSize + x.count();
+                x = x.right;
+            }
+
+        }
+    }
+
+    /**
+     * Count the copies of a key.
+     * @param n The key.
+     * @return The number of times n is in the tree, 0 if it is not.
+     */
+    public int count(K n) {
+        if (duplicates == Duplicates.COUNTED) {
+            Node<K> x = search(n);
+            return (x == null) ? 0 : x.count();
+        }
+
+        // The copies are in separate nodes
+        return countInRange(n, n);
+    }
+
+    /**
+     * Count the keys in a range.
+     * @param lo The least value in the range.
+     * @param hi The largest value in the range.
+     * @return The number of keys k with lo <= k <= hi.
+     */
+    public int countInRange(K lo, K hi) {
+        if (comparator.compare(lo, hi) > 0) {
+            return 0;
+        }
+
+        return countBelow(hi, true) - countBelow(lo, false);
+    }
+
+    /**
+     * Count the keys that are smaller than n, or not larger than n if inclusive is set.
+     */
+    private int countBelow(K n, boolean inclusive) {
+
+        Node<K> x = root;
+        int count = 0;
+
+        while (x != null) {
+
+            if (inclusive ? !compare('>', x.key, n) : compare('<', x.key, n)) {
+                // This node and its left subtree are below n
+                count += size(x.left) + x.count();
+                x = x.right;
+            }
+            else {
+                x = x.left;
+            }
+
+        }
+
+        return count;
+    }
+
+
+    //Ordered traversal
+
+    /*
+     * A position in the in-order sequence of keys. A cursor can be moved and re-positioned any
+     * number of times without allocating. It becomes invalid if the tree is modified.
+     * Nodes have no parent pointers, so the cursor keeps the path from the root down to its node.
+     * A cursor moves from node to node, so in a multiset it visits each distinct key once.
+     */
+    public class Cursor {
+
+        @SuppressWarnings("unchecked")
+        final Node<K>[] path = (Node<K>[]) new Node<?>[MAX_DEPTH];  // The nodes from the root down to the current one
+        int depth;                                  // The number of nodes on the path, 0 if the cursor is not on a key
+
+
+        /**
+         * Move to the least key that is not smaller than n.
+         * @param n The value to search for.
+         * @return True if there is such a key.
+         */
+        public boolean seek(K n) {
+
+            Node<K> x = root;
+            int found = 0;  // The depth of the best candidate so far
+            depth = 0;
+
+            while (x != null) {
+
+                path[depth++] = x;
+
+                if (compare('<', x.key, n)) {
+                    // Everything on the left is too small
+                    x = x.right;
+                }
+                else {
+                    // x is a candidate, but there may be a smaller one on the left
+                    found = depth;
+                    x = x.left;
+                }
+
+            }
+
+            depth = found;
+            return depth > 0;
+        }
+
+        /**
+         * Move to the least key in the tree.
+         * @return True if the tree is not empty.
+         */
+        public boolean first() {
+            depth = 0;
+            descendLeft(root);
+            return depth > 0;
+        }
+
+        /**
+         * Move to the largest key in the tree.
+         * @return True if the tree is not empty.
+         */
+        public boolean last() {
+            depth = 0;
+            descendRight(root);
+            return depth > 0;
+        }
+
+        /**
+         * Move to the next key in ascending order.
+         * @return True if there was a next key.
+         */
+        public boolean next() {
+            if (depth == 0) {
+                return false;
+            }
+
+            Node<K> x = path[depth - 1];
+
+            if (x.right != null) {
+                // The least node of the right subtree
+                descendLeft(x.right);
+            }
+            else {
+                // Climb until we arrive from a left child
+                x = path[--depth];
+
+                while (depth > 0 && path[depth - 1].right == x) {
+                    x = path[--depth];
+                }
+            }
+
+            return depth > 0;
+        }
+
+        /**
+         * Move to the previous key in ascending order.
+         * @return True if there was a previous key.
+         */
+        public boolean prev() {
+            if (depth == 0) {
+                return false;
+            }
+
+            Node<K> x = path[depth - 1];
+
+            if (x.left != null) {
+                // The largest node of the left subtree
+                descendRight(x.left);
+            }
+            else {
+                // Climb until we arrive from a right child
+                x = path[--depth];
+
+                while (depth > 0 && path[depth - 1].left == x) {
+                    x = path[--depth];
+                }
+            }
+
+            return depth > 0;
+        }
+
+        /**
+         * Check whether the cursor is on a key.
+         * @return True if key() can be called.
+         */
+        public boolean valid() {
+            return depth > 0;
+        }
+
+        /**
+         * Get the key at the cursor.
+         * @return The current key.
+         */
+        public K key() {
+            if (depth == 0) {
+                throw new NoSuchElementException();
+            }
+            return path[depth - 1].key;
+        }
+
+        /**
+         * Add x and the nodes down its left spine to the path.
+         */
+        private void descendLeft(Node<K> x) {
+            for (; x != null; x = x.left) {
+                path[depth++] = x;
+            }
+        }
+
+        /**
+         * Add x and the nodes down its right spine to the path.
+         */
+        private void descendRight(Node<K> x) {
+            for (; x != null; x = x.right) {
+                path[depth++] = x;
+            }
+        }
+
+    }
+
+
+    /**
+     * Create a cursor over the keys of this tree. The cursor starts on no key.
+     * @return The new cursor.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Pass every key k with lo <= k <= hi to an action, in ascending order, once for every copy.
+     * Takes O(log n + k) time and allocates nothing. The nodes still to be visited are kept on the path stack
+     * used by delete, so the action must not modify the tree.
+     * @param lo The least value in the range.
+     * @param hi The largest value in the range.
+     * @param action Called with each key in the range.
+     */
+    public void forEachInRange(K lo, K hi, Consumer<? super K> action) {
+        Node<K>[] path = this.path;
+        Node<K> x = root;
+        int depth = 0;
+
+        while (true) {
+
+            // Stack the nodes that are not smaller than lo on the way down the left edge
+            while (x != null) {
+                if (compare('<', x.key, lo)) {
+                    // x and its left subtree are below the range
+                    x = x.right;
+                }
+                else {
+                    path[depth++] = x;
+                    x = x.left;
+                }
+            }
+
+            if (depth == 0) {
+                return;
+            }
+
+            // The top of the stack is the next key in order
+            x = path[--depth];
+
+            if (compare('>', x.key, hi)) {
+                return;
+            }
+
+            for (int i = x.count(); i > 0; i--) {
+                action.accept(x.key);
+            }
+            x = x.right;
+        }
+    }
+
+    private static <K> Node<K> leftmost(Node<K> x) {
+        while (x.left != null) {
+            x = x.left;
+        }
+        return x;
+    }
+
+    private static <K> Node<K> rightmost(Node<K> x) {
+        while (x.right != null) {
+            x = x.right;
+        }
+        return x;
+    }
+
+
+    /**
+     * Get the height of the tree.
+     * @return The height of the tree.
+     */
+    public int height() {
+        return (root == null) ? -1 : root.height();
+    }
+
+    /**
+     * Counts the number of nodes in the tree by visiting every node.
+     * size() gives the same answer without walking the tree, except in a multiset, which has a node for
+     * every distinct key.
+     * @return The number of nodes in the tree.
+     */
+    public int countNodes() {
+        return (root == null) ? 0 : root.countNodes();
+    }
+
+    /**
+     * Estimates the memory used per key by the Node<K> object layout on a 64-bit JVM with compressed references.
+     * A Node<K> has a 12 byte header, two references, a K, an int and a boolean, padded to 40 bytes.
+     * The key is stored in the node itself. A multiset uses 40 byte CountedNodes, one per distinct key.
+     * @return The estimated number of bytes used per key.
+     */
+    public static int bytesPerKey() {
+        return 40;
+    }
+
+
+
+    /**
+     * Compare two keys once, for callers that need to tell all three outcomes apart.
+     * Counts as one comparison unless the tree was created with Comparison.RAW.
+     * @return A negative number, zero or a positive number as n1 is less than, equal to or greater than n2.
+     */
+    private int compare(K n1, K n2) {
+        return comparison.compare(n1, n2, comparator, metrics);
+    }
+
+    /**
+     * Used instead of <, >, and == operators, counting the number of times it was called
+     * unless the tree was created with Comparison.RAW.
+     * @return boolean value
+     */
+    private boolean compare(char op, K n1, K n2) {
+        int c = compare(n1, n2);
+
+        switch (op) {
+            case '<':
+                return c < 0;
+
+            case '>':
+                return c > 0;
+
+            default:
+                return c == 0;
+        }
+    }
+
+
+    /**
+     * Change the colour of a node, counting the change.
+     * @param x The node to recolour.
+     * @param isRed True to colour the node red, false to colour it black.
+     */
+    private void recolour(Node<K> x, boolean isRed) {
+        if (x.isRed != isRed) {
+            metrics.recolouring();
+            if (TreeProfile.ENABLED) {
+                profile.recolourings++;
+            }
+            x.isRed = isRed;
+        }
+    }
+
+
+    /**
+     * Get the latency histograms of this tree.
+     * @return The profile, or null unless the JVM was started with -Dtrees.profile=true.
+     */
+    public TreeProfile profile() {
+        return profile;
+    }
+
+    /**
+     * Get the comparison, rotation, recolouring and allocation counters of this tree.
+     * @return The metrics of the tree.
+     */
+    public TreeMetrics metrics() {
+        return metrics;
+    }
+
+
+    /**
+     * Print out the contents of the tree.
+     * Prints "(key, R/B, left.key, right.key)" for each node.
+     * Used for debugging purposes.
+     */
+    public void print(){
+        if (root != null) {
+            root.print();
+        }
+    }
+
+}
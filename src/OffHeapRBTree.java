@@ -0,0 +1,229 @@
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A Red-Black tree whose nodes live outside the Java heap, in a direct ByteBuffer.
+ *
+ * A tree of millions of RBTree.Node objects makes every garbage collection cycle mark millions of objects.
+ * Here the whole tree is one buffer object and a handful of fields, however many keys it holds, so the
+ * collector has almost nothing to trace. Nodes are fixed size records identified by a handle, their index
+ * in the buffer, as in ArrayRBTree. Released records are kept on a free list and reused before the buffer grows.
+ *
+ * A record takes 20 bytes in the native byte order, 24 in a tree created with Duplicates.COUNTED:
+ *   0  key
+ *   4  handle of the left child
+ *   8  handle of the right child
+ *   12 handle of the parent, shifted left by one, with the colour in the low bit (1 for red)
+ *   16 number of keys in the subtree
+ *   20 number of copies of the key, only with Duplicates.COUNTED
+ *
+ * The insertion, deletion, deleteFixup and rotation logic is in HandleRBTree, shared with ArrayRBTree, so the
+ * tree behaves as RBTree does: a key inserted a second time is stored again and delete removes one copy,
+ * unless the tree was created with Duplicates.COUNTED, and rank, select and range counts take O(log n).
+ *
+ * The buffer grows by doubling, up to maxNodes records. close() gives up the buffer, and its memory is
+ * returned when the buffer object is collected; using the tree after close() throws IllegalStateException.
+ */
+public class OffHeapRBTree extends HandleRBTree implements Closeable {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // Offsets of the fields in a record
+    private static final int KEY = 0;
+    private static final int LEFT = 4;
+    private static final int RIGHT = 8;
+    private static final int PARENT = 12;
+    private static final int SIZE = 16;
+    private static final int COPIES = 20;
+
+    final int nodeBytes;    // The size of a record
+    final int maxNodes;     // The most records a ByteBuffer can hold
+
+    private ByteBuffer nodes;   // The records, null once the tree is closed
+
+
+    /**
+     * Constructs an empty tree with no values.
+     */
+    public OffHeapRBTree() {
+        this(DEFAULT_CAPACITY, Comparison.COUNTING);
+    }
+
+    /**
+     * Constructs an empty tree with room for a number of nodes before the buffer needs to grow.
+     * @param capacity The initial number of nodes.
+     * @param comparison COUNTING to count every comparison in metrics(), RAW for the fastest comparisons.
+     */
+    public OffHeapRBTree(int capacity, Comparison comparison) {
+        this(capacity, comparison, Duplicates.NODES);
+    }
+
+    /**
+     * Constructs an empty tree with room for a number of nodes before the buffer needs to grow.
+     * @param capacity The initial number of nodes.
+     * @param comparison COUNTING to count every comparison in metrics(), RAW for the fastest comparisons.
+     * @param duplicates NODES to store every copy of a key in its own node, COUNTED for a multiset.
+     */
+    public OffHeapRBTree(int capacity, Comparison comparison, Duplicates duplicates) {
+        super(comparison, duplicates);
+
+        this.nodeBytes = (duplicates == Duplicates.COUNTED) ? 24 : 20;
+        this.maxNodes = Integer.MAX_VALUE / nodeBytes;
+
+        capacity = Math.min(Math.max(capacity, 1), maxNodes);
+        this.nodes = ByteBuffer.allocateDirect(capacity * nodeBytes).order(ByteOrder.nativeOrder());
+    }
+
+
+    //Node storage
+
+    @Override
+    int capacity() {
+        return nodes.capacity() / nodeBytes;
+    }
+
+    /**
+     * Doubles the capacity of the buffer, copying the records into a new one.
+     */
+    @Override
+    void grow() {
+        if (next == maxNodes) {
+            throw new IllegalStateException("An off-heap tree holds at most " + maxNodes + " nodes");
+        }
+
+        int capacity = (int) Math.min(2L * next, maxNodes);
+        ByteBuffer bigger = ByteBuffer.allocateDirect(capacity * nodeBytes).order(ByteOrder.nativeOrder());
+
+        nodes.clear();
+        bigger.put(nodes);
+        nodes = bigger;
+    }
+
+    @Override
+    void initNode(int x, int n) {
+        int at = x * nodeBytes;
+        nodes.putInt(at + KEY, n);
+        nodes.putInt(at + LEFT, NIL);
+        nodes.putInt(at + RIGHT, NIL);
+        nodes.putInt(at + PARENT, (NIL << 1) | 1);
+        nodes.putInt(at + SIZE, 1);
+        if (duplicates == Duplicates.COUNTED) {
+            nodes.putInt(at + COPIES, 1);
+        }
+    }
+
+    @Override
+    int keyOf(int x) {
+        return nodes.getInt(x * nodeBytes + KEY);
+    }
+
+    @Override
+    int left(int x) {
+        return nodes.getInt(x * nodeBytes + LEFT);
+    }
+
+    @Override
+    int right(int x) {
+        return nodes.getInt(x * nodeBytes + RIGHT);
+    }
+
+    @Override
+    int parent(int x) {
+        return nodes.getInt(x * nodeBytes + PARENT) >> 1;
+    }
+
+    @Override
+    boolean isRed(int x) {
+        return (nodes.getInt(x * nodeBytes + PARENT) & 1) != 0;
+    }
+
+    @Override
+    int sizeOf(int x) {
+        return nodes.getInt(x * nodeBytes + SIZE);
+    }
+
+    @Override
+    int copiesOf(int x) {
+        return (duplicates == Duplicates.COUNTED) ? nodes.getInt(x * nodeBytes + COPIES) : 1;
+    }
+
+    @Override
+    void setLeft(int x, int y) {
+        nodes.putInt(x * nodeBytes + LEFT, y);
+    }
+
+    @Override
+    void setRight(int x, int y) {
+        nodes.putInt(x * nodeBytes + RIGHT, y);
+    }
+
+    /**
+     * Set the parent of a node, keeping its colour.
+     */
+    @Override
+    void setParent(int x, int p) {
+        int at = x * nodeBytes + PARENT;
+        nodes.putInt(at, (p << 1) | (nodes.getInt(at) & 1));
+    }
+
+    @Override
+    void flipColour(int x) {
+        int at = x * nodeBytes + PARENT;
+        nodes.putInt(at, nodes.getInt(at) ^ 1);
+    }
+
+    @Override
+    void setSize(int x, int size) {
+        nodes.putInt(x * nodeBytes + SIZE, size);
+    }
+
+    @Override
+    void setCopies(int x, int copies) {
+        nodes.putInt(x * nodeBytes + COPIES, copies);
+    }
+
+
+    /**
+     * The off-heap memory held by the tree, including records that are free or not yet used.
+     * @return The capacity of the buffer in bytes, 0 once the tree is closed.
+     */
+    public long offHeapBytes() {
+        return (nodes == null) ? 0 : nodes.capacity();
+    }
+
+    /**
+     * The off-heap memory divided by the number of keys stored.
+     * Compare with RBTree.bytesPerKey() for the object layout.
+     * @return The number of bytes used per key, including unused capacity.
+     */
+    public double bytesPerKey() {
+        long bytes = offHeapBytes();
+        return (count == 0) ? bytes : (double) bytes / count;
+    }
+
+    /**
+     * Give up the buffer. The tree is empty and can no longer be used.
+     * The memory is returned when the garbage collector finds the buffer unreachable.
+     */
+    @Override
+    public void close() {
+        nodes = null;
+        root = NIL;
+        count = 0;
+        next = 0;
+        free = NIL;
+    }
+
+
+    /**
+     * Throw IllegalStateException if the tree has been closed.
+     */
+    @Override
+    void checkOpen() {
+        if (nodes == null) {
+            throw new IllegalStateException("The tree has been closed");
+        }
+    }
+
+}
@@ -0,0 +1,476 @@
+import java.util.function.IntConsumer;
+
+/**
+ * A Red-Black tree whose nodes are never modified once created.
+ *
+ * insert and delete copy only the nodes on the path to the changed key and share every other node
+ * with the previous version of the tree. Without parent pointers a node can belong to any number of
+ * versions, so snapshot() just captures the current root. A snapshot never changes, and can be read
+ * by any number of threads while writers carry on.
+ *
+ * Insertion uses Okasaki's balance cases and deletion follows Kahrs. Writers are serialised on the
+ * tree's monitor, readers never lock. Keys form a set, so inserting a key that is present does nothing.
+ */
+public class PersistentRBTree {
+
+    final TreeMetrics metrics = new TreeMetrics();  // Counters for the work done by this tree
+
+    private volatile Node root;     // The root of the current version
+
+
+    /*
+     * An immutable node. Each node has a key value and is coloured Red or Black.
+     */
+    static final class Node {
+
+        final Node left;        // Left subtree
+        final Node right;       // Right subtree
+
+        final int key;          // Value stored
+        final boolean isRed;    // True when the node is red, false when the node is black
+        final int size;         // The number of keys in the subtree rooted at this node
+
+
+        Node(boolean isRed, Node left, int key, Node right) {
+            this.left = left;
+            this.right = right;
+            this.key = key;
+            this.isRed = isRed;
+            this.size = size(left) + size(right) + 1;
+        }
+    }
+
+
+    /*
+     * An immutable view of the tree at the moment it was taken.
+     */
+    public static final class Snapshot {
+
+        private final Node root;
+
+
+        private Snapshot(Node root) {
+            this.root = root;
+        }
+
+        /**
+         * Search the snapshot for a given key value.
+         * @param n The key value to search for.
+         * @return True if the value was in the tree when the snapshot was taken.
+         */
+        public boolean search(int n) {
+            return contains(root, n);
+        }
+
+        /**
+         * Pass every key k with lo <= k <= hi to an action, in ascending order.
+         * @param lo The least value in the range.
+         * @param hi The largest value in the range.
+         * @param action Called with each key in the range.
+         */
+        public void forEachInRange(int lo, int hi, IntConsumer action) {
+            PersistentRBTree.forEachInRange(root, lo, hi, action);
+        }
+
+        /**
+         * Get the number of keys in the snapshot.
+         * @return The number of keys.
+         */
+        public int size() {
+            return PersistentRBTree.size(root);
+        }
+
+        /**
+         * Get the height of the snapshot.
+         * @return The height of the tree.
+         */
+        public int height() {
+            return PersistentRBTree.height(root);
+        }
+    }
+
+
+    /**
+     * Take an immutable view of the current keys in O(1).
+     * Snapshots do not update the counters of the tree, so reading one never writes to shared memory.
+     * @return The snapshot.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(root);
+    }
+
+
+    /**
+     * Search the current version of the tree for a given key value.
+     * @param n The key value to search for.
+     * @return True if the value is in the tree.
+     */
+    public boolean search(int n) {
+
+        Node x = root;
+
+        while (x != null) {
+
+            if (compare('=', n, x.key)) {
+                // This is the requested node
+                return true;
+            }
+            else if (compare('<', n, x.key)) {
+                // The key is in the left subtree
+                x = x.left;
+            }
+            else {
+                // The key is in the right subtree
+                x = x.right;
+            }
+
+        }
+
+        return false;
+    }
+
+
+    //Insertion
+
+    /**
+     * Insert a new key value into the tree.
+     * @param n The value to be inserted.
+     */
+    public synchronized void insert(int n) {
+        root = blacken(ins(root, n));
+    }
+
+    /**
+     * Insert n below t.
+     * @return The new subtree, or t itself if n was already present.
+     */
+    private Node ins(Node t, int n) {
+
+        if (t == null) {
+            // New keys always start red
+            return node(true, null, n, null);
+        }
+
+        if (compare('<', n, t.key)) {
+            Node l = ins(t.left, n);
+
+            if (l == t.left) {
+                return t;
+            }
+
+            return t.isRed ? node(true, l, t.key, t.right) : balance(l, t.key, t.right);
+        }
+        else if (compare('>', n, t.key)) {
+            Node r = ins(t.right, n);
+
+            if (r == t.right) {
+                return t;
+            }
+
+            return t.isRed ? node(true, t.left, t.key, r) : balance(t.left, t.key, r);
+        }
+
+        // n is already in the tree
+        return t;
+    }
+
+    /**
+     * Build a black node with subtrees a and b, repairing a red child with a red child of its own.
+     * These are the four rotation cases of insertion, plus a recolouring when both children are red.
+     */
+    private Node balance(Node a, int x, Node b) {
+
+        if (isRed(a) && isRed(b)) {
+            // Both children are red, push the blackness down
+            return node(true, blacken(a), x, blacken(b));
+        }
+
+        if (isRed(a)) {
+            if (isRed(a.left)) {
+                // LL case
+                return node(true, blacken(a.left), a.key, node(false, a.right, x, b));
+            }
+            if (isRed(a.right)) {
+                // LR case
+                return node(true, node(false, a.left, a.key, a.right.left), a.right.key, node(false, a.right.right, x, b));
+            }
+        }
+
+        if (isRed(b)) {
+            if (isRed(b.right)) {
+                // RR case
+                return node(true, node(false, a, x, b.left), b.key, blacken(b.right));
+            }
+            if (isRed(b.left)) {
+                // RL case
+                return node(true, node(false, a, x, b.left.left), b.left.key, node(false, b.left.right, b.key, b.right));
+            }
+        }
+
+        return node(false, a, x, b);
+    }
+
+
+    //Deletion
+
+    /**
+     * Delete a key from the tree.
+     * @param n The key value to be deleted.
+     */
+    public synchronized void delete(int n) {
+
+        // The rebalancing below assumes a key was removed, so check first
+        if (!search(n)) {
+            return;
+        }
+
+        root = blacken(del(root, n));
+    }
+
+    /**
+     * Remove n from below t. The result has one black node fewer on every path if t was black.
+     */
+    private Node del(Node t, int n) {
+
+        if (compare('<', n, t.key)) {
+            if (t.left != null && !t.left.isRed) {
+                return balanceLeft(del(t.left, n), t.key, t.right);
+            }
+            return node(true, del(t.left, n), t.key, t.right);
+        }
+        else if (compare('>', n, t.key)) {
+            if (t.right != null && !t.right.isRed) {
+                return balanceRight(t.left, t.key, del(t.right, n));
+            }
+            return node(true, t.left, t.key, del(t.right, n));
+        }
+
+        // This is the node to remove, join its subtrees
+        return append(t.left, t.right);
+    }
+
+    /**
+     * Build a node whose left subtree l has lost one from its black height.
+     */
+    private Node balanceLeft(Node l, int x, Node r) {
+
+        if (isRed(l)) {
+            return node(true, blacken(l), x, r);
+        }
+
+        if (r != null && !r.isRed) {
+            return balance(l, x, redden(r));
+        }
+
+        if (isRed(r) && r.left != null && !r.left.isRed) {
+            return node(true, node(false, l, x, r.left.left), r.left.key, balance(r.left.right, r.key, redden(r.right)));
+        }
+
+        throw new IllegalStateException("Red-black invariant violated");
+    }
+
+    /**
+     * Build a node whose right subtree r has lost one from its black height.
+     */
+    private Node balanceRight(Node l, int x, Node r) {
+
+        if (isRed(r)) {
+            return node(true, l, x, blacken(r));
+        }
+
+        if (l != null && !l.isRed) {
+            return balance(redden(l), x, r);
+        }
+
+        if (isRed(l) && l.right != null && !l.right.isRed) {
+            return node(true, balance(redden(l.left), l.key, l.right.left), l.right.key, node(false, l.right.right, x, r));
+        }
+
+        throw new IllegalStateException("Red-black invariant violated");
+    }
+
+    /**
+     * Join two subtrees where every key in a is less than every key in b, and both have the same black height.
+     */
+    private Node append(Node a, Node b) {
+
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+
+        if (a.isRed && b.isRed) {
+            Node bc = append(a.right, b.left);
+
+            if (isRed(bc)) {
+                return node(true, node(true, a.left, a.key, bc.left), bc.key, node(true, bc.right, b.key, b.right));
+            }
+            return node(true, a.left, a.key, node(true, bc, b.key, b.right));
+        }
+
+        if (!a.isRed && !b.isRed) {
+            Node bc = append(a.right, b.left);
+
+            if (isRed(bc)) {
+                return node(true, node(false, a.left, a.key, bc.left), bc.key, node(false, bc.right, b.key, b.right));
+            }
+            return balanceLeft(a.left, a.key, node(false, bc, b.key, b.right));
+        }
+
+        if (b.isRed) {
+            return node(true, append(a, b.left), b.key, b.right);
+        }
+
+        return node(true, a.left, a.key, append(a.right, b));
+    }
+
+
+    //Node helpers
+
+    /**
+     * Create a node, counting the allocation.
+     */
+    private Node node(boolean isRed, Node left, int key, Node right) {
+        metrics.allocation();
+        return new Node(isRed, left, key, right);
+    }
+
+    private static boolean isRed(Node x) {
+        return x != null && x.isRed;
+    }
+
+    /**
+     * A black copy of x, or x itself if it is already black.
+     */
+    private Node blacken(Node x) {
+        return isRed(x) ? node(false, x.left, x.key, x.right) : x;
+    }
+
+    /**
+     * A red copy of a black node.
+     */
+    private Node redden(Node x) {
+        if (x == null || x.isRed) {
+            throw new IllegalStateException("Red-black invariant violated");
+        }
+        return node(true, x.left, x.key, x.right);
+    }
+
+
+    //Reading a version
+
+    private static boolean contains(Node x, int n) {
+
+        while (x != null) {
+
+            if (n == x.key) {
+                return true;
+            }
+
+            x = (n < x.key) ? x.left : x.right;
+        }
+
+        return false;
+    }
+
+    private static void forEachInRange(Node x, int lo, int hi, IntConsumer action) {
+
+        if (x == null) {
+            return;
+        }
+
+        // Only visit the subtrees that can hold keys in the range
+        if (lo < x.key) {
+            forEachInRange(x.left, lo, hi, action);
+        }
+
+        if (lo <= x.key && x.key <= hi) {
+            action.accept(x.key);
+        }
+
+        if (x.key < hi) {
+            forEachInRange(x.right, lo, hi, action);
+        }
+    }
+
+    private static int size(Node x) {
+        return (x == null) ? 0 : x.size;
+    }
+
+    private static int height(Node x) {
+        if (x == null) {
+            return -1;
+        }
+        return Math.max(height(x.left), height(x.right)) + 1;
+    }
+
+
+    /**
+     * Pass every key k with lo <= k <= hi in the current version to an action, in ascending order.
+     * @param lo The least value in the range.
+     * @param hi The largest value in the range.
+     * @param action Called with each key in the range.
+     */
+    public void forEachInRange(int lo, int hi, IntConsumer action) {
+        forEachInRange(root, lo, hi, action);
+    }
+
+    /**
+     * Get the number of keys in the current version.
+     * @return The number of keys.
+     */
+    public int size() {
+        return size(root);
+    }
+
+    /**
+     * Get the height of the current version.
+     * @return The height of the tree.
+     */
+    public int height() {
+        return height(root);
+    }
+
+
+    /**
+     * Used instead of <, >, and == operators, counting the number of times it was called.
+     * @return boolean value
+     */
+    private boolean compare(char op, int n1, int n2) {
+        metrics.comparison();
+
+        switch (op) {
+            case '<':
+                if (n1 < n2) {
+                    return true;
+                }
+                break;
+
+            case '>':
+                if (n1 > n2) {
+                    return true;
+                }
+                break;
+
+            case '=':
+                if (n1 == n2) {
+                    return true;
+                }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Get the comparison and allocation counters of this tree.
+     * Every node copied along a path counts as an allocation.
+     * @return The metrics of the tree.
+     */
+    public TreeMetrics metrics() {
+        return metrics;
+    }
+
+}
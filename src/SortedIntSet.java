@@ -0,0 +1,128 @@
+import java.util.function.IntConsumer;
+
+/**
+ * The operations shared by the search trees over int keys, so callers can switch between them.
+ *
+ * AVLTree, RBTree, ArrayRBTree and OffHeapRBTree store a key again when it is inserted a second time, and delete
+ * removes one copy. Created with Duplicates.COUNTED, they are multisets that count the copies in a single node.
+ * BPlusTree and SplayTree keep a single copy of each key.
+ */
+public interface SortedIntSet {
+
+    /**
+     * Create an empty set by name, so the backend can be chosen by configuration.
+     * @param name "avl", "wavl" (an AVLTree with WAVL rebalancing), "rb", "arena" (an ArrayRBTree), "offheap"
+     *             (an OffHeapRBTree), "bplus", "splay" or "semisplay" (a SplayTree that semi-splays), or
+     *             "avl-multi", "wavl-multi", "rb-multi", "arena-multi" or "offheap-multi" for a multiset with
+     *             Duplicates.COUNTED, with "-raw" appended for uncounted comparisons, e.g. "rb-raw" or
+     *             "rb-multi-raw".
+     * @return The new set.
+     */
+    static SortedIntSet create(String name) {
+        Comparison comparison = name.endsWith("-raw") ? Comparison.RAW : Comparison.COUNTING;
+
+        switch (name.replace("-raw", "")) {
+            case "avl":
+                return new AVLTree(comparison);
+            case "wavl":
+                return new AVLTree(comparison, AVLTree.Rebalancing.WAVL);
+            case "rb":
+                return new RBTree(comparison);
+            case "avl-multi":
+                return new AVLTree(comparison, AVLTree.Rebalancing.AVL, Duplicates.COUNTED);
+            case "wavl-multi":
+                return new AVLTree(comparison, AVLTree.Rebalancing.WAVL, Duplicates.COUNTED);
+            case "rb-multi":
+                return new RBTree(comparison, Duplicates.COUNTED);
+            case "arena":
+                return new ArrayRBTree(16, comparison);
+            case "arena-multi":
+                return new ArrayRBTree(16, comparison, Duplicates.COUNTED);
+            case "offheap":
+                return new OffHeapRBTree(16, comparison);
+            case "offheap-multi":
+                return new OffHeapRBTree(16, comparison, Duplicates.COUNTED);
+            case "bplus":
+                return new BPlusTree(BPlusTree.DEFAULT_ORDER, comparison);
+            case "splay":
+                return new SplayTree(comparison, SplayTree.Splaying.FULL);
+            case "semisplay":
+                return new SplayTree(comparison, SplayTree.Splaying.SEMI);
+            default:
+                throw new IllegalArgumentException("Unknown tree: " + name);
+        }
+    }
+
+
+    /**
+     * Insert a key.
+     * @param n The key.
+     */
+    void insert(int n);
+
+    /**
+     * Delete a key, if it is present.
+     * @param n The key.
+     */
+    void delete(int n);
+
+    /**
+     * Search for a key.
+     * @param n The key.
+     * @return True if the key is present.
+     */
+    boolean contains(int n);
+
+    /**
+     * Count the copies of a key. Trees that know where the copies are answer without visiting them.
+     * @param n The key.
+     * @return The number of times n is present, 0 if it is not.
+     */
+    default int count(int n) {
+        int[] count = new int[1];
+        forEachInRange(n, n, key -> count[0]++);
+        return count[0];
+    }
+
+    /**
+     * Get the number of keys, counting every copy of a repeated key.
+     * @return The number of keys.
+     */
+    int size();
+
+    /**
+     * Get the height: the number of links on the longest path from the root down, or -1 when empty.
+     * @return The height.
+     */
+    int height();
+
+    /**
+     * Pass every key k with lo <= k <= hi to an action, in ascending order.
+     * @param lo The least value in the range.
+     * @param hi The largest value in the range.
+     * @param action Called with each key in the range.
+     */
+    void forEachInRange(int lo, int hi, IntConsumer action);
+
+    /**
+     * Get the counters for the work done.
+     * @return The metrics.
+     */
+    TreeMetrics metrics();
+
+    /**
+     * Copy the keys into an immutable, array-based set that answers searches with fewer cache misses.
+     * The set does not change when this one does.
+     * @param layout The order of the array.
+     * @return The frozen set.
+     */
+    default FrozenIntSet freeze(FrozenIntSet.Layout layout) {
+        int[] keys = new int[size()];
+        int[] count = new int[1];
+
+        forEachInRange(Integer.MIN_VALUE, Integer.MAX_VALUE, key -> keys[count[0]++] = key);
+
+        return FrozenIntSet.fromSorted(keys, layout);
+    }
+
+}
@@ -0,0 +1,528 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A splay tree of int keys.
+ *
+ * Every search, insert and delete moves the node it reached up to the root with rotations, so keys that are
+ * used often stay near the top and a skewed workload is served from a few levels that stay in cache. Nodes
+ * hold no balance information. Any sequence of m operations on n keys takes O((m + n) log n) time, and for a
+ * fixed access distribution the tree is within a constant factor of the best static tree for it.
+ *
+ * Splaying works in steps on a node x, its parent p and its grandparent g. When x and p are children on the
+ * same side (zig-zig), p is rotated above g and then x above p. Otherwise (zig-zag) x is rotated above both
+ * with a double rotation. A final single rotation (zig) is used when p is the root.
+ * Semi-splaying only rotates p above g in the zig-zig case and continues from p, leaving x where it is. It
+ * does about half the rotations, moving the accessed node about half way to the root, with the same
+ * amortized bound.
+ *
+ * Keys form a set, so inserting a key that is present does nothing. Nodes have no parent pointers: the path
+ * from the root is kept on a reusable stack. The tree can become a long chain, so nothing recurses on it.
+ */
+public class SplayTree implements SortedIntSet {
+
+    /**
+     * How far an accessed node is moved up.
+     */
+    public enum Splaying {
+
+        /**
+         * Move the node all the way to the root.
+         */
+        FULL,
+
+        /**
+         * Semi-splay: rotate only the parent up in the zig-zig case, roughly halving the path.
+         */
+        SEMI
+    }
+
+
+    final TreeMetrics metrics = new TreeMetrics();  // Counters for the work done by this tree
+    final Comparison comparison;                    // How keys are compared
+    final Splaying splaying;                        // How far accessed nodes are moved up
+
+    private Node root;              // The root of the tree
+    private int size;               // The number of keys
+
+    private Node[] path = new Node[32];     // Reusable stack of the ancestors of the node being splayed
+
+
+    /*
+     * A node. Splaying needs nothing but the key and the two subtrees.
+     */
+    static final class Node {
+
+        Node left;      // Left subtree
+        Node right;     // Right subtree
+        int key;        // Value stored
+
+
+        Node(int key) {
+            this.key = key;
+        }
+    }
+
+
+    /**
+     * Constructs an empty tree that splays fully and counts comparisons.
+     */
+    public SplayTree() {
+        this(Comparison.COUNTING, Splaying.FULL);
+    }
+
+    /**
+     * Constructs an empty tree.
+     * @param comparison COUNTING to count every comparison in metrics(), RAW for the fastest comparisons.
+     * @param splaying FULL to move accessed nodes to the root, SEMI to move them about half way.
+     */
+    public SplayTree(Comparison comparison, Splaying splaying) {
+        this.comparison = comparison;
+        this.splaying = splaying;
+    }
+
+
+    //Searching
+
+    /**
+     * Search the tree for a given key value, then splay the last node reached.
+     * @param n The key value to search for.
+     * @return True if the value is in the tree.
+     */
+    public boolean contains(int n) {
+
+        if (root == null) {
+            return false;
+        }
+
+        Node x = root;
+        int depth = 0;
+        boolean found = false;
+
+        while (true) {
+
+            if (compare('=', n, x.key)) {
+                // This is the requested node
+                found = true;
+                break;
+            }
+
+            Node next = compare('<', n, x.key) ? x.left : x.right;
+
+            if (next == null) {
+                // n is not in the tree, x is the closest key to it on the path
+                break;
+            }
+
+            push(depth++, x);
+            x = next;
+        }
+
+        splay(x, depth);
+        return found;
+    }
+
+
+    //Insertion
+
+    /**
+     * Insert a new key value into the tree, then splay it.
+     * @param n The value to be inserted.
+     */
+    public void insert(int n) {
+
+        if (root == null) {
+            root = node(n);
+            size++;
+            return;
+        }
+
+        Node x = root;
+        int depth = 0;
+
+        while (true) {
+
+            if (compare('=', n, x.key)) {
+                // n is already in the tree
+                splay(x, depth);
+                return;
+            }
+
+            push(depth++, x);
+
+            if (compare('<', n, x.key)) {
+                if (x.left == null) {
+                    x.left = node(n);
+                    x = x.left;
+                    break;
+                }
+                x = x.left;
+            }
+            else {
+                if (x.right == null) {
+                    x.right = node(n);
+                    x = x.right;
+                    break;
+                }
+                x = x.right;
+            }
+        }
+
+        size++;
+        splay(x, depth);
+    }
+
+
+    //Deletion
+
+    /**
+     * Delete a key from the tree, then splay the parent of the node that was removed.
+     * If the key is not in the tree, the last node reached is splayed instead.
+     * @param n The key value to be deleted.
+     */
+    public void delete(int n) {
+
+        Node x = root;
+        int depth = 0;
+
+        while (x != null && !compare('=', n, x.key)) {
+            push(depth++, x);
+            x = compare('<', n, x.key) ? x.left : x.right;
+        }
+
+        if (x == null) {
+            // n is not in the tree
+            if (depth > 0) {
+                splay(path[depth - 1], depth - 1);
+            }
+            return;
+        }
+
+        Node parent = (depth > 0) ? path[depth - 1] : null;
+
+        if (x.left == null || x.right == null) {
+            // Replace x with its only child
+            replaceChild(parent, x, (x.left == null) ? x.right : x.left);
+        }
+        else {
+            // Move the largest key of the left subtree into x, and remove its node instead
+            Node yParent = x;
+            Node y = x.left;
+
+            while (y.right != null) {
+                yParent = y;
+                y = y.right;
+            }
+
+            x.key = y.key;
+            replaceChild(yParent, y, y.left);
+        }
+
+        size--;
+
+        if (parent != null) {
+            splay(parent, depth - 1);
+        }
+    }
+
+
+    //Splaying
+
+    /**
+     * Move a node up towards the root.
+     * @param x The node.
+     * @param depth The number of ancestors of x, which are on the path stack from the root down.
+     */
+    private void splay(Node x, int depth) {
+
+        Node[] path = this.path;
+
+        while (depth > 1) {
+
+            Node p = path[depth - 1];                           // Parent
+            Node g = path[depth - 2];                           // Grandparent
+            Node gg = (depth > 2) ? path[depth - 3] : null;     // Where the rotated subtree is hung back
+
+            if (x == p.left) {
+
+                if (p == g.left) {
+                    // Zig-zig on the left
+                    llRotation(gg, g);
+
+                    if (splaying == Splaying.SEMI) {
+                        // Continue from p, which has taken the place of g
+                        x = p;
+                    }
+                    else {
+                        llRotation(gg, p);
+                    }
+                }
+                else {
+                    // Zig-zag: x is the inner grandchild on the right of g
+                    rlRotation(gg, g);
+                }
+
+            }
+            else {
+
+                if (p == g.right) {
+                    // Zig-zig on the right
+                    rrRotation(gg, g);
+
+                    if (splaying == Splaying.SEMI) {
+                        // Continue from p, which has taken the place of g
+                        x = p;
+                    }
+                    else {
+                        rrRotation(gg, p);
+                    }
+                }
+                else {
+                    // Zig-zag: x is the inner grandchild on the left of g
+                    lrRotation(gg, g);
+                }
+
+            }
+
+            depth -= 2;
+        }
+
+        if (depth == 1) {
+            // Zig: x is a child of the root
+            Node p = path[0];
+
+            if (x == p.left) {
+                llRotation(null, p);
+            }
+            else {
+                rrRotation(null, p);
+            }
+        }
+    }
+
+
+    //Rotations
+
+    /**
+     * Perform a left single rotation
+     * @param p The parent of x, or null if x is the root.
+     * @return The node that took the place of x.
+     */
+    private Node llRotation(Node p, Node x) {
+        metrics.llRotation();
+        return llRotate(p, x);
+    }
+
+    /**
+     * Perform a left double rotation
+     * @param p The parent of x, or null if x is the root.
+     * @return The node that took the place of x.
+     */
+    private Node lrRotation(Node p, Node x) {
+        metrics.lrRotation();
+        rrRotate(x, x.left);
+        return llRotate(p, x);
+    }
+
+    /**
+     * Perform a right single rotation
+     * @param p The parent of x, or null if x is the root.
+     * @return The node that took the place of x.
+     */
+    private Node rrRotation(Node p, Node x) {
+        metrics.rrRotation();
+        return rrRotate(p, x);
+    }
+
+    /**
+     * Perform a right double rotation
+     * @param p The parent of x, or null if x is the root.
+     * @return The node that took the place of x.
+     */
+    private Node rlRotation(Node p, Node x) {
+        metrics.rlRotation();
+        llRotate(x, x.right);
+        return rrRotate(p, x);
+    }
+
+    /**
+     * Rotate the left child of x up without counting the rotation.
+     */
+    private Node llRotate(Node p, Node x) {
+        Node tmp = x.left;
+
+        x.left = tmp.right;
+        tmp.right = x;
+
+        replaceChild(p, x, tmp);
+        return tmp;
+    }
+
+    /**
+     * Rotate the right child of x up without counting the rotation.
+     */
+    private Node rrRotate(Node p, Node x) {
+        Node tmp = x.right;
+
+        x.right = tmp.left;
+        tmp.left = x;
+
+        replaceChild(p, x, tmp);
+        return tmp;
+    }
+
+    /**
+     * Hang a node in the place of one of a parent's children.
+     * @param p The parent, or null to make y the root.
+     */
+    private void replaceChild(Node p, Node x, Node y) {
+        if (p == null) {
+            root = y;
+        }
+        else if (p.left == x) {
+            p.left = y;
+        }
+        else {
+            p.right = y;
+        }
+    }
+
+
+    //Node helpers
+
+    /**
+     * Create a node, counting the allocation.
+     */
+    private Node node(int key) {
+        metrics.allocation();
+        return new Node(key);
+    }
+
+    /**
+     * Store a node on the path stack, growing the stack if it is full.
+     * @param depth The position of the node on the stack.
+     * @param x The node.
+     */
+    private void push(int depth, Node x) {
+        if (depth == path.length) {
+            path = Arrays.copyOf(path, depth * 2);
+        }
+        path[depth] = x;
+    }
+
+
+    //Reading
+
+    /**
+     * Pass every key k with lo <= k <= hi to an action, in ascending order. Nothing is splayed.
+     * @param lo The least value in the range.
+     * @param hi The largest value in the range.
+     * @param action Called with each key in the range.
+     */
+    public void forEachInRange(int lo, int hi, IntConsumer action) {
+
+        Node x = root;
+        int depth = 0;
+
+        while (true) {
+
+            // Go down to the least key in range, keeping the nodes still to be visited on the stack
+            while (x != null) {
+                if (compare('<', x.key, lo)) {
+                    // x and its left subtree are below the range
+                    x = x.right;
+                }
+                else {
+                    push(depth++, x);
+                    x = x.left;
+                }
+            }
+
+            if (depth == 0) {
+                return;
+            }
+
+            x = path[--depth];
+
+            if (compare('>', x.key, hi)) {
+                return;
+            }
+
+            action.accept(x.key);
+            x = x.right;
+        }
+    }
+
+    /**
+     * Get the number of keys in the tree.
+     * @return The number of keys.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the height of the tree by visiting it level by level.
+     * @return The height of the tree, -1 when it is empty.
+     */
+    public int height() {
+
+        int height = -1;
+
+        if (root == null) {
+            return height;
+        }
+
+        ArrayDeque<Node> level = new ArrayDeque<>();
+        level.add(root);
+
+        while (!level.isEmpty()) {
+            height++;
+
+            for (int i = level.size(); i > 0; i--) {
+                Node x = level.poll();
+
+                if (x.left != null) {
+                    level.add(x.left);
+                }
+                if (x.right != null) {
+                    level.add(x.right);
+                }
+            }
+        }
+
+        return height;
+    }
+
+
+    /**
+     * Used instead of <, >, and == operators, counting the number of times it was called
+     * unless the tree was created with Comparison.RAW.
+     * @return boolean value
+     */
+    private boolean compare(char op, int n1, int n2) {
+        int c = comparison.compare(n1, n2, metrics);
+
+        switch (op) {
+            case '<':
+                return c < 0;
+
+            case '>':
+                return c > 0;
+
+            default:
+                return c == 0;
+        }
+    }
+
+
+    /**
+     * Get the comparison, rotation and allocation counters of this tree.
+     * @return The metrics of the tree.
+     */
+    public TreeMetrics metrics() {
+        return metrics;
+    }
+
+}
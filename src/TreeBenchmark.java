@@ -0,0 +1,427 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Wall-clock benchmarks for insert, delete and search on the trees.
+ *
+ * Every combination of tree, operation, size, key distribution and hit ratio is run for a number of
+ * warm-up iterations, followed by measured iterations. For each it reports throughput, average time,
+ * allocation and GC activity, together with the comparison and rotation counts from TreeMetrics.
+ *
+ * The trees eytzinger and veb are an RBTree frozen into a FrozenIntSet once its keys are inserted, and only
+ * take part in search, counting no comparisons. Compare them with the live trees at sizes well beyond
+ * the last level cache, e.g.
+ * --trees avl,rb,eytzinger,veb --ops search --sizes 1e7,1e8
+ *
+ * The trees splay and semisplay move the keys that are searched for towards the root, so they gain most from
+ * a skewed key distribution. Compare them with the balanced trees under Zipfian and uniform access, e.g.
+ * --trees avl,rb,splay,semisplay --ops search --dists zipfian,uniform
+ *
+ * The tree offheap keeps its nodes in a direct ByteBuffer. The gc columns show what that saves at sizes
+ * where the Node objects of rb dominate the heap, e.g.
+ * --trees rb,offheap --sizes 1e7
+ *
+ * The trees avl-raw and rb-raw compare with Comparison.RAW, so they show what counting comparisons costs.
+ *
+ * Inserts and deletes visit every key once, in an order set by the distribution: uniform shuffles the keys,
+ * sequential and reverse go through them in ascending and descending order. The skewed distributions,
+ * zipfian and hotspot, repeat keys, which only means something for searches, so they are only run there:
+ * inserting a key again or deleting a key already deleted would measure a failed search instead.
+ *
+ * Usage: java TreeBenchmark [--trees avl,wavl,rb,offheap,bplus,splay,semisplay,avl-multi,rb-multi,avl-raw,wavl-raw,rb-raw,offheap-raw,bplus-raw,splay-raw,semisplay-raw,arena,arena-raw,eytzinger,veb] [--ops insert,delete,search] [--sizes 1000,1000000]
+ *                           [--dists uniform,sequential,reverse,zipfian,hotspot] [--hits 1.0,0.5] [--warmup 5]
+ *                           [--iterations 10] [--queries 1000000] [--seed 42]
+ */
+public class TreeBenchmark {
+
+    /**
+     * The operations of a tree that are benchmarked.
+     */
+    interface Subject {
+        void insert(int n);
+        void delete(int n);
+        boolean search(int n);
+        TreeMetrics metrics();
+
+        /**
+         * Called once the keys are in place, before the operations are timed.
+         */
+        default void ready() {
+        }
+
+        /**
+         * Called once the iteration is over, to give back memory the tree holds outside the heap.
+         */
+        default void close() {
+        }
+    }
+
+    static Subject create(String tree) {
+        switch (tree) {
+            case "eytzinger":
+                return frozen(FrozenIntSet.Layout.EYTZINGER);
+            case "veb":
+                return frozen(FrozenIntSet.Layout.VAN_EMDE_BOAS);
+            default:
+                return of(SortedIntSet.create(tree));
+        }
+    }
+
+    /**
+     * A subject for any of the trees behind SortedIntSet.
+     */
+    static Subject of(SortedIntSet t) {
+        return new Subject() {
+            public void insert(int n) { t.insert(n); }
+            public void delete(int n) { t.delete(n); }
+            public boolean search(int n) { return t.contains(n); }
+            public TreeMetrics metrics() { return t.metrics(); }
+            public void close() {
+                if (t instanceof OffHeapRBTree) {
+                    ((OffHeapRBTree) t).close();
+                }
+            }
+        };
+    }
+
+    /**
+     * A subject that collects its keys in an RBTree and searches a frozen copy of them.
+     */
+    static Subject frozen(FrozenIntSet.Layout layout) {
+        RBTree t = new RBTree();
+        FrozenIntSet[] frozen = new FrozenIntSet[1];
+
+        return new Subject() {
+            public void insert(int n) { t.insert(n); }
+            public void delete(int n) { t.delete(n); }
+            public boolean search(int n) { return frozen[0].contains(n); }
+            public TreeMetrics metrics() { return t.metrics(); }
+            public void ready() { frozen[0] = t.freeze(layout); }
+        };
+    }
+
+    /**
+     * Whether a distribution repeats some keys more than others, so that it only applies to searches.
+     */
+    static boolean isSkewed(String dist) {
+        return dist.equals("zipfian") || dist.equals("hotspot");
+    }
+
+    /**
+     * Whether a tree can only be searched.
+     */
+    static boolean isFrozen(String tree) {
+        return tree.equals("eytzinger") || tree.equals("veb");
+    }
+
+
+    // Benchmark parameters
+    String[] trees = {"avl", "rb"};
+    String[] ops = {"insert", "delete", "search"};
+    int[] sizes = {1000, 10000, 100000, 1000000};
+    String[] dists = {"uniform", "sequential", "zipfian"};
+    double[] hits = {1.0, 0.5};
+    int warmup = 5;
+    int iterations = 10;
+    int queries = 1000000;
+    long seed = 42;
+
+    // Consumes search results so that the searches cannot be optimised away
+    static int sink;
+
+
+    public static void main(String[] args) {
+        TreeBenchmark b = new TreeBenchmark();
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+
+            switch (args[i]) {
+                case "--trees": b.trees = value.split(","); break;
+                case "--ops": b.ops = value.split(","); break;
+                case "--sizes": b.sizes = parseInts(value); break;
+                case "--dists": b.dists = value.split(","); break;
+                case "--hits": b.hits = parseDoubles(value); break;
+                case "--warmup": b.warmup = Integer.parseInt(value); break;
+                case "--iterations": b.iterations = Integer.parseInt(value); break;
+                case "--queries": b.queries = Integer.parseInt(value); break;
+                case "--seed": b.seed = Long.parseLong(value); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        b.run();
+    }
+
+
+    /**
+     * Run every combination of the parameters and print one line of results for each.
+     */
+    void run() {
+        System.out.printf("%-9s %-7s %10s %-10s %5s %14s %12s %12s %10s %8s %8s %8s %12s %10s%n",
+                "tree", "op", "size", "dist", "hit", "ops/s", "+-", "ns/op", "B/op", "MB/s", "gc", "gc ms", "cmp/op", "rot/op");
+
+        for (String op : ops) {
+            for (int size : sizes) {
+                for (String dist : dists) {
+                    if (!op.equals("search") && isSkewed(dist)) {
+                        continue;
+                    }
+
+                    // Inserts only touch keys that are not yet in the tree, so the hit ratio does not apply
+                    double[] hitRatios = op.equals("insert") ? new double[] {1.0} : hits;
+
+                    for (double hit : hitRatios) {
+                        for (String tree : trees) {
+                            if (isFrozen(tree) && !op.equals("search")) {
+                                continue;
+                            }
+                            report(tree, op, size, dist, hit, measure(tree, op, size, dist, hit));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * The measurements of one iteration.
+     */
+    static final class Sample {
+        long ops;
+        long nanos;
+        long allocatedBytes;
+        long gcCount;
+        long gcMillis;
+        TreeMetrics.Snapshot metrics;
+    }
+
+    /**
+     * Run the warm-up and measured iterations for one combination of parameters.
+     * @return The samples of the measured iterations.
+     */
+    List<Sample> measure(String tree, String op, int size, String dist, double hit) {
+        // Tree keys are even, so that odd keys are guaranteed misses
+        int[] keys = new int[size];
+        for (int i = 0; i < size; i++) {
+            int base = isOrdered(dist) ? i : KeyGenerator.scramble(i, seed);
+            keys[i] = base << 1;
+        }
+
+        List<Sample> samples = new ArrayList<>();
+
+        for (int i = 0; i < warmup + iterations; i++) {
+            Sample sample = iteration(tree, op, keys, dist, hit, seed + i);
+            if (i >= warmup) {
+                samples.add(sample);
+            }
+        }
+
+        return samples;
+    }
+
+    /**
+     * Run a single iteration. Only the requested operation is timed, any set-up is excluded.
+     */
+    Sample iteration(String tree, String op, int[] keys, String dist, double hit, long iterationSeed) {
+        int size = keys.length;
+        Subject subject = create(tree);
+
+        // The order in which the tree keys are visited
+        KeyGenerator order = KeyGenerator.of(dist, size, iterationSeed);
+
+        // Which operations miss, spread evenly through the iteration
+        long hitThreshold = (long) (hit * Integer.MAX_VALUE);
+        KeyGenerator coin = KeyGenerator.uniform(Integer.MAX_VALUE, iterationSeed ^ 0x5DEECE66DL);
+
+        int[] work;
+        if (op.equals("insert")) {
+            // Insert every key once, in the order given by the distribution
+            work = insertionOrder(keys, dist, iterationSeed);
+        }
+        else {
+            for (int key : insertionOrder(keys, dist, iterationSeed)) {
+                subject.insert(key);
+            }
+
+            if (op.equals("delete")) {
+                // Delete every key once, in another order of the same kind, replacing some by misses
+                work = insertionOrder(keys, dist, ~iterationSeed);
+                for (int i = 0; i < size; i++) {
+                    if (coin.next() >= hitThreshold) {
+                        work[i] |= 1;
+                    }
+                }
+            }
+            else {
+                work = new int[queries];
+                for (int i = 0; i < queries; i++) {
+                    int key = keys[order.next()];
+                    work[i] = (coin.next() < hitThreshold) ? key : key | 1;
+                }
+            }
+        }
+
+        subject.ready();
+        subject.metrics().snapshotAndReset();
+
+        Sample sample = new Sample();
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+
+        switch (op) {
+            case "insert":
+                for (int key : work) {
+                    subject.insert(key);
+                }
+                break;
+            case "delete":
+                for (int key : work) {
+                    subject.delete(key);
+                }
+                break;
+            case "search":
+                int found = 0;
+                for (int key : work) {
+                    if (subject.search(key)) {
+                        found++;
+                    }
+                }
+                sink += found;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation: " + op);
+        }
+
+        sample.nanos = System.nanoTime() - start;
+        sample.allocatedBytes = allocatedBytes() - allocated;
+        sample.gcCount = gcCount() - gcCount;
+        sample.gcMillis = gcMillis() - gcMillis;
+        sample.ops = work.length;
+        sample.metrics = subject.metrics().snapshotAndReset();
+        subject.close();
+
+        return sample;
+    }
+
+    /**
+     * Whether a distribution visits the keys in order, so the keys need not be scrambled.
+     */
+    static boolean isOrdered(String dist) {
+        return dist.equals("sequential") || dist.equals("reverse");
+    }
+
+    /**
+     * The order in which keys are inserted into a tree.
+     * Sequential data is inserted in ascending order, reverse data in descending order, other
+     * distributions in a random order.
+     */
+    static int[] insertionOrder(int[] keys, String dist, long seed) {
+        int[] order = keys.clone();
+
+        if (dist.equals("reverse")) {
+            for (int i = 0, j = order.length - 1; i < j; i++, j--) {
+                int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+            }
+        }
+        else if (!dist.equals("sequential")) {
+            KeyGenerator rnd = KeyGenerator.uniform(Integer.MAX_VALUE, seed);
+            for (int i = order.length - 1; i > 0; i--) {
+                int j = rnd.next() % (i + 1);
+                int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+            }
+        }
+
+        return order;
+    }
+
+
+    /**
+     * Print the mean and standard deviation of the measured iterations.
+     */
+    static void report(String tree, String op, int size, String dist, double hit, List<Sample> samples) {
+        int k = samples.size();
+        double[] throughput = new double[k];
+        double nanosPerOp = 0, bytesPerOp = 0, mbPerSecond = 0, gcCount = 0, gcMillis = 0, cmpPerOp = 0, rotPerOp = 0;
+
+        for (int i = 0; i < k; i++) {
+            Sample s = samples.get(i);
+            double seconds = s.nanos / 1e9;
+
+            throughput[i] = s.ops / seconds;
+            nanosPerOp += (double) s.nanos / s.ops / k;
+            bytesPerOp += (double) s.allocatedBytes / s.ops / k;
+            mbPerSecond += s.allocatedBytes / seconds / (1024 * 1024) / k;
+            gcCount += (double) s.gcCount / k;
+            gcMillis += (double) s.gcMillis / k;
+            cmpPerOp += (double) s.metrics.comparisons / s.ops / k;
+            rotPerOp += (double) s.metrics.rotations() / s.ops / k;
+        }
+
+        double mean = 0;
+        for (double t : throughput) {
+            mean += t / k;
+        }
+
+        double variance = 0;
+        for (double t : throughput) {
+            variance += (t - mean) * (t - mean) / Math.max(k - 1, 1);
+        }
+
+        System.out.printf(Locale.ROOT, "%-9s %-7s %10d %-10s %5.2f %14.0f %12.0f %12.1f %10.1f %8.1f %8.1f %8.1f %12.2f %10.3f%n",
+                tree, op, size, dist, hit, mean, Math.sqrt(variance), nanosPerOp, bytesPerOp, mbPerSecond, gcCount, gcMillis, cmpPerOp, rotPerOp);
+    }
+
+
+    //Measurement helpers
+
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(gc.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(gc.getCollectionTime(), 0);
+        }
+        return millis;
+    }
+
+    static int[] parseInts(String value) {
+        String[] parts = value.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = (int) Double.parseDouble(parts[i]);
+        }
+        return result;
+    }
+
+    static double[] parseDoubles(String value) {
+        String[] parts = value.split(",");
+        double[] result = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Double.parseDouble(parts[i]);
+        }
+        return result;
+    }
+
+}
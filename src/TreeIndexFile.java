@@ -0,0 +1,379 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * A read-only index of int keys stored in a file and answered straight from a memory mapping.
+ *
+ * The file is a static B+ tree made of 4 KiB pages. Page 0 is the header. The leaf level follows,
+ * holding every key in ascending order, 1024 to a page. Each level above holds the first key of every
+ * page of the level below, until a level fits in a single page. A lookup reads one page per level, so
+ * 10^8 keys need three levels and four page reads. The keys are never copied onto the heap.
+ *
+ * A mapping is limited to 2 GiB, so an index holds at most about 5 * 10^8 keys.
+ */
+public class TreeIndexFile {
+
+    static final int PAGE_BYTES = 4096;                 // Size of a page in the file
+    static final int PAGE_INTS = PAGE_BYTES / 4;        // Number of keys in a page
+    static final int MAGIC = 0x54524958;                // "TRIX", at the start of the header
+    static final int VERSION = 1;                       // Format version, after the magic number
+
+    private final IntBuffer ints;       // The whole file, read as ints
+    private final int size;             // The number of keys
+    private final int[] levelStart;     // The int offset of each level in the file, leaves first
+    private final int[] levelCount;     // The number of entries on each level
+
+
+    private TreeIndexFile(IntBuffer ints, int size, int[] levelStart, int[] levelCount) {
+        this.ints = ints;
+        this.size = size;
+        this.levelStart = levelStart;
+        this.levelCount = levelCount;
+    }
+
+
+    //Writing
+
+    /**
+     * Write the keys of an AVL tree to an index file.
+     * @param tree The tree.
+     * @param file The file to create or overwrite.
+     * @throws IOException If the file could not be written.
+     */
+    public static void write(AVLTree tree, Path file) throws IOException {
+        write(tree.size(), action -> tree.forEachInRange(Integer.MIN_VALUE, Integer.MAX_VALUE, action), file);
+    }
+
+    /**
+     * Write the keys of a Red-Black tree to an index file.
+     * @param tree The tree.
+     * @param file The file to create or overwrite.
+     * @throws IOException If the file could not be written.
+     */
+    public static void write(RBTree tree, Path file) throws IOException {
+        write(tree.size(), action -> tree.forEachInRange(Integer.MIN_VALUE, Integer.MAX_VALUE, action), file);
+    }
+
+    /**
+     * Write size keys, produced in ascending order by scan, to an index file.
+     */
+    private static void write(int size, Consumer<IntConsumer> scan, Path file) throws IOException {
+
+        // Work out the shape of the tree, leaves first
+        int levels = 1;
+        for (int count = size; count > PAGE_INTS; count = pages(count)) {
+            levels++;
+        }
+
+        int[] levelStart = new int[levels];
+        int[] levelCount = new int[levels];
+        int page = 1;
+
+        for (int level = 0, count = size; level < levels; level++, count = pages(count)) {
+            levelStart[level] = page * PAGE_INTS;
+            levelCount[level] = count;
+            page += pages(count);
+        }
+
+        if ((long) page * PAGE_BYTES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many keys for one index file: " + size);
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            // The leaves are streamed from the tree, keeping the first key of each page for the level above
+            int[] leafFirsts = new int[pages(size)];
+            PageWriter leaves = new PageWriter(channel, levelStart[0]);
+
+            try {
+                scan.accept(key -> {
+                    if (leaves.count % PAGE_INTS == 0) {
+                        leafFirsts[leaves.count / PAGE_INTS] = key;
+                    }
+                    leaves.put(key);
+                });
+                leaves.finish();
+            }
+            catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            if (leaves.count != size) {
+                throw new IllegalStateException("Tree produced " + leaves.count + " keys but has size " + size);
+            }
+
+            // Each inner level is small enough to build in memory
+            int[] firsts = leafFirsts;
+
+            for (int level = 1; level < levels; level++) {
+                PageWriter inner = new PageWriter(channel, levelStart[level]);
+                int[] next = new int[pages(firsts.length)];
+
+                for (int i = 0; i < firsts.length; i++) {
+                    if (i % PAGE_INTS == 0) {
+                        next[i / PAGE_INTS] = firsts[i];
+                    }
+                    inner.put(firsts[i]);
+                }
+                inner.finish();
+
+                firsts = next;
+            }
+
+            // The header goes last, so a file that was not finished has no magic number
+            ByteBuffer header = ByteBuffer.allocate(PAGE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(levels);
+            for (int level = 0; level < levels; level++) {
+                header.putInt(levelStart[level]).putInt(levelCount[level]);
+            }
+            header.clear();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * The number of pages needed for count entries.
+     */
+    private static int pages(int count) {
+        return Math.max(1, (count + PAGE_INTS - 1) / PAGE_INTS);
+    }
+
+
+    /*
+     * Writes ints to consecutive positions of a file, a page at a time.
+     */
+    private static final class PageWriter {
+
+        final FileChannel channel;
+        final ByteBuffer page = ByteBuffer.allocateDirect(PAGE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long position;      // The byte offset where the current page will be written
+        int count;          // The number of ints written so far
+
+
+        PageWriter(FileChannel channel, int start) {
+            this.channel = channel;
+            this.position = (long) start * 4;
+        }
+
+        void put(int value) {
+            page.putInt(value);
+            count++;
+
+            if (!page.hasRemaining()) {
+                flush();
+            }
+        }
+
+        /**
+         * Write out the last page, padded to a whole page.
+         */
+        void finish() {
+            if (page.position() > 0 || count == 0) {
+                while (page.hasRemaining()) {
+                    page.putInt(Integer.MAX_VALUE);
+                }
+                flush();
+            }
+        }
+
+        private void flush() {
+            page.flip();
+            try {
+                while (page.hasRemaining()) {
+                    position += channel.write(page, position);
+                }
+            }
+            catch (IOException e) {
+                // Called from inside a key scan, which cannot throw checked exceptions
+                throw new UncheckedIOException(e);
+            }
+            page.clear();
+        }
+    }
+
+
+    //Reading
+
+    /**
+     * Map an index file into memory. The file is closed straight away, the mapping stays valid until
+     * the returned object is garbage collected.
+     * @param file The file written by write().
+     * @return The index.
+     * @throws IOException If the file could not be read or is not an index file.
+     */
+    public static TreeIndexFile open(Path file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            long length = channel.size();
+            if (length < PAGE_BYTES || length > Integer.MAX_VALUE) {
+                throw new IOException("Not an index file: " + file);
+            }
+
+            IntBuffer ints = channel.map(FileChannel.MapMode.READ_ONLY, 0, length)
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .asIntBuffer();
+
+            if (ints.get(0) != MAGIC || ints.get(1) != VERSION) {
+                throw new IOException("Not an index file: " + file);
+            }
+
+            int size = ints.get(2);
+            int levels = ints.get(3);
+            int[] levelStart = new int[levels];
+            int[] levelCount = new int[levels];
+
+            for (int level = 0; level < levels; level++) {
+                levelStart[level] = ints.get(4 + 2 * level);
+                levelCount[level] = ints.get(5 + 2 * level);
+            }
+
+            return new TreeIndexFile(ints, size, levelStart, levelCount);
+        }
+    }
+
+
+    /**
+     * Search the index for a given key value.
+     * @param n The key value to search for.
+     * @return True if the value is in the index.
+     */
+    public boolean search(int n) {
+        int i = countBelow(n, false);
+        return i < size && key(i) == n;
+    }
+
+    /**
+     * Find the largest key that is not larger than n.
+     * @param n The value.
+     * @return The key.
+     * @throws NoSuchElementException If every key is larger than n.
+     */
+    public int floor(int n) {
+        int i = countBelow(n, true) - 1;
+        if (i < 0) {
+            throw new NoSuchElementException("No key at or below " + n);
+        }
+        return key(i);
+    }
+
+    /**
+     * Find the least key that is not smaller than n.
+     * @param n The value.
+     * @return The key.
+     * @throws NoSuchElementException If every key is smaller than n.
+     */
+    public int ceiling(int n) {
+        int i = countBelow(n, false);
+        if (i == size) {
+            throw new NoSuchElementException("No key at or above " + n);
+        }
+        return key(i);
+    }
+
+    /**
+     * Pass every key k with lo <= k <= hi to an action, in ascending order.
+     * The keys are read one after another from the leaf pages.
+     * @param lo The least value in the range.
+     * @param hi The largest value in the range.
+     * @param action Called with each key in the range.
+     */
+    public void forEachInRange(int lo, int hi, IntConsumer action) {
+        for (int i = countBelow(lo, false); i < size; i++) {
+            int k = key(i);
+
+            if (k > hi) {
+                return;
+            }
+
+            action.accept(k);
+        }
+    }
+
+    /**
+     * Count the keys that are smaller than a given value.
+     * @param n The value.
+     * @return The number of keys less than n.
+     */
+    public int rank(int n) {
+        return countBelow(n, false);
+    }
+
+    /**
+     * Find the key at a given position in sorted order.
+     * @param k The position, starting from 0 for the least key.
+     * @return The k-th smallest key.
+     */
+    public int select(int k) {
+        if (k < 0 || k >= size) {
+            throw new IndexOutOfBoundsException("Index " + k + " out of bounds for size " + size);
+        }
+        return key(k);
+    }
+
+    /**
+     * Get the number of keys in the index.
+     * @return The number of keys.
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * The i-th smallest key. The leaves form one sorted array.
+     */
+    private int key(int i) {
+        return ints.get(levelStart[0] + i);
+    }
+
+    /**
+     * Count the keys that are smaller than n, or not larger than n if inclusive is set.
+     * Descends from the single page at the top, reading one page per level.
+     */
+    private int countBelow(int n, boolean inclusive) {
+
+        int page = 0;   // The page within the current level
+
+        for (int level = levelStart.length - 1; level >= 0; level--) {
+            int from = page * PAGE_INTS;
+            int to = Math.min(from + PAGE_INTS, levelCount[level]);
+
+            // Find the first entry in the page that is not below n
+            int lo = from;
+            int hi = to;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                int k = ints.get(levelStart[level] + mid);
+
+                if (inclusive ? k <= n : k < n) {
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid;
+                }
+            }
+
+            if (level == 0) {
+                return lo;
+            }
+
+            // The entries are first keys of the pages below, so n belongs in the page of the last entry below it
+            page = Math.max(lo - 1, from);
+        }
+
+        return 0;
+    }
+
+}
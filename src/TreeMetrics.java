@@ -0,0 +1,178 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the work done by a single tree: comparisons, rotations, recolourings and node allocations.
+ * Each tree owns its own instance, so several trees (or threads) can be measured at the same time.
+ * The counters are striped LongAdders, so concurrent updates do not contend on a single field.
+ * They are held together in one block, and snapshotAndReset() switches every counter to a second block at once.
+ */
+public class TreeMetrics {
+
+    // The two blocks of counters, which take turns to be updated. Neither is ever cleared, so an update that
+    // reaches a block after it stopped being the current one is still found the next time the block is read
+    private final Counters[] blocks = {new Counters(), new Counters()};
+
+    private final Snapshot[] reported = {Snapshot.ZERO, Snapshot.ZERO};     // What each block has already reported
+    private int current = 0;                                                // The index of the block being updated
+
+    // The block being updated
+    private volatile Counters counters = blocks[0];
+
+
+    /**
+     * The counters of a tree.
+     */
+    private static final class Counters {
+        final LongAdder comparisons = new LongAdder();
+        final LongAdder llRotations = new LongAdder();
+        final LongAdder lrRotations = new LongAdder();
+        final LongAdder rrRotations = new LongAdder();
+        final LongAdder rlRotations = new LongAdder();
+        final LongAdder recolourings = new LongAdder();
+        final LongAdder allocations = new LongAdder();
+    }
+
+
+    /**
+     * The values of the counters at a point in time.
+     */
+    public static final class Snapshot {
+
+        public final long comparisons;      // Number of comparisons performed
+        public final long llRotations;      // Number of left single rotations
+        public final long lrRotations;      // Number of left double rotations
+        public final long rrRotations;      // Number of right single rotations
+        public final long rlRotations;      // Number of right double rotations
+        public final long recolourings;     // Number of times a node changed colour
+        public final long allocations;      // Number of nodes created
+
+        static final Snapshot ZERO = new Snapshot(new Counters());
+
+        private Snapshot(Counters c) {
+            this.comparisons = c.comparisons.sum();
+            this.llRotations = c.llRotations.sum();
+            this.lrRotations = c.lrRotations.sum();
+            this.rrRotations = c.rrRotations.sum();
+            this.rlRotations = c.rlRotations.sum();
+            this.recolourings = c.recolourings.sum();
+            this.allocations = c.allocations.sum();
+        }
+
+        /**
+         * Add the updates a block received after an earlier reading of it to a snapshot.
+         * @param s The snapshot to add to.
+         * @param now A later reading of the block.
+         * @param before The earlier reading of the block.
+         */
+        private Snapshot(Snapshot s, Snapshot now, Snapshot before) {
+            this.comparisons = s.comparisons + now.comparisons - before.comparisons;
+            this.llRotations = s.llRotations + now.llRotations - before.llRotations;
+            this.lrRotations = s.lrRotations + now.lrRotations - before.lrRotations;
+            this.rrRotations = s.rrRotations + now.rrRotations - before.rrRotations;
+            this.rlRotations = s.rlRotations + now.rlRotations - before.rlRotations;
+            this.recolourings = s.recolourings + now.recolourings - before.recolourings;
+            this.allocations = s.allocations + now.allocations - before.allocations;
+        }
+
+        /**
+         * The total number of single rotations performed. A double rotation counts as two.
+         * @return The number of rotations.
+         */
+        public long rotations() {
+            return llRotations + rrRotations + 2 * (lrRotations + rlRotations);
+        }
+
+        @Override
+        public String toString() {
+            return "comparisons=" + comparisons
+                    + ", rotations=" + rotations()
+                    + " (LL=" + llRotations + ", LR=" + lrRotations + ", RR=" + rrRotations + ", RL=" + rlRotations + ")"
+                    + ", recolourings=" + recolourings
+                    + ", allocations=" + allocations;
+        }
+    }
+
+
+    /**
+     * Count a key comparison.
+     */
+    public void comparison() {
+        counters.comparisons.increment();
+    }
+
+    /**
+     * Count a left single rotation.
+     */
+    public void llRotation() {
+        counters.llRotations.increment();
+    }
+
+    /**
+     * Count a left double rotation.
+     */
+    public void lrRotation() {
+        counters.lrRotations.increment();
+    }
+
+    /**
+     * Count a right single rotation.
+     */
+    public void rrRotation() {
+        counters.rrRotations.increment();
+    }
+
+    /**
+     * Count a right double rotation.
+     */
+    public void rlRotation() {
+        counters.rlRotations.increment();
+    }
+
+    /**
+     * Count a node changing colour.
+     */
+    public void recolouring() {
+        counters.recolourings.increment();
+    }
+
+    /**
+     * Count a node being created.
+     */
+    public void allocation() {
+        counters.allocations.increment();
+    }
+
+
+    /**
+     * Read the counters without resetting them.
+     * @return The current values of the counters.
+     */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(Snapshot.ZERO, new Snapshot(blocks[current]), reported[current]);
+    }
+
+    /**
+     * Read the counters and start counting again from zero.
+     * Every counter moves to the other block in a single volatile write, so the period ends at the same instant
+     * for all of them: an update that finds the new block is counted in the next period. An update that found
+     * the old block just before the switch but lands in it after it has been read is counted by a later reset,
+     * when that block is read again. No update is lost, and none is counted twice.
+     * @return The values of the counters before the reset.
+     */
+    public synchronized Snapshot snapshotAndReset() {
+        int next = 1 - current;
+
+        // Late updates from the last time the other block was current, read before it takes over
+        Snapshot late = new Snapshot(blocks[next]);
+        counters = blocks[next];
+        Snapshot ended = new Snapshot(blocks[current]);
+
+        Snapshot result = new Snapshot(new Snapshot(Snapshot.ZERO, ended, reported[current]), late, reported[next]);
+
+        reported[current] = ended;
+        reported[next] = late;
+        current = next;
+        return result;
+    }
+
+}
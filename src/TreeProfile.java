@@ -0,0 +1,186 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Optional instrumentation of a tree: latency histograms for insert, delete and search, and a JDK Flight
+ * Recorder event for every insert or delete that had to rebalance.
+ *
+ * Profiling is switched on for the whole JVM with -Dtrees.profile=true. The flag is read once into a static
+ * final field, so when it is off the JIT drops every profiling branch and the trees run the same code as
+ * before. The events are recorded only while a recording with trees.Rebalance enabled is running, e.g.
+ * java -Dtrees.profile=true -XX:StartFlightRecording=filename=trees.jfr Main ...
+ *
+ * A profile belongs to a single tree and, like the trees, is not thread safe.
+ */
+public final class TreeProfile {
+
+    /**
+     * True when the trees are profiled, taken from the system property trees.profile.
+     */
+    public static final boolean ENABLED = Boolean.getBoolean("trees.profile");
+
+    // The operations that are timed
+    static final int INSERT = 0;
+    static final int DELETE = 1;
+    static final int SEARCH = 2;
+
+    private static final String[] OPERATIONS = {"insert", "delete", "search"};
+
+    private final String tree;          // The kind of tree, reported in the events
+    private final LatencyHistogram[] latency = {new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram()};
+
+    // The work done by the operation in progress, updated by the tree
+    int pathLength;     // The number of nodes on the path from the root
+    int rotations;      // The number of rotations, a double rotation counts as two
+    int recolourings;   // The number of nodes that changed colour
+
+
+    TreeProfile(String tree) {
+        this.tree = tree;
+    }
+
+
+    /*
+     * Rebalancing done by a single insert or delete.
+     */
+    @Name("trees.Rebalance")
+    @Label("Tree Rebalance")
+    @Category("Trees")
+    @Description("Rotations and recolourings done by one insert or delete")
+    static final class RebalanceEvent extends Event {
+
+        @Label("Tree")
+        String tree;
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Key")
+        String key;
+
+        @Label("Path Length")
+        int pathLength;
+
+        @Label("Rotations")
+        int rotations;
+
+        @Label("Recolourings")
+        int recolourings;
+
+        @Label("Latency")
+        @Description("Nanoseconds taken by the whole operation")
+        long nanos;
+    }
+
+
+    //Recording
+
+    /**
+     * Start timing an operation.
+     * @return The start time, to pass to end().
+     */
+    long begin() {
+        pathLength = 0;
+        rotations = 0;
+        recolourings = 0;
+        return System.nanoTime();
+    }
+
+    /**
+     * Finish timing an operation, and report its rebalancing if there was any.
+     * @param operation INSERT, DELETE or SEARCH.
+     * @param start The time returned by begin().
+     * @param key The key of the operation, an int or a long.
+     */
+    void end(int operation, long start, long key) {
+        RebalanceEvent event = finish(operation, start);
+
+        if (event != null) {
+            event.key = Long.toString(key);
+            event.commit();
+        }
+    }
+
+    /**
+     * Finish timing an operation on a tree whose keys are objects.
+     * @param operation INSERT, DELETE or SEARCH.
+     * @param start The time returned by begin().
+     * @param key The key of the operation, reported with its toString().
+     */
+    void end(int operation, long start, Object key) {
+        RebalanceEvent event = finish(operation, start);
+
+        if (event != null) {
+            event.key = String.valueOf(key);
+            event.commit();
+        }
+    }
+
+    /**
+     * Record the latency of an operation, and fill in an event for its rebalancing.
+     * The key is only turned into text once an event is known to be recorded.
+     * @return The event to commit, or null if there was no rebalancing or no recording wants it.
+     */
+    private RebalanceEvent finish(int operation, long start) {
+        long nanos = System.nanoTime() - start;
+        latency[operation].record(nanos);
+
+        if (rotations + recolourings == 0) {
+            return null;
+        }
+
+        RebalanceEvent event = new RebalanceEvent();
+
+        if (!event.shouldCommit()) {
+            return null;
+        }
+
+        event.tree = tree;
+        event.operation = OPERATIONS[operation];
+        event.pathLength = pathLength;
+        event.rotations = rotations;
+        event.recolourings = recolourings;
+        event.nanos = nanos;
+        return event;
+    }
+
+
+    //Reading
+
+    /**
+     * Get the latencies of insert, in nanoseconds.
+     * @return The histogram.
+     */
+    public LatencyHistogram insertLatency() {
+        return latency[INSERT];
+    }
+
+    /**
+     * Get the latencies of delete, in nanoseconds.
+     * @return The histogram.
+     */
+    public LatencyHistogram deleteLatency() {
+        return latency[DELETE];
+    }
+
+    /**
+     * Get the latencies of search, in nanoseconds.
+     * @return The histogram.
+     */
+    public LatencyHistogram searchLatency() {
+        return latency[SEARCH];
+    }
+
+    /**
+     * Forget the recorded latencies.
+     */
+    public void reset() {
+        for (LatencyHistogram h : latency) {
+            h.reset();
+        }
+    }
+
+}
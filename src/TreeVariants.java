@@ -0,0 +1,736 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generates the long and Comparator-keyed trees from RBTree and AVLTree, so that each algorithm is written once.
+ * LongRBTree, ObjectRBTree, LongAVLTree and ObjectAVLTree are outputs of this class and are never edited by hand:
+ * change RBTree or AVLTree, then run
+ *
+ *     java TreeVariants src
+ *
+ * With --check nothing is written, and the exit status is 1 if a generated file differs from what the
+ * int trees produce now. Every rewrite names the exact text it expects to find, so a change to the int trees
+ * that the rewrites do not cover stops the generator with an error instead of producing a wrong variant.
+ */
+public final class TreeVariants {
+
+    // The line added to the class comment of every generated file
+    private static final String GENERATED = " * Generated from %s by TreeVariants. Change %s and run java TreeVariants instead of editing this file.\n";
+
+
+    private TreeVariants() {
+    }
+
+
+    /**
+     * Regenerate the variants, or check that they are up to date.
+     * @param args [--check] [source directory], the directory defaulting to src.
+     */
+    public static void main(String[] args) throws IOException {
+        boolean check = false;
+        Path dir = Paths.get("src");
+
+        for (String arg : args) {
+            if (arg.equals("--check")) {
+                check = true;
+            }
+            else {
+                dir = Paths.get(arg);
+            }
+        }
+
+        Map<String, String> files = generate(read(dir.resolve("RBTree.java")), read(dir.resolve("AVLTree.java")));
+        List<String> stale = new ArrayList<>();
+
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            Path path = dir.resolve(file.getKey());
+
+            if (Files.exists(path) && read(path).equals(file.getValue())) {
+                continue;
+            }
+
+            stale.add(file.getKey());
+
+            if (!check) {
+                Files.write(path, file.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        if (check && !stale.isEmpty()) {
+            System.err.println("Out of date, run java TreeVariants: " + String.join(", ", stale));
+            System.exit(1);
+        }
+
+        System.out.println((check ? "Up to date: " : "Generated: ") + String.join(", ", files.keySet()));
+    }
+
+    /**
+     * Generate every variant.
+     * @param rb The source of RBTree.
+     * @param avl The source of AVLTree.
+     * @return The source of each variant, by file name.
+     */
+    static Map<String, String> generate(String rb, String avl) {
+        Map<String, String> files = new LinkedHashMap<>();
+
+        String longRB = longRB(rb);
+        String longAVL = longAVL(avl);
+
+        files.put("LongRBTree.java", longRB);
+        files.put("ObjectRBTree.java", objectRB(longRB));
+        files.put("LongAVLTree.java", longAVL);
+        files.put("ObjectAVLTree.java", objectAVL(longAVL));
+        return files;
+    }
+
+
+    //Red-black trees
+
+    /**
+     * Turn RBTree into LongRBTree: every key, key array and key parameter becomes a long.
+     */
+    private static String longRB(String s) {
+        s = replace(s, "import java.util.function.IntConsumer;", "import java.util.function.LongConsumer;");
+        s = replace(s, "public class RBTree implements SortedIntSet {",
+                "/**\n"
+                + " * An RBTree with long keys. The algorithms are the same as in RBTree, with the key stored unboxed in each node.\n"
+                + String.format(GENERATED, "RBTree", "RBTree")
+                + " */\n"
+                + "public class LongRBTree {");
+        s = replace(s, "new TreeProfile(\"rb\")", "new TreeProfile(\"long-rb\")");
+        s = replace(s, "public RBTree(", "public LongRBTree(");
+        s = replace(s, "        int key;        // Value stored", "        long key;       // Value stored");
+        s = replace(s, "public Node (int key)", "public Node (long key)");
+        s = replace(s, "CountedNode(int key)", "CountedNode(long key)");
+
+        String[] keyed = {
+            "private Node newNode(int n)", "public Node search(int n)", "public boolean contains(int n)",
+            "Node searchKey(int n)", "public void insert(int n)", "private void insertKey(int n)",
+            "public void delete(int n)", "private void deleteKey(int n)", "public int rank(int n)",
+            "public int count(int n)", "private int countBelow(int n,", "public boolean seek(int n)",
+            "void split(Node t, int h, int n,", "void split3(Node t, int h, int n,",
+        };
+        for (String signature : keyed) {
+            s = replace(s, signature, signature.replace("int n", "long n"));
+        }
+
+        s = replace(s, "public static RBTree fromSorted(int[] keys)", "public static LongRBTree fromSorted(long[] keys)");
+        s = replace(s, "public static RBTree fromUnsortedParallel(int[] keys)", "public static LongRBTree fromUnsortedParallel(long[] keys)");
+        s = replace(s, "        int[] sorted = keys.clone();", "        long[] sorted = keys.clone();");
+        s = replace(s, "RBTree tree = new RBTree();", "LongRBTree tree = new LongRBTree();", 2);
+        s = replace(s, "private Node build(int[] keys,", "private Node build(long[] keys,");
+        s = replace(s, "        final int[] keys;\n", "        final long[] keys;\n");
+        s = replace(s, "BuildTask(int[] keys,", "BuildTask(long[] keys,");
+        s = replace(s, "public void insertAll(int[] keys)", "public void insertAll(long[] keys)");
+        s = replace(s, "public void deleteAll(int[] keys)", "public void deleteAll(long[] keys)");
+        s = replace(s, "for (int key : keys)", "for (long key : keys)", 2);
+        s = replace(s, "int[] batch = keys.clone();", "long[] batch = keys.clone();", 2);
+        s = replace(s, "public RBTree split(int n)", "public LongRBTree split(long n)");
+        s = replace(s, "RBTree rest = new RBTree(comparison, duplicates);", "LongRBTree rest = new LongRBTree(comparison, duplicates);");
+        s = replace(s, "public void join(int key, RBTree right)", "public void join(long key, LongRBTree right)");
+        s = replace(s, "public void join(RBTree right)", "public void join(LongRBTree right)");
+        s = replace(s, "private boolean outOfOrder(int a, int b)", "private boolean outOfOrder(long a, long b)");
+        s = replace(s, "public void union(RBTree other)", "public void union(LongRBTree other)");
+        s = replace(s, "public void intersect(RBTree other)", "public void intersect(LongRBTree other)");
+        s = replace(s, "public void difference(RBTree other)", "public void difference(LongRBTree other)");
+        s = replace(s, "public int intersectionSize(RBTree other)", "public int intersectionSize(LongRBTree other)");
+        s = replace(s, "RBTree small = ", "LongRBTree small = ");
+        s = replace(s, "RBTree large = ", "LongRBTree large = ");
+        s = replace(s, "private void setOp(int op, RBTree other)", "private void setOp(int op, LongRBTree other)");
+        s = replace(s, "private void checkCompatible(RBTree other)", "private void checkCompatible(LongRBTree other)");
+        s = replace(s, "Node union(Node t, int h, int[] keys,", "Node union(Node t, int h, long[] keys,");
+        s = replace(s, "Node difference(Node t, int h, int[] keys,", "Node difference(Node t, int h, long[] keys,");
+        s = replace(s, "            int k = keys[(lo + hi) >>> 1];", "            long k = keys[(lo + hi) >>> 1];");
+        s = replace(s, "private int firstNotBelow(int[] keys, int lo, int hi, int n,", "private int firstNotBelow(long[] keys, int lo, int hi, long n,");
+        s = replace(s, "public int select(int k)", "public long select(int k)");
+        s = replace(s, "public int countInRange(int lo, int hi)", "public int countInRange(long lo, long hi)");
+        s = replace(s, "        public int key() {", "        public long key() {");
+        s = replace(s, "public void forEachInRange(int lo, int hi, IntConsumer action)", "public void forEachInRange(long lo, long hi, LongConsumer action)");
+        s = replace(s, "private int compare(int n1, int n2)", "private int compare(long n1, long n2)");
+        s = replace(s, "private boolean compare(char op, int n1, int n2)", "private boolean compare(char op, long n1, long n2)");
+
+        s = sortedSearchAll(s, "RBTree");
+        s = replace(s,
+                "     * A Node has a 12 byte header, two references, two ints and a boolean, padded to 32 bytes.\n",
+                "     * A Node has a 12 byte header, two references, a long, an int and a boolean, padded to 40 bytes.\n");
+        s = replace(s, "    public static int bytesPerKey() {\n        return 32;", "    public static int bytesPerKey() {\n        return 40;");
+        return s;
+    }
+
+    /**
+     * Turn LongRBTree into ObjectRBTree: keys become K, ordered by a Comparator, and Node becomes Node<K>.
+     */
+    private static String objectRB(String s) {
+        s = protectTimes(s);
+        s = replace(s, "import java.util.Arrays;\n", "import java.util.Arrays;\nimport java.util.Comparator;\n");
+        s = replace(s, "import java.util.function.LongConsumer;", "import java.util.function.Consumer;");
+        s = replace(s,
+                " * An RBTree with long keys. The algorithms are the same as in RBTree, with the key stored unboxed in each node.\n",
+                " * An RBTree for keys of any type, ordered by a Comparator. The algorithms are the same as in RBTree.\n"
+                + " * @param <K> The type of the keys.\n");
+        s = replace(s, "public class LongRBTree {", "public class ObjectRBTree<K> {");
+        s = replace(s, "\"long-rb\"", "\"object-rb\"");
+
+        s = replaceRegex(s, "\\bCountedNode\\b(?!\\()", "CountedNode<K>");
+        s = replaceRegex(s, "\\bNode\\b(?![(<\\[])", "Node<K>");
+        s = replace(s, "new CountedNode(n)", "new CountedNode<>(n)");
+        s = replaceRegex(s, "new Node\\(", "new Node<>(");
+        s = replace(s, "LongConsumer", "Consumer<? super K>");
+        s = replace(s, "long[]", "K[]");
+        s = replaceRegex(s, "\\blong\\b", "K");
+        s = replace(s, "LongRBTree", "ObjectRBTree<K>");
+        s = restoreTimes(s);
+
+        s = replace(s,
+                "    final TreeMetrics metrics = new TreeMetrics();  // Counters for the work done by this tree\n",
+                "    final Comparator<? super K> comparator;         // The order of the keys\n"
+                + "    final TreeMetrics metrics = new TreeMetrics();  // Counters for the work done by this tree\n");
+        s = replace(s, "    private final Node[] path = new Node[MAX_DEPTH];    // The ancestors of the node being deleted",
+                "    @SuppressWarnings(\"unchecked\")\n"
+                + "    private final Node<K>[] path = (Node<K>[]) new Node<?>[MAX_DEPTH];  // The ancestors of the node being deleted");
+        s = cut(s, "    /**\n     * Constructs an empty tree with no values.", "    /*\n     * Represents a node in the tree.",
+                "    /**\n"
+                + "     * Constructs an empty tree whose keys are ordered by a comparator.\n"
+                + "     * @param comparator The order of the keys.\n"
+                + "     */\n"
+                + "    public ObjectRBTree(Comparator<? super K> comparator) {\n"
+                + "        this(comparator, Comparison.COUNTING);\n"
+                + "    }\n"
+                + "\n"
+                + "    /**\n"
+                + "     * Constructs an empty tree whose keys are ordered by a comparator and compared in a given way.\n"
+                + "     * @param comparator The order of the keys.\n"
+                + "     * @param comparison COUNTING to count every comparison in metrics(), RAW for the fastest comparisons.\n"
+                + "     */\n"
+                + "    public ObjectRBTree(Comparator<? super K> comparator, Comparison comparison) {\n"
+                + "        this(comparator, comparison, Duplicates.NODES);\n"
+                + "    }\n"
+                + "\n"
+                + "    /**\n"
+                + "     * Constructs an empty tree whose keys are ordered by a comparator, compared and stored in given ways.\n"
+                + "     * @param comparator The order of the keys.\n"
+                + "     * @param comparison COUNTING to count every comparison in metrics(), RAW for the fastest comparisons.\n"
+                + "     * @param duplicates NODES to store every copy of a key in its own node, COUNTED for a multiset.\n"
+                + "     */\n"
+                + "    public ObjectRBTree(Comparator<? super K> comparator, Comparison comparison, Duplicates duplicates) {\n"
+                + "        this.comparator = comparator;\n"
+                + "        this.comparison = comparison;\n"
+                + "        this.duplicates = duplicates;\n"
+                + "        this.root = null;\n"
+                + "    }\n"
+                + "\n"
+                + "\n");
+
+        s = replace(s,
+                "     * @param keys The keys, in ascending order.\n"
+                + "     * @return The new tree.\n"
+                + "     */\n"
+                + "    public static ObjectRBTree<K> fromSorted(K[] keys) {\n"
+                + "        ObjectRBTree<K> tree = new ObjectRBTree<K>();",
+                "     * @param keys The keys, in ascending order.\n"
+                + "     * @param comparator The order of the keys.\n"
+                + "     * @return The new tree.\n"
+                + "     */\n"
+                + "    public static <K> ObjectRBTree<K> fromSorted(K[] keys, Comparator<? super K> comparator) {\n"
+                + "        ObjectRBTree<K> tree = new ObjectRBTree<>(comparator);");
+        s = replace(s,
+                "     * @param keys The keys. The array is not modified.\n"
+                + "     * @return The new tree.\n"
+                + "     */\n"
+                + "    public static ObjectRBTree<K> fromUnsortedParallel(K[] keys) {\n"
+                + "        K[] sorted = keys.clone();\n"
+                + "        Arrays.parallelSort(sorted);\n"
+                + "\n"
+                + "        ObjectRBTree<K> tree = new ObjectRBTree<K>();",
+                "     * @param keys The keys. The array is not modified.\n"
+                + "     * @param comparator The order of the keys.\n"
+                + "     * @return The new tree.\n"
+                + "     */\n"
+                + "    public static <K> ObjectRBTree<K> fromUnsortedParallel(K[] keys, Comparator<? super K> comparator) {\n"
+                + "        K[] sorted = keys.clone();\n"
+                + "        Arrays.parallelSort(sorted, comparator);\n"
+                + "\n"
+                + "        ObjectRBTree<K> tree = new ObjectRBTree<>(comparator);");
+        s = replace(s, "new ObjectRBTree<K>(comparison, duplicates)", "new ObjectRBTree<>(comparator, comparison, duplicates)");
+        s = byComparator(s, "comparator");
+        s = replace(s, "        return comparison.compare(n1, n2, metrics);", "        return comparison.compare(n1, n2, comparator, metrics);");
+
+        // Static helpers and the Split holder take the key type as a parameter of their own
+        s = replaceRegex(s, "private static (\\w[\\w<>]*) (\\w+)\\(Node<K>", "private static <K> $1 $2(Node<K>");
+        s = replace(s, "private static final class Split {", "private static final class Split<K> {");
+        s = replace(s, "Split parts = new Split();", "Split<K> parts = new Split<>();");
+        s = replaceRegex(s, "\\bSplit out\\)", "Split<K> out)");
+
+        s = replace(s, "        public Node<K> () {", "        public Node () {");
+        s = replace(s, "        public Node<K> (K key) {", "        public Node (K key) {");
+        s = replace(s, "            this.key = 0;\n", "            this.key = null;\n");
+        s = replace(s, "        Node[] path = this.path;", "        Node<K>[] path = this.path;");
+        s = replace(s, "        final Node[] path = new Node[MAX_DEPTH];    // The nodes from the root down to the current one",
+                "        @SuppressWarnings(\"unchecked\")\n"
+                + "        final Node<K>[] path = (Node<K>[]) new Node<?>[MAX_DEPTH];  // The nodes from the root down to the current one");
+        return align(s, "Node<K>", "K key;");
+    }
+
+
+    //AVL trees
+
+    /**
+     * Turn AVLTree into LongAVLTree: every key, key array and key parameter becomes a long.
+     * The variant shares AVLTree.Rebalancing rather than declaring an enum of its own.
+     */
+    private static String longAVL(String s) {
+        s = replace(s, "import java.util.function.IntConsumer;", "import java.util.function.LongConsumer;");
+        s = replace(s, "public class AVLTree implements SortedIntSet {",
+                "/**\n"
+                + " * An AVLTree with long keys. The algorithms are the same as in AVLTree, with the key stored unboxed\n"
+                + " * in each node and empty nodes marked by a negative height.\n"
+                + String.format(GENERATED, "AVLTree", "AVLTree")
+                + " */\n"
+                + "public class AVLTree {");
+        s = replace(s, "new TreeProfile(\"avl\")", "new TreeProfile(\"long-avl\")");
+        s = replace(s, "    int key;        // The key value of the node, unused while the node is empty",
+                "    long key;       // The key value of the node, unused while the node is empty");
+        s = replace(s, "public AVLTree(int key)", "public AVLTree(long key)");
+
+        String[] keyed = {
+            "public AVLTree search(int n)", "public boolean contains(int n)", "private AVLTree searchKey(int n)",
+            "public void insert(int n)", "private void insertKey(int n)", "public void delete(int n)",
+            "private void deleteKey(int n)", "public AVLTree split(int n)", "private void split3(int n,",
+            "private void split(int n,", "public int rank(int n)", "public int count(int n)",
+            "private int countBelow(int n,",
+        };
+        for (String signature : keyed) {
+            s = replace(s, signature, signature.replace("int n", "long n"));
+        }
+
+        s = replace(s, "public int findMax()", "public long findMax()");
+        s = replace(s, "public int findMin()", "public long findMin()");
+        s = replace(s, "public static AVLTree fromSorted(int[] keys)", "public static AVLTree fromSorted(long[] keys)");
+        s = replace(s, "public static AVLTree fromUnsortedParallel(int[] keys)", "public static AVLTree fromUnsortedParallel(long[] keys)");
+        s = replace(s, "        int[] sorted = keys.clone();", "        long[] sorted = keys.clone();");
+        s = replace(s, "private void build(int[] keys,", "private void build(long[] keys,");
+        s = replace(s, "        final int[] keys;\n", "        final long[] keys;\n");
+        s = replace(s, "BuildTask(AVLTree node, int[] keys,", "BuildTask(AVLTree node, long[] keys,");
+        s = replace(s, "public void insertAll(int[] keys)", "public void insertAll(long[] keys)");
+        s = replace(s, "public void deleteAll(int[] keys)", "public void deleteAll(long[] keys)");
+        s = replace(s, "for (int key : keys)", "for (long key : keys)", 2);
+        s = replace(s, "int[] batch = keys.clone();", "long[] batch = keys.clone();", 2);
+        s = replace(s, "public void join(int key, AVLTree right)", "public void join(long key, AVLTree right)");
+        s = replace(s, "private boolean outOfOrder(int a, int b)", "private boolean outOfOrder(long a, long b)");
+        s = replace(s, "private AVLTree union(int[] keys,", "private AVLTree union(long[] keys,");
+        s = replace(s, "private AVLTree difference(int[] keys,", "private AVLTree difference(long[] keys,");
+        s = replace(s, "        int k = keys[(lo + hi) >>> 1];", "        long k = keys[(lo + hi) >>> 1];");
+        s = replace(s, "private int firstNotBelow(int[] keys, int lo, int hi, int n,", "private int firstNotBelow(long[] keys, int lo, int hi, long n,");
+        s = replace(s, "public int select(int k)", "public long select(int k)");
+        s = replace(s, "public int countInRange(int lo, int hi)", "public int countInRange(long lo, long hi)");
+        s = replace(s, "public void forEachInRange(int lo, int hi, IntConsumer action)", "public void forEachInRange(long lo, long hi, LongConsumer action)");
+        s = replace(s, "private int compare(int n1, int n2)", "private int compare(long n1, long n2)");
+        s = replace(s, "private boolean compare(char op, int n1, int n2)", "private boolean compare(char op, long n1, long n2)");
+
+        // Rotations swap the keys and counts of two nodes through a temporary of each type
+        for (String side : new String[] {"right", "left"}) {
+            s = replace(s,
+                    "        int tmpInt = key;\n"
+                    + "        key = " + side + ".key;\n"
+                    + "        " + side + ".key = tmpInt;\n"
+                    + "\n"
+                    + "        tmpInt = count;\n"
+                    + "        count = " + side + ".count;\n"
+                    + "        " + side + ".count = tmpInt;",
+                    "        long tmpKey = key;\n"
+                    + "        key = " + side + ".key;\n"
+                    + "        " + side + ".key = tmpKey;\n"
+                    + "\n"
+                    + "        int tmpCount = count;\n"
+                    + "        count = " + side + ".count;\n"
+                    + "        " + side + ".count = tmpCount;");
+        }
+
+        s = replaceRegex(s, "\\bAVLTree\\b", "LongAVLTree");
+        s = replace(s, "An LongAVLTree with long keys. The algorithms are the same as in LongAVLTree",
+                "An AVLTree with long keys. The algorithms are the same as in AVLTree");
+        s = replace(s, "Generated from LongAVLTree by TreeVariants. Change LongAVLTree", "Generated from AVLTree by TreeVariants. Change AVLTree");
+
+        s = cut(s, "    /**\n     * How a tree keeps itself balanced after an insert or delete.", "    /*\n     * State that belongs to a whole tree", "");
+        s = replaceRegex(s, "(?<![.\\w])Rebalancing\\b", "AVLTree.Rebalancing");
+
+        s = sortedSearchAll(s, "AVLTree");
+        return align(s, "LongAVLTree", "AVLTree.Rebalancing", "long key;");
+    }
+
+    /**
+     * Turn LongAVLTree into ObjectAVLTree: keys become K, ordered by a Comparator held in Shared.
+     * Empty nodes hold a null key.
+     */
+    private static String objectAVL(String s) {
+        s = protectTimes(s);
+        s = replace(s, "import java.util.Arrays;\n", "import java.util.Arrays;\nimport java.util.Comparator;\n");
+        s = replace(s, "import java.util.function.LongConsumer;", "import java.util.function.Consumer;");
+        s = replace(s,
+                " * An AVLTree with long keys. The algorithms are the same as in AVLTree, with the key stored unboxed\n"
+                + " * in each node and empty nodes marked by a negative height.\n",
+                " * An AVLTree for keys of any type, ordered by a Comparator. The algorithms are the same as in AVLTree.\n"
+                + " * Empty nodes are marked by a negative height and hold a null key.\n"
+                + " * @param <K> The type of the keys.\n");
+        s = replace(s, "public class LongAVLTree {", "public class ObjectAVLTree<K> {");
+        s = replace(s, "\"long-avl\"", "\"object-avl\"");
+        s = replace(s, "    Shared shared;  // State shared by every node in the tree", "    Shared<K> shared;   // State shared by every node in the tree");
+        s = replace(s, "    long key;           // The key value of the node, unused while the node is empty",
+                "    K key;          // The key value of the node, null while the node is empty");
+        s = replace(s, "    static final class Shared {", "    static final class Shared<K> {");
+        s = replace(s,
+                "        final TreeMetrics metrics = new TreeMetrics();  // Counters for the work done by the tree\n",
+                "        final Comparator<? super K> comparator;         // The order of the keys\n"
+                + "        final TreeMetrics metrics = new TreeMetrics();  // Counters for the work done by the tree\n");
+        s = replace(s,
+                "        Shared(Comparison comparison, AVLTree.Rebalancing rebalancing, Duplicates duplicates) {\n",
+                "        Shared(Comparator<? super K> comparator, Comparison comparison, AVLTree.Rebalancing rebalancing, Duplicates duplicates) {\n"
+                + "            this.comparator = comparator;\n");
+        s = replace(s, "this.key = 0;", "this.key = null;");
+        s = replace(s, "        key = 0;\n", "        key = null;\n");
+
+        // An empty tree needs a comparator, and there is no constructor for a single key
+        s = cut(s, "    /**\n     * Creates an initialised node with a given key value.", "    //Binary search Tree implementation", "\n");
+
+        s = replace(s, "LongConsumer", "Consumer<? super K>");
+        s = replace(s, "long[]", "K[]");
+        s = replaceRegex(s, "\\blong\\b", "K");
+        s = restoreTimes(s);
+        s = replaceRegex(s, "\\bLongAVLTree\\b(?!\\()", "ObjectAVLTree<K>");
+        s = replaceRegex(s, "new LongAVLTree\\(", "new ObjectAVLTree<>(");
+        s = replaceRegex(s, "(public|private) LongAVLTree\\(", "$1 ObjectAVLTree(");
+        s = replace(s, "new Shared(", "new Shared<>(");
+        s = replace(s, "Shared shared)", "Shared<K> shared)");
+
+        s = replace(s, "        ObjectAVLTree<K>[] path = new ObjectAVLTree<K>[32];",
+                "        @SuppressWarnings({\"unchecked\", \"rawtypes\"})\n"
+                + "        ObjectAVLTree<K>[] path = new ObjectAVLTree[32];");
+        s = replaceRegex(s, "new ObjectAVLTree<K>\\[(\\d)\\]", "newArray($1)");
+
+        s = cut(s, "    /**\n     * Creates an empty node with no key value.", "    /**\n     * Creates an empty node belonging to an existing tree.",
+                "    /**\n"
+                + "     * Creates an empty tree whose keys are ordered by a comparator.\n"
+                + "     * @param comparator The order of the keys.\n"
+                + "     */\n"
+                + "    public ObjectAVLTree(Comparator<? super K> comparator) {\n"
+                + "        this(comparator, Comparison.COUNTING);\n"
+                + "    }\n"
+                + "\n"
+                + "    /**\n"
+                + "     * Creates an empty tree whose keys are ordered by a comparator and compared in a given way.\n"
+                + "     * @param comparator The order of the keys.\n"
+                + "     * @param comparison COUNTING to count every comparison in metrics(), RAW for the fastest comparisons.\n"
+                + "     */\n"
+                + "    public ObjectAVLTree(Comparator<? super K> comparator, Comparison comparison) {\n"
+                + "        this(comparator, comparison, AVLTree.Rebalancing.AVL);\n"
+                + "    }\n"
+                + "\n"
+                + "    /**\n"
+                + "     * Creates an empty tree whose keys are ordered by a comparator, compared and rebalanced in given ways.\n"
+                + "     * @param comparator The order of the keys.\n"
+                + "     * @param comparison COUNTING to count every comparison in metrics(), RAW for the fastest comparisons.\n"
+                + "     * @param rebalancing AVL for strict height balance, WAVL for fewer rotations on delete.\n"
+                + "     */\n"
+                + "    public ObjectAVLTree(Comparator<? super K> comparator, Comparison comparison, AVLTree.Rebalancing rebalancing) {\n"
+                + "        this(comparator, comparison, rebalancing, Duplicates.NODES);\n"
+                + "    }\n"
+                + "\n"
+                + "    /**\n"
+                + "     * Creates an empty tree whose keys are ordered by a comparator, compared, rebalanced and stored in given ways.\n"
+                + "     * @param comparator The order of the keys.\n"
+                + "     * @param comparison COUNTING to count every comparison in metrics(), RAW for the fastest comparisons.\n"
+                + "     * @param rebalancing AVL for strict height balance, WAVL for fewer rotations on delete.\n"
+                + "     * @param duplicates NODES to store every copy of a key in its own node, COUNTED for a multiset.\n"
+                + "     */\n"
+                + "    public ObjectAVLTree(Comparator<? super K> comparator, Comparison comparison, AVLTree.Rebalancing rebalancing, Duplicates duplicates) {\n"
+                + "        this(new Shared<>(comparator, comparison, rebalancing, duplicates));\n"
+                + "    }\n"
+                + "\n");
+
+        s = replace(s,
+                "     * @param keys The keys, in ascending order.\n"
+                + "     * @return The new tree.\n"
+                + "     */\n"
+                + "    public static ObjectAVLTree<K> fromSorted(K[] keys) {\n"
+                + "        ObjectAVLTree<K> tree = new ObjectAVLTree<>();",
+                "     * @param keys The keys, in ascending order.\n"
+                + "     * @param comparator The order of the keys.\n"
+                + "     * @return The new tree.\n"
+                + "     */\n"
+                + "    public static <K> ObjectAVLTree<K> fromSorted(K[] keys, Comparator<? super K> comparator) {\n"
+                + "        ObjectAVLTree<K> tree = new ObjectAVLTree<>(comparator);");
+        s = replace(s,
+                "     * @param keys The keys. The array is not modified.\n"
+                + "     * @return The new tree.\n"
+                + "     */\n"
+                + "    public static ObjectAVLTree<K> fromUnsortedParallel(K[] keys) {\n"
+                + "        K[] sorted = keys.clone();\n"
+                + "        Arrays.parallelSort(sorted);\n"
+                + "\n"
+                + "        ObjectAVLTree<K> tree = new ObjectAVLTree<>();\n"
+                + "        ForkJoinPool.commonPool().invoke(new BuildTask(",
+                "     * @param keys The keys. The array is not modified.\n"
+                + "     * @param comparator The order of the keys.\n"
+                + "     * @return The new tree.\n"
+                + "     */\n"
+                + "    public static <K> ObjectAVLTree<K> fromUnsortedParallel(K[] keys, Comparator<? super K> comparator) {\n"
+                + "        K[] sorted = keys.clone();\n"
+                + "        Arrays.parallelSort(sorted, comparator);\n"
+                + "\n"
+                + "        ObjectAVLTree<K> tree = new ObjectAVLTree<>(comparator);\n"
+                + "        ForkJoinPool.commonPool().invoke(new BuildTask<>(");
+
+        // Static methods and tasks take the key type as a parameter of their own
+        s = replaceRegex(s, "private static ObjectAVLTree<K> (\\w+)\\(", "private static <K> ObjectAVLTree<K> $1(");
+        for (String task : new String[] {"BuildTask", "SetTask", "CountTask"}) {
+            s = replace(s, "private static final class " + task + " ", "private static final class " + task + "<K> ");
+            s = replaceRegex(s, "new " + task + "\\(", "new " + task + "<>(");
+        }
+        s = replaceRegex(s, "\\b(SetTask|CountTask) (\\w+)( =|[,)=;])", "$1<K> $2$3");
+
+        s = byComparator(s, "shared.comparator");
+        s = replace(s, "        return shared.comparison.compare(n1, n2, shared.metrics);",
+                "        return shared.comparison.compare(n1, n2, shared.comparator, shared.metrics);");
+
+        // Balance factors are still ints, and are compared through a strategy method of their own
+        int start = s.lastIndexOf("    /**", s.indexOf("    private boolean compare(char op, K n1, K n2) {"));
+        int end = s.indexOf("\n    }\n", start) + 7;
+        String keys = s.substring(start, end);
+        String factors = keys
+                .replace("operators, counting", "operators on balance factors, counting")
+                .replace("private boolean compare(char op, K n1, K n2)", "private boolean compare(char op, int n1, int n2)")
+                .replace("        int c = compare(n1, n2);", "        int c = shared.comparison.compare(n1, n2, shared.metrics);");
+        s = s.substring(0, start) + keys.replace("operators, counting", "operators on keys, counting") + "\n" + factors + s.substring(end);
+
+        s = replace(s, "    /**\n     * Move the contents of the root into a new node",
+                "    /**\n"
+                + "     * Create an array of nodes, which cannot be done directly for a generic type.\n"
+                + "     */\n"
+                + "    @SuppressWarnings(\"unchecked\")\n"
+                + "    private static <K> ObjectAVLTree<K>[] newArray(int length) {\n"
+                + "        return (ObjectAVLTree<K>[]) new ObjectAVLTree<?>[length];\n"
+                + "    }\n"
+                + "\n"
+                + "    /**\n     * Move the contents of the root into a new node");
+        return align(s, "ObjectAVLTree<K>", "K key;");
+    }
+
+
+    //Rewrites shared by the variants
+
+    /**
+     * Replace searchAll, which packs an int key and its position into one long, with a version that searches
+     * a sorted copy of the batch and then looks each key up in it.
+     * @param tree RBTree or AVLTree, which walk the tree from a node parameter or from this node.
+     */
+    private static String sortedSearchAll(String s, String tree) {
+        boolean rb = tree.equals("RBTree");
+        String walk = rb ? "root, sorted" : "sorted";
+
+        s = cut(s, "    public void searchAll(int[] keys, boolean[] out) {", "    /**\n     * Move every key that is not smaller than n",
+                "    public void searchAll(long[] keys, boolean[] out) {\n"
+                + "        if (out.length < keys.length) {\n"
+                + "            throw new IllegalArgumentException(\"Output has \" + out.length + \" places for \" + keys.length + \" keys\");\n"
+                + "        }\n"
+                + "\n"
+                + "        // Search for the keys in sorted order, then look up where each one came from\n"
+                + "        long[] sorted = keys.clone();\n"
+                + "        Arrays.sort(sorted);\n"
+                + "\n"
+                + "        boolean[] found = new boolean[sorted.length];\n"
+                + "        searchAll(" + walk + ", 0, sorted.length, found);\n"
+                + "\n"
+                + "        for (int i = 0; i < keys.length; i++) {\n"
+                + "            out[i] = found[Arrays.binarySearch(sorted, keys[i])];\n"
+                + "        }\n"
+                + "    }\n"
+                + "\n"
+                + "    /**\n"
+                + (rb ? "     * Mark the keys of sorted[lo..hi) that are in the subtree rooted at x.\n"
+                      : "     * Mark the keys of sorted[lo..hi) that are in this subtree.\n")
+                + "     */\n"
+                + (rb ? "    private void searchAll(Node x, long[] sorted, int lo, int hi, boolean[] found) {\n"
+                        + "        if (lo == hi || x == null) {\n"
+                      : "    private void searchAll(long[] sorted, int lo, int hi, boolean[] found) {\n"
+                        + "        if (lo == hi || isEmpty()) {\n")
+                + "            return;\n"
+                + "        }\n"
+                + "\n"
+                + "        int from = firstNotBelow(sorted, lo, hi, " + (rb ? "x." : "") + "key, false);\n"
+                + "        int to = firstNotBelow(sorted, from, hi, " + (rb ? "x." : "") + "key, true);\n"
+                + "\n"
+                + "        Arrays.fill(found, from, to, true);\n"
+                + "\n"
+                + (rb ? "        searchAll(x.left, sorted, lo, from, found);\n"
+                        + "        searchAll(x.right, sorted, to, hi, found);\n"
+                      : "        left.searchAll(sorted, lo, from, found);\n"
+                        + "        right.searchAll(sorted, to, hi, found);\n")
+                + "    }\n"
+                + "\n");
+
+        // The search over packed keys has no use left
+        int start = s.indexOf("    /**\n     * As firstNotBelow, for keys packed");
+        if (start < 0) {
+            throw new IllegalStateException(tree + " has no firstNotBelow for packed keys");
+        }
+        int end = s.indexOf("\n    }\n", start) + 7;
+        while (s.charAt(end) == '\n') {
+            end++;
+        }
+        return s.substring(0, start) + s.substring(end);
+    }
+
+    /**
+     * Sort and search key arrays in the order of a comparator.
+     */
+    private static String byComparator(String s, String comparator) {
+        s = replace(s, "Arrays.sort(batch);", "Arrays.sort(batch, " + comparator + ");");
+        s = replace(s, "Arrays.sort(sorted);", "Arrays.sort(sorted, " + comparator + ");");
+        s = replace(s, "Arrays.binarySearch(sorted, keys[i])", "Arrays.binarySearch(sorted, keys[i], " + comparator + ")");
+        s = replace(s, "        if (lo > hi) {\n            return 0;", "        if (" + comparator + ".compare(lo, hi) > 0) {\n            return 0;");
+        return s;
+    }
+
+    // Timestamps are longs in every variant, so they are set aside while keys turn into K
+    private static final String TIMES = "@@START@@";
+
+    private static String protectTimes(String s) {
+        return replaceRegex(s, "long start = ((shared\\.)?profile\\.begin\\(\\);)", TIMES + "$1");
+    }
+
+    private static String restoreTimes(String s) {
+        return replace(s, TIMES, "long start = ");
+    }
+
+
+    //Text operations
+
+    /**
+     * Replace every copy of a text, which must occur at least once.
+     */
+    private static String replace(String s, String from, String to) {
+        if (!s.contains(from)) {
+            throw new IllegalStateException("Expected text not found: " + from);
+        }
+        return s.replace(from, to);
+    }
+
+    /**
+     * Replace a text that must occur exactly a given number of times.
+     */
+    private static String replace(String s, String from, String to, int count) {
+        int found = 0;
+        for (int i = s.indexOf(from); i >= 0; i = s.indexOf(from, i + from.length())) {
+            found++;
+        }
+        if (found != count) {
+            throw new IllegalStateException("Expected " + count + " copies, found " + found + ": " + from);
+        }
+        return s.replace(from, to);
+    }
+
+    /**
+     * Replace every match of a regular expression, which must match at least once.
+     */
+    private static String replaceRegex(String s, String regex, String to) {
+        Matcher m = Pattern.compile(regex).matcher(s);
+        if (!m.find()) {
+            throw new IllegalStateException("Expected pattern not found: " + regex);
+        }
+        return m.replaceAll(to);
+    }
+
+    /**
+     * Replace the text from the start of one marker up to the start of another.
+     */
+    private static String cut(String s, String from, String until, String with) {
+        int start = s.indexOf(from);
+        int end = (start < 0) ? -1 : s.indexOf(until, start);
+        if (end < 0) {
+            throw new IllegalStateException("Expected section not found: " + from);
+        }
+        return s.substring(0, start) + with + s.substring(end);
+    }
+
+    /**
+     * Line up the end-of-line comments of every block of declarations that a longer type name has pushed out.
+     * A block keeps the column of its lines that were not renamed, moving further right only if a renamed line
+     * needs it. Lines holding an unchecked array cast are written by this class and keep their own spacing.
+     * @param tokens A line holding one of these was renamed, and is realigned together with its neighbours.
+     */
+    private static String align(String s, String... tokens) {
+        Pattern commented = Pattern.compile("^(\\s*)([^/]*?\\S)( +)(//.*)$");
+        String[] lines = s.split("\n", -1);
+
+        for (int i = 0; i < lines.length; i++) {
+            if (!isCommented(commented, lines[i]) || !containsAny(lines[i], tokens)) {
+                continue;
+            }
+
+            int first = i;
+            int last = i;
+            while (first > 0 && isCommented(commented, lines[first - 1])) {
+                first--;
+            }
+            while (last + 1 < lines.length && isCommented(commented, lines[last + 1])) {
+                last++;
+            }
+
+            Map<Integer, Integer> columns = new HashMap<>();
+            int usual = 0;
+            int needed = 0;
+            for (int j = first; j <= last; j++) {
+                Matcher m = commented.matcher(lines[j]);
+                m.matches();
+                int code = m.group(1).length() + m.group(2).length();
+                if (!containsAny(lines[j], tokens)) {
+                    int column = code + m.group(3).length();
+                    if (columns.merge(column, 1, Integer::sum) > columns.getOrDefault(usual, 0)) {
+                        usual = column;
+                    }
+                }
+                needed = Math.max(needed, code + 2);
+            }
+
+            for (int j = first; j <= last; j++) {
+                Matcher m = commented.matcher(lines[j]);
+                m.matches();
+                String code = m.group(1) + m.group(2);
+                lines[j] = code + " ".repeat(Math.max(usual, needed) - code.length()) + m.group(4);
+            }
+
+            i = last;
+        }
+
+        return String.join("\n", lines);
+    }
+
+    private static boolean isCommented(Pattern commented, String line) {
+        String code = line.trim();
+        return !code.startsWith("//") && !code.startsWith("*") && !code.contains("[]) new ") && commented.matcher(line).matches();
+    }
+
+    private static boolean containsAny(String line, String[] tokens) {
+        for (String token : tokens) {
+            if (line.contains(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String read(Path path) throws IOException {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,274 @@
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * A reproducible workload run against each of the trees in turn.
+ *
+ * A run has two phases. The load phase inserts size distinct keys, in random, ascending or descending
+ * order. The mixed phase then performs a number of operations, each an insert, delete or search with the
+ * given probabilities. Deletes and searches pick one of the loaded keys by a distribution over the load
+ * order, inserts add keys that were never loaded. Every key and operation comes from the seed, and the
+ * whole sequence is generated before any tree is timed, so every tree sees exactly the same work.
+ *
+ * For each tree and phase it reports throughput, latency percentiles in nanoseconds, and the comparison
+ * and rotation counts per operation. Each operation is timed on its own, so the throughput includes the
+ * cost of reading the clock.
+ *
+ * Options: [--trees avl,rb] [--size 1000000] [--ops 1000000] [--mix insert:0.1,delete:0.1,search:0.8]
+ *          [--order uniform|sequential|reverse] [--dist uniform|sequential|reverse|zipfian|hotspot]
+ *          [--min 0] [--max 2147483647] [--seed 42]
+ * Sizes may be written as 1e8.
+ */
+public class Workload {
+
+    // The kinds of operation in the mixed phase
+    static final byte INSERT = 0;
+    static final byte DELETE = 1;
+    static final byte SEARCH = 2;
+
+    // Workload parameters
+    String[] trees = {"avl", "rb"};
+    int size = 1000000;
+    int operations = 1000000;
+    double insertRatio = 0.1;
+    double deleteRatio = 0.1;
+    String order = "uniform";
+    String dist = "uniform";
+    int min = 0;
+    int max = Integer.MAX_VALUE;
+    long seed = 42;
+
+    // The generated work
+    int[] load;         // The keys of the load phase, in insertion order
+    byte[] kinds;       // The kind of each operation of the mixed phase
+    int[] keys;         // The key of each operation of the mixed phase
+
+    // Consumes search results so that the searches cannot be optimised away
+    static int sink;
+
+
+    /**
+     * Read the workload parameters from command line options.
+     * @param args The options.
+     * @return The workload.
+     */
+    public static Workload parse(String[] args) {
+        Workload w = new Workload();
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+
+            switch (args[i]) {
+                case "--trees": w.trees = value.split(","); break;
+                case "--size": w.size = (int) Double.parseDouble(value); break;
+                case "--ops": w.operations = (int) Double.parseDouble(value); break;
+                case "--mix": w.parseMix(value); break;
+                case "--order": w.order = value; break;
+                case "--dist": w.dist = value; break;
+                case "--min": w.min = Integer.parseInt(value); break;
+                case "--max": w.max = Integer.parseInt(value); break;
+                case "--seed": w.seed = Long.parseLong(value); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        if (args.length % 2 != 0) {
+            throw new IllegalArgumentException("Missing value for option: " + args[args.length - 1]);
+        }
+
+        return w;
+    }
+
+    /**
+     * Read a mix such as insert:0.1,delete:0.1,search:0.8. Kinds that are left out do not happen,
+     * and the ratios are scaled to add up to 1.
+     */
+    void parseMix(String value) {
+        double insert = 0, delete = 0, search = 0;
+
+        for (String part : value.split(",")) {
+            String[] kv = part.split(":");
+            double ratio = Double.parseDouble(kv[1]);
+
+            switch (kv[0]) {
+                case "insert": insert = ratio; break;
+                case "delete": delete = ratio; break;
+                case "search": search = ratio; break;
+                default: throw new IllegalArgumentException("Unknown operation: " + kv[0]);
+            }
+        }
+
+        double total = insert + delete + search;
+        if (total <= 0) {
+            throw new IllegalArgumentException("Empty mix: " + value);
+        }
+
+        insertRatio = insert / total;
+        deleteRatio = delete / total;
+    }
+
+
+    //Generating
+
+    /**
+     * Generate the keys and operations of both phases from the seed.
+     */
+    void generate() {
+        SplittableRandom rnd = new SplittableRandom(seed);
+
+        // Choose the kind of every operation first, so the number of new keys is known
+        kinds = new byte[operations];
+        int inserts = 0;
+
+        for (int i = 0; i < operations; i++) {
+            double u = rnd.nextDouble();
+
+            if (u < insertRatio) {
+                kinds[i] = INSERT;
+                inserts++;
+            }
+            else {
+                kinds[i] = (u < insertRatio + deleteRatio) ? DELETE : SEARCH;
+            }
+        }
+
+        if (size == 0 && inserts < operations) {
+            throw new IllegalArgumentException("Deletes and searches need a size above 0");
+        }
+
+        // The loaded keys come first, the keys for the inserts after them
+        int[] distinct = KeyGenerator.distinct(size + inserts, min, max, rnd.nextLong());
+
+        load = Arrays.copyOf(distinct, size);
+        switch (order) {
+            case "uniform":
+                break;
+            case "sequential":
+                Arrays.sort(load);
+                break;
+            case "reverse":
+                Arrays.sort(load);
+                for (int i = 0, j = size - 1; i < j; i++, j--) {
+                    int tmp = load[i];
+                    load[i] = load[j];
+                    load[j] = tmp;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown order: " + order);
+        }
+
+        // Deletes and searches pick a loaded key by its position in the load order
+        KeyGenerator pick = (size == 0) ? null : KeyGenerator.of(dist, size, rnd.nextLong());
+        keys = new int[operations];
+        int next = size;
+
+        for (int i = 0; i < operations; i++) {
+            keys[i] = (kinds[i] == INSERT) ? distinct[next++] : load[pick.next()];
+        }
+    }
+
+
+    //Running
+
+    /**
+     * The measurements of one phase on one tree.
+     */
+    static final class Result {
+        final LatencyHistogram latency = new LatencyHistogram();
+        long nanos;
+        TreeMetrics.Snapshot metrics;
+    }
+
+    /**
+     * Generate the work, run it on every tree and print the results.
+     */
+    public void run() {
+        long start = System.nanoTime();
+        generate();
+
+        System.out.printf(Locale.ROOT, "size %d, %d operations (insert %.2f, delete %.2f, search %.2f), order %s, dist %s, seed %d%n",
+                size, operations, insertRatio, deleteRatio, 1 - insertRatio - deleteRatio, order, dist, seed);
+        System.out.printf(Locale.ROOT, "generated in %.1f s%n%n", (System.nanoTime() - start) / 1e9);
+
+        System.out.printf(Locale.ROOT, "%-9s %-6s %11s %12s %8s %8s %8s %8s %10s %8s %8s%n",
+                "tree", "phase", "ops", "ops/s", "p50", "p90", "p99", "p99.9", "max", "cmp/op", "rot/op");
+
+        for (String tree : trees) {
+            if (TreeBenchmark.isFrozen(tree) && insertRatio + deleteRatio > 0) {
+                throw new IllegalArgumentException("A frozen tree can only be searched: " + tree);
+            }
+
+            TreeBenchmark.Subject subject = TreeBenchmark.create(tree);
+
+            try {
+                report(tree, "load", size, loadPhase(subject));
+                subject.ready();
+                report(tree, "mixed", operations, mixedPhase(subject));
+            }
+            finally {
+                // Free off-heap memory before the next tree is loaded
+                subject.close();
+            }
+        }
+    }
+
+    Result loadPhase(TreeBenchmark.Subject subject) {
+        Result result = new Result();
+        subject.metrics().snapshotAndReset();
+        long start = System.nanoTime();
+
+        for (int key : load) {
+            long t = System.nanoTime();
+            subject.insert(key);
+            result.latency.record(System.nanoTime() - t);
+        }
+
+        result.nanos = System.nanoTime() - start;
+        result.metrics = subject.metrics().snapshotAndReset();
+        return result;
+    }
+
+    Result mixedPhase(TreeBenchmark.Subject subject) {
+        Result result = new Result();
+        int found = 0;
+        subject.metrics().snapshotAndReset();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < operations; i++) {
+            int key = keys[i];
+            long t = System.nanoTime();
+
+            switch (kinds[i]) {
+                case INSERT:
+                    subject.insert(key);
+                    break;
+                case DELETE:
+                    subject.delete(key);
+                    break;
+                default:
+                    if (subject.search(key)) {
+                        found++;
+                    }
+            }
+
+            result.latency.record(System.nanoTime() - t);
+        }
+
+        result.nanos = System.nanoTime() - start;
+        result.metrics = subject.metrics().snapshotAndReset();
+        sink += found;
+        return result;
+    }
+
+    static void report(String tree, String phase, long ops, Result r) {
+        LatencyHistogram h = r.latency;
+        double perOp = Math.max(ops, 1);
+
+        System.out.printf(Locale.ROOT, "%-9s %-6s %11d %12.0f %8d %8d %8d %8d %10d %8.2f %8.3f%n",
+                tree, phase, ops, ops / (r.nanos / 1e9), h.percentile(50), h.percentile(90), h.percentile(99),
+                h.percentile(99.9), h.max(), r.metrics.comparisons / perOp, r.metrics.rotations() / perOp);
+    }
+
+}